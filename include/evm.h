@@ -67,7 +67,12 @@ enum evm_call_kind {
 
 /// The flags for ::evm_message.
 enum evm_flags {
-    EVM_STATIC = 1        ///< Static call mode.
+    EVM_STATIC = 1,       ///< Static call mode.
+
+    /// The Client can execute the message by other means. If the code is not
+    /// compiled yet, the EVM MAY queue it for compilation in the background
+    /// and return ::EVM_REJECTED instead of compiling it synchronously.
+    EVM_ASYNC_COMPILE = 2
 };
 
 /// The message describing an EVM call,
@@ -99,7 +104,7 @@ struct evm_message {
     enum evm_call_kind kind;
 
     /// Additional flags modifying the call execution behavior.
-    /// In the current version the only valid values are ::EVM_STATIC or 0.
+    /// A combination of ::evm_flags.
     uint32_t flags;
 };
 
@@ -22,6 +22,22 @@ extern "C" {
 /// @return  The EVMJIT instance.
 EXPORT struct evm_instance* evmjit_create(void);
 
+/// Checks whether a code is compiled and loaded, without compiling it.
+///
+/// @param code_hash  The hash of the code.
+/// @param rev        The EVM revision the code is executed with.
+/// @param flags      The message flags the code is executed with.
+/// @return           1 if executing the code wouldn't compile it, 0 otherwise.
+EXPORT int evmjit_is_compiled(struct evm_hash const* code_hash, enum evm_revision rev, uint32_t flags);
+
+/// Copies the process-wide metrics of EVMJIT: counters, times in
+/// nanoseconds and sizes in bytes, in the order of dev::evmjit::JITMetric.
+///
+/// @param out    The destination of the values.
+/// @param count  The capacity of the destination.
+/// @return       The number of metrics, which may exceed the capacity.
+EXPORT size_t evmjit_get_metrics(uint64_t* out, size_t count);
+
 #if __cplusplus
 }
 #endif
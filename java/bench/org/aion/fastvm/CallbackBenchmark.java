@@ -0,0 +1,122 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.fastvm;
+
+import org.aion.base.type.Address;
+import org.aion.base.util.Hex;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.vm.ExecutionContext;
+import org.aion.vm.ExecutionResult;
+import org.aion.vm.TransactionResult;
+import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the JNI round trip of each callback, by running code which
+ * triggers it {@value #REPEAT} times. The baseline runs the same stack
+ * operations without a callback; the difference is the cost of the
+ * callbacks. Storage accesses of the same slot cross JNI only once per
+ * execution, so getStorage and putStorage measure the native storage cache.
+ *
+ * @author yulong
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CallbackBenchmark {
+
+    private static final int REPEAT = 100;
+
+    private static final String OTHER = "11111111111111111111111111111111";
+
+    @Param({"baseline", "getStorage", "putStorage", "getBalance", "getCode", "log"})
+    public String callback;
+
+    private byte[] code;
+
+    private Address address = Address.wrap(RandomUtils.nextBytes(32));
+    private Address caller = Address.wrap(RandomUtils.nextBytes(32));
+    private DummyRepository repo;
+
+    @Setup
+    public void setup() {
+        String snippet;
+        switch (callback) {
+        case "baseline":
+            snippet = "600150"; // PUSH1 1, POP
+            break;
+        case "getStorage":
+            snippet = "60015450"; // PUSH1 1, SLOAD, POP
+            break;
+        case "putStorage":
+            snippet = "6001600155"; // PUSH1 1, PUSH1 1, SSTORE
+            break;
+        case "getBalance":
+            snippet = "6F" + OTHER + "6F" + OTHER + "3150"; // PUSH16, PUSH16, BALANCE, POP
+            break;
+        case "getCode":
+            snippet = "6F" + OTHER + "6F" + OTHER + "3B50"; // PUSH16, PUSH16, EXTCODESIZE, POP
+            break;
+        case "log":
+            snippet = "60006000A0"; // PUSH1 0, PUSH1 0, LOG0
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown callback: " + callback);
+        }
+        code = Hex.decode(StringUtils.repeat(snippet, REPEAT) + "00");
+
+        repo = new DummyRepository();
+        repo.addContract(address, code);
+        Address other = Address.wrap(Hex.decode(OTHER + OTHER));
+        repo.addContract(other, Hex.decode("00"));
+        repo.addBalance(other, BigInteger.ONE);
+
+        // compile the code before measuring
+        run();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REPEAT)
+    public ExecutionResult run() {
+        ExecutionContext ctx = new ExecutionContext(new byte[32], address, caller, caller, DataWord.ONE,
+                10_000_000L, DataWord.ZERO, new byte[0], 0, ExecutionContext.CALL, 0, caller, 1L, 0L,
+                10_000_000L, DataWord.ONE, new TransactionResult());
+        return new FastVM().run(code, ctx, repo);
+    }
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.fastvm;
+
+import org.aion.base.type.Address;
+import org.aion.base.util.ByteUtil;
+import org.aion.base.util.Hex;
+import org.aion.contract.ContractUtils;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.solidity.Abi;
+import org.aion.solidity.CompilationResult;
+import org.aion.solidity.Compiler;
+import org.aion.solidity.Compiler.Options;
+import org.aion.vm.ExecutionContext;
+import org.aion.vm.ExecutionResult;
+import org.aion.vm.TransactionResult;
+import org.apache.commons.lang3.RandomUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FastVM.run on compiled contracts, with the code already compiled
+ * by the jit (warm), and with code the jit has never seen (cold). The warm
+ * runs are also measured on several threads at once: as long as the cores
+ * aren't exhausted, the time per call stays that of a single thread.
+ *
+ * @author yulong
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FastVMBenchmark {
+
+    @Param({"Simple", "ERC20"})
+    public String contract;
+
+    private byte[] code;
+    private Abi abi;
+    private byte[] callData;
+
+    private Address address = Address.wrap(RandomUtils.nextBytes(32));
+    private Address caller = Address.wrap(RandomUtils.nextBytes(32));
+    private DummyRepository repo;
+
+    @Setup
+    public void setup() throws IOException {
+        switch (contract) {
+        case "Simple":
+            load("Simple.sol", "Simple");
+            callData = abi.findFunction(f -> f.name.equals("set")).encode(42);
+            break;
+        case "ERC20":
+            load("BenchmarkERC20.sol", "FixedSupplyToken");
+            callData = abi.findFunction(f -> f.name.equals("balanceOf")).encode(caller.toBytes());
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown contract: " + contract);
+        }
+
+        repo = new DummyRepository();
+        repo.addContract(address, code);
+    }
+
+    private void load(String fileName, String contractName) throws IOException {
+        Compiler.Result r = Compiler.getInstance().compile(ContractUtils.readContract(fileName), Options.ABI,
+                Options.BIN);
+        CompilationResult.Contract c = CompilationResult.parse(r.output).contracts.get(contractName);
+
+        String deployer = c.bin;
+        code = Hex.decode(deployer.substring(deployer.indexOf("60506040", 1)));
+        abi = Abi.fromJSON(c.abi);
+    }
+
+    @Benchmark
+    public ExecutionResult warm() {
+        return new FastVM().run(code, newContext(), repo);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public ExecutionResult warm2Threads() {
+        return warm();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ExecutionResult warm4Threads() {
+        return warm();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public ExecutionResult warm8Threads() {
+        return warm();
+    }
+
+    @Benchmark
+    public ExecutionResult cold() {
+        // unreachable trailing bytes give the code a hash the jit hasn't seen
+        byte[] fresh = ByteUtil.merge(code, new byte[]{0x00}, RandomUtils.nextBytes(8));
+        return new FastVM().run(fresh, newContext(), repo);
+    }
+
+    private ExecutionContext newContext() {
+        return new ExecutionContext(new byte[32], address, caller, caller, DataWord.ONE, 1_000_000L,
+                DataWord.ZERO, callData, 0, ExecutionContext.CALL, 0, caller, 1L, 0L, 5_000_000L,
+                DataWord.ONE, new TransactionResult());
+    }
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.solidity;
+
+import org.aion.contract.ContractUtils;
+import org.aion.solidity.Abi.Function;
+import org.aion.solidity.Compiler.Options;
+import org.apache.commons.lang3.RandomUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the ABI encoding of an ERC20 call and the decoding of its
+ * arguments.
+ *
+ * @author yulong
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AbiBenchmark {
+
+    private Function transfer;
+    private byte[] to = RandomUtils.nextBytes(32);
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        Compiler.Result r = Compiler.getInstance().compile(ContractUtils.readContract("BenchmarkERC20.sol"),
+                Options.ABI);
+        CompilationResult cr = CompilationResult.parse(r.output);
+        Abi abi = Abi.fromJSON(cr.contracts.get("FixedSupplyToken").abi);
+
+        transfer = abi.findFunction(f -> f.name.equals("transfer"));
+        encoded = transfer.encode(to, 100);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return transfer.encode(to, 100);
+    }
+
+    @Benchmark
+    public List<?> decode() {
+        return transfer.decode(encoded);
+    }
+}
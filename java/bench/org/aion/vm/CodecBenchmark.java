@@ -0,0 +1,78 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.mcf.vm.types.DataWord;
+import org.apache.commons.lang3.RandomUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the binary encoding of execution contexts and the decoding of
+ * execution results, which happen around every FastVM.run.
+ *
+ * @author yulong
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"0", "100", "10000"})
+    public int size;
+
+    private ExecutionContext ctx;
+    private byte[] result;
+
+    @Setup
+    public void setup() {
+        Address address = Address.wrap(RandomUtils.nextBytes(32));
+        ctx = new ExecutionContext(RandomUtils.nextBytes(32), address, address, address, DataWord.ONE, 1_000_000L,
+                DataWord.ZERO, RandomUtils.nextBytes(size), 0, ExecutionContext.CALL, 0, address, 1L, 0L,
+                5_000_000L, DataWord.ONE, new TransactionResult());
+        result = new ExecutionResult(ExecutionResult.Code.SUCCESS, 1000L, RandomUtils.nextBytes(size)).toBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeContext() {
+        return ctx.toBytes();
+    }
+
+    @Benchmark
+    public ExecutionResult parseResult() {
+        return ExecutionResult.parse(result);
+    }
+}
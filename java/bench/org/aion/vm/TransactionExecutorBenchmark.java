@@ -0,0 +1,99 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.base.util.ByteUtil;
+import org.aion.base.util.Hex;
+import org.aion.contract.ContractUtils;
+import org.aion.fastvm.DummyRepository;
+import org.aion.fastvm.TestUtils;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.impl.blockchain.AionTxExecSummary;
+import org.aion.zero.types.AionTransaction;
+import org.aion.zero.types.IAionBlock;
+import org.apache.commons.lang3.RandomUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures end-to-end transaction throughput: ERC20 transfers executed by the
+ * transaction executor against a dummy repository.
+ *
+ * @author yulong
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TransactionExecutorBenchmark {
+
+    private IAionBlock block = TestUtils.createDummyBlock();
+    private DummyRepository repo;
+
+    private Address owner = Address.wrap(RandomUtils.nextBytes(32));
+    private Address contract;
+
+    @Setup
+    public void setup() throws IOException {
+        repo = new DummyRepository();
+        repo.addBalance(owner, BigInteger.valueOf(Long.MAX_VALUE));
+
+        // deploy the token, owned by the sender
+        byte[] deployer = ContractUtils.getContractDeployer("BenchmarkERC20.sol", "FixedSupplyToken");
+        AionTransaction tx = new AionTransaction(nonce(), owner, null, DataWord.ZERO.getData(), deployer,
+                1_000_000L, 1L);
+        contract = tx.getContractAddress();
+
+        AionTxExecSummary summary = new TransactionExecutor(tx, block, repo).execute();
+        if (summary.isFailed()) {
+            throw new IllegalStateException("Failed to deploy the contract");
+        }
+    }
+
+    @Benchmark
+    public AionTxExecSummary transfer() {
+        // transfer(address,uint128) to a random recipient
+        byte[] data = ByteUtil.merge(Hex.decode("fbb001d6"), RandomUtils.nextBytes(32), DataWord.ONE.getData());
+        AionTransaction tx = new AionTransaction(nonce(), owner, contract, DataWord.ZERO.getData(), data,
+                1_000_000L, 1L);
+
+        return new TransactionExecutor(tx, block, repo).execute();
+    }
+
+    private byte[] nonce() {
+        return new DataWord(repo.getNonce(owner).longValue()).getData();
+    }
+}
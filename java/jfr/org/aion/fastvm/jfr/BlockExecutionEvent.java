@@ -0,0 +1,84 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.fastvm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.aion.fastvm.FastVMMetrics;
+import org.aion.vm.BlockExecutor;
+
+/**
+ * Flight recorder event of the execution of a block by {@link BlockExecutor},
+ * with the time the jit spent compiling and executing, and the time spent in
+ * callbacks, meanwhile. These come from process-wide counters, so they include
+ * anything else FastVM ran at the same time.
+ *
+ * @author yulong
+ */
+@Name("org.aion.vm.BlockExecution")
+@Label("Block Execution")
+@Category({"Aion", "FastVM"})
+@Description("Execution of the transactions of a block, and where the time went")
+@StackTrace(false)
+public class BlockExecutionEvent extends jdk.jfr.Event {
+
+    @Label("Block Number")
+    public long number;
+
+    @Label("Transactions")
+    public int transactions;
+
+    @Label("Re-executed Transactions")
+    public int reExecuted;
+
+    @Label("Compilations")
+    public long compilations;
+
+    @Label("Compile Time")
+    @Timespan
+    public long compileTime;
+
+    @Label("Execution Time")
+    @Description("Time of the outermost native executions, nested calls and callbacks included")
+    @Timespan
+    public long executionTime;
+
+    @Label("Callback Time")
+    @Description("Time of the measured JNI callbacks, if enabled")
+    @Timespan
+    public long callbackTime;
+
+    /**
+     * Fills the jit fields from the metrics of the block.
+     *
+     * @param m the difference of the metrics after and before the block
+     */
+    void set(FastVMMetrics m) {
+        compilations = m.getCompilations();
+        compileTime = m.getCompileTimeNanos();
+        executionTime = m.getPhaseTimeNanos(FastVMMetrics.Phase.EXECUTION);
+        callbackTime = m.getTotalCallbackTimeNanos();
+    }
+}
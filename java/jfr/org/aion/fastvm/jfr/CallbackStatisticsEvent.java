@@ -0,0 +1,81 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.fastvm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.aion.fastvm.FastVM;
+import org.aion.fastvm.FastVMMetrics;
+
+/**
+ * Flight recorder event with the cumulative metrics of one kind of callback,
+ * emitted periodically for each kind which was called. Callbacks are only
+ * measured while enabled, see {@link FastVM#setCallbackMetrics(boolean)}.
+ *
+ * @author yulong
+ */
+@Name("org.aion.fastvm.CallbackStatistics")
+@Label("JNI Callback Statistics")
+@Category({"Aion", "FastVM"})
+@Description("Round trips and latencies of a FastVM callback, since start")
+@Period("10 s")
+@StackTrace(false)
+public class CallbackStatisticsEvent extends jdk.jfr.Event {
+
+    @Label("Callback")
+    public String callback;
+
+    @Label("Count")
+    public long count;
+
+    @Label("Total Time")
+    @Timespan
+    public long totalTime;
+
+    @Label("Median Latency")
+    @Description("Upper bound of the median latency, in power-of-two buckets")
+    @Timespan
+    public long p50;
+
+    @Label("99th Percentile Latency")
+    @Description("Upper bound of the 99th percentile latency, in power-of-two buckets")
+    @Timespan
+    public long p99;
+
+    /**
+     * Fills the event from the given metrics.
+     *
+     * @param m
+     * @param kind
+     */
+    void set(FastVMMetrics m, FastVMMetrics.CallbackKind kind) {
+        callback = kind.name();
+        count = m.getCallbackCount(kind);
+        totalTime = m.getCallbackTimeNanos(kind);
+        p50 = m.getCallbackLatencyNanos(kind, 50);
+        p99 = m.getCallbackLatencyNanos(kind, 99);
+    }
+}
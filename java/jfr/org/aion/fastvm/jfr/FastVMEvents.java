@@ -0,0 +1,88 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.fastvm.jfr;
+
+import jdk.jfr.FlightRecorder;
+import org.aion.fastvm.FastVM;
+import org.aion.fastvm.FastVMMetrics;
+import org.aion.vm.BlockExecutionRecorder;
+
+/**
+ * Registers the flight recorder events of FastVM. They cost nothing unless a
+ * recording enables them.
+ * <p>
+ * These classes need <code>jdk.jfr</code>, so they're built separately, and
+ * loaded by {@link FastVM} only if they're present.
+ *
+ * @author yulong
+ */
+public final class FastVMEvents implements BlockExecutionRecorder {
+
+    private FastVMEvents() {
+    }
+
+    /**
+     * Registers the periodic events. Called once, by FastVM.
+     *
+     * @return the recorder of block executions
+     */
+    public static BlockExecutionRecorder register() {
+        FlightRecorder.addPeriodicEvent(JitStatisticsEvent.class, () -> {
+            JitStatisticsEvent event = new JitStatisticsEvent();
+            event.set(FastVM.getMetrics());
+            event.commit();
+        });
+
+        FlightRecorder.addPeriodicEvent(CallbackStatisticsEvent.class, () -> {
+            FastVMMetrics metrics = FastVM.getMetrics();
+            for (FastVMMetrics.CallbackKind kind : FastVMMetrics.CallbackKind.values()) {
+                if (metrics.getCallbackCount(kind) > 0) {
+                    CallbackStatisticsEvent event = new CallbackStatisticsEvent();
+                    event.set(metrics, kind);
+                    event.commit();
+                }
+            }
+        });
+
+        return new FastVMEvents();
+    }
+
+    @Override
+    public Recording begin(long number) {
+        BlockExecutionEvent event = new BlockExecutionEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+
+        FastVMMetrics before = FastVM.getMetrics();
+        event.begin();
+        return (transactions, reExecuted) -> {
+            event.end();
+            if (event.shouldCommit()) {
+                event.number = number;
+                event.transactions = transactions;
+                event.reExecuted = reExecuted;
+                event.set(FastVM.getMetrics().minus(before));
+                event.commit();
+            }
+        };
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.fastvm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.aion.fastvm.FastVMMetrics;
+
+/**
+ * Flight recorder event with the cumulative metrics of the jit, emitted
+ * periodically. See {@link FastVMMetrics}.
+ *
+ * @author yulong
+ */
+@Name("org.aion.fastvm.JitStatistics")
+@Label("JIT Statistics")
+@Category({"Aion", "FastVM"})
+@Description("Compilations, code map, object cache, code memory and executions of the FastVM jit, since start")
+@Period("10 s")
+@StackTrace(false)
+public class JitStatisticsEvent extends jdk.jfr.Event {
+
+    @Label("Compilations")
+    public long compilations;
+
+    @Label("Compile Failures")
+    public long compileFailures;
+
+    @Label("Compile Time")
+    @Timespan
+    public long compileTime;
+
+    @Label("Max Compile Time")
+    @Timespan
+    public long maxCompileTime;
+
+    @Label("Cache Load Time")
+    @Timespan
+    public long cacheLoadTime;
+
+    @Label("IR Generation Time")
+    @Timespan
+    public long compilationTime;
+
+    @Label("Optimization Time")
+    @Timespan
+    public long optimizationTime;
+
+    @Label("Code Generation Time")
+    @Timespan
+    public long codeGenTime;
+
+    @Label("Code Map Hits")
+    public long codeMapHits;
+
+    @Label("Code Map Misses")
+    public long codeMapMisses;
+
+    @Label("Cache Loads")
+    public long cacheLoads;
+
+    @Label("Cache Writes")
+    public long cacheWrites;
+
+    @Label("Cache Written")
+    @DataAmount
+    public long cacheWriteBytes;
+
+    @Label("Code Memory")
+    @DataAmount
+    public long codeMemory;
+
+    @Label("Codes Unloaded")
+    public long codesUnloaded;
+
+    @Label("Engines Released")
+    public long enginesReleased;
+
+    @Label("Executions")
+    public long executions;
+
+    @Label("Execution Time")
+    @Description("Time of the outermost native executions, nested calls and callbacks included")
+    @Timespan
+    public long executionTime;
+
+    /**
+     * Fills the event from the given metrics.
+     *
+     * @param m
+     */
+    void set(FastVMMetrics m) {
+        compilations = m.getCompilations();
+        compileFailures = m.getCompileFailures();
+        compileTime = m.getCompileTimeNanos();
+        maxCompileTime = m.getMaxCompileTimeNanos();
+        cacheLoadTime = m.getPhaseTimeNanos(FastVMMetrics.Phase.CACHE_LOAD);
+        compilationTime = m.getPhaseTimeNanos(FastVMMetrics.Phase.COMPILATION);
+        optimizationTime = m.getPhaseTimeNanos(FastVMMetrics.Phase.OPTIMIZATION);
+        codeGenTime = m.getPhaseTimeNanos(FastVMMetrics.Phase.CODE_GEN);
+        codeMapHits = m.getCodeMapHits();
+        codeMapMisses = m.getCodeMapMisses();
+        cacheLoads = m.getCacheLoads();
+        cacheWrites = m.getCacheWrites();
+        cacheWriteBytes = m.getCacheWriteBytes();
+        codeMemory = m.getCodeMemory();
+        codesUnloaded = m.getCodesUnloaded();
+        enginesReleased = m.getEnginesReleased();
+        executions = m.getExecutions();
+        executionTime = m.getPhaseTimeNanos(FastVMMetrics.Phase.EXECUTION);
+    }
+}
@@ -30,7 +30,6 @@ import org.aion.mcf.vm.Constants;
 import org.aion.vm.*;
 import org.aion.vm.ExecutionResult.Code;
 import org.aion.vm.PrecompiledContracts.PrecompiledContract;
-import org.aion.zero.types.AionInternalTx;
 import org.aion.mcf.vm.types.DataWord;
 import org.aion.mcf.vm.types.Log;
 import org.apache.commons.lang3.ArrayUtils;
@@ -45,8 +44,11 @@ import java.util.LinkedList;
 import java.util.List;
 
 /**
- * This class handles all callbacks from the JIT side. It is not thread-safe and
- * should be synchronized for parallel execution.
+ * This class handles all callbacks from the JIT side.
+ * <p>
+ * A native execution always calls back on the thread which started it, so the
+ * callback stack is kept per thread. Independent executions can run on
+ * different threads concurrently, as long as they don't share a repository.
  * <p>
  * All methods are static for better JNI performance.
  *
@@ -54,22 +56,72 @@ import java.util.List;
  */
 public class Callback {
 
-    private static LinkedList<Pair<ExecutionContext, IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>>>> stack = new LinkedList<>();
+    /*
+     * Fixed-size callback arguments and results are exchanged through a
+     * per-thread direct buffer, the mailbox, instead of byte arrays. The
+     * offsets must match the native side.
+     */
+    static final int MAILBOX_ADDRESS = 0;
+    static final int MAILBOX_ADDRESS2 = 32;
+    static final int MAILBOX_KEY = 64;
+    static final int MAILBOX_VALUE = 80;
+    static final int MAILBOX_HASH = 96;
+    static final int MAILBOX_TOPICS = 128;
+    static final int MAILBOX_SIZE = 256;
+
+    private static ThreadLocal<ByteBuffer> mailboxes = ThreadLocal.withInitial(() -> {
+        ByteBuffer mailbox = ByteBuffer.allocateDirect(MAILBOX_SIZE);
+        FastVM.setMailbox(mailbox);
+        return mailbox;
+    });
+
+    private static FastVM vm = new FastVM();
+
+    // whether internal transactions are recorded
+    private static volatile boolean recordInternalTxs = Boolean
+            .parseBoolean(System.getProperty("fastvm.internal.txs", "true"));
+
+    // the profiles storage accesses are recorded into, or null; kept in the given file across restarts
+    private static volatile StorageAccessProfiles accessProfiles = StorageAccessProfiles
+            .open(System.getProperty("fastvm.access.profiles"));
+
+    private static ThreadLocal<LinkedList<Pair<ExecutionContext, IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>>>>> stacks = ThreadLocal
+            .withInitial(LinkedList::new);
 
     /**
-     * Pushes a pair of context and repository into the callback stack.
+     * Pushes a pair of context and repository into the callback stack of the
+     * current thread.
      *
      * @param pair
      */
     public static void push(Pair<ExecutionContext, IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>>> pair) {
-        stack.push(pair);
+        stacks.get().push(pair);
     }
 
     /**
      * Pops the last <context, repository> pair
      */
     public static void pop() {
-        stack.pop();
+        stacks.get().pop();
+    }
+
+    /**
+     * Returns the callback stack of the current thread.
+     *
+     * @return
+     */
+    private static LinkedList<Pair<ExecutionContext, IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>>>> stack() {
+        return stacks.get();
+    }
+
+    /**
+     * Returns the number of executions in the callback stack of the current
+     * thread.
+     *
+     * @return
+     */
+    static int depth() {
+        return stack().size();
     }
 
     /**
@@ -78,7 +130,7 @@ public class Callback {
      * @return
      */
     public static ExecutionContext context() {
-        return stack.peek().getLeft();
+        return stack().peek().getLeft();
     }
 
     /**
@@ -87,112 +139,212 @@ public class Callback {
      * @return
      */
     public static IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo() {
-        return stack.peek().getRight();
+        return stack().peek().getRight();
     }
 
     /**
-     * Returns the hash of the given block.
+     * Returns the callback mailbox of the current thread, registering it with
+     * the native side on first use.
      *
-     * @param number
      * @return
      */
-    public static byte[] getBlockHash(long number) {
+    static ByteBuffer mailbox() {
+        return mailboxes.get();
+    }
+
+    private static Address readAddress(ByteBuffer mailbox, int offset) {
+        byte[] address = new byte[Address.ADDRESS_LEN];
+        mailbox.position(offset);
+        mailbox.get(address);
+        return Address.wrap(address);
+    }
+
+    private static DataWord readWord(ByteBuffer mailbox, int offset) {
+        byte[] word = new byte[DataWord.BYTES];
+        mailbox.position(offset);
+        mailbox.get(word);
+        return new DataWord(word);
+    }
+
+    private static void write(ByteBuffer mailbox, int offset, byte[] data) {
+        mailbox.position(offset);
+        mailbox.put(data);
+    }
+
+    /**
+     * Writes the hash of the given block into the mailbox.
+     *
+     * @param number
+     */
+    public static void getBlockHash(long number) {
         byte[] hash = repo().getBlockStore().getBlockHashByNumber(number);
-        return hash == null ? new byte[32] : hash;
+        write(mailbox(), MAILBOX_HASH, hash == null ? new byte[32] : hash);
     }
 
     /**
-     * Returns the code of a contract.
+     * Returns the code of the contract in the mailbox.
      *
-     * @param address
      * @return
      */
-    public static byte[] getCode(byte[] address) {
-        byte[] code = repo().getCode(Address.wrap(address));
+    public static byte[] getCode() {
+        byte[] code = repo().getCode(readAddress(mailbox(), MAILBOX_ADDRESS));
         return code == null ? new byte[0] : code;
     }
 
     /**
-     * Returns the balance of an account.
+     * Returns the code size of the contract in the mailbox.
      *
-     * @param address
      * @return
      */
-    public static byte[] getBalance(byte[] address) {
-        BigInteger balance = repo().getBalance(Address.wrap(address));
-        return balance == null ? DataWord.ZERO.getData() : new DataWord(balance).getData();
+    public static int getCodeSize() {
+        byte[] code = repo().getCode(readAddress(mailbox(), MAILBOX_ADDRESS));
+        return code == null ? 0 : code.length;
     }
 
     /**
-     * Returns whether an account exists.
+     * Writes the balance of the account in the mailbox into the mailbox.
+     */
+    public static void getBalance() {
+        ByteBuffer mailbox = mailbox();
+        BigInteger balance = repo().getBalance(readAddress(mailbox, MAILBOX_ADDRESS));
+        (balance == null ? new Uint128() : Uint128.of(balance)).writeTo(mailbox, MAILBOX_VALUE);
+    }
+
+    /**
+     * Returns whether the account in the mailbox exists.
      *
-     * @param address
      * @return
      */
-    public static boolean exists(byte[] address) {
-        return repo().hasAccountState(Address.wrap(address));
+    public static boolean exists() {
+        return repo().hasAccountState(readAddress(mailbox(), MAILBOX_ADDRESS));
+    }
+
+    /**
+     * Writes the value that is mapped to the key in the mailbox into the
+     * mailbox.
+     */
+    public static void getStorage() {
+        ByteBuffer mailbox = mailbox();
+        Address address = readAddress(mailbox, MAILBOX_ADDRESS);
+        DataWord key = readWord(mailbox, MAILBOX_KEY);
+        DataWord value = repo().getStorageValue(address, key);
+        write(mailbox, MAILBOX_VALUE, value == null ? DataWord.ZERO.getData() : value.getData());
+
+        recordStorageAccess(address, key);
     }
 
     /**
-     * Returns the value that is mapped to the given key.
+     * Sets the storage values written by a native execution. The batch is a
+     * sequence of records, each of which is an address, a key and a value.
      *
-     * @param address
-     * @param key
-     * @return
+     * @param batch
      */
-    public static byte[] getStorage(byte[] address, byte[] key) {
-        DataWord value = repo().getStorageValue(Address.wrap(address), new DataWord(key));
-        return value == null ? DataWord.ZERO.getData() : value.getData();
+    public static void putStorageBatch(byte[] batch) {
+        IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo = repo();
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+
+        Address address = null;
+        byte[] addr = new byte[Address.ADDRESS_LEN];
+        while (buffer.hasRemaining()) {
+            buffer.get(addr);
+            if (address == null || !Arrays.equals(address.toBytes(), addr)) {
+                address = Address.wrap(addr.clone());
+            }
+            byte[] key = new byte[DataWord.BYTES];
+            buffer.get(key);
+            byte[] value = new byte[DataWord.BYTES];
+            buffer.get(value);
+
+            DataWord k = new DataWord(key);
+            repo.addStorageRow(address, k, new DataWord(value));
+            recordStorageAccess(address, k);
+        }
     }
 
     /**
-     * Sets the value that is mapped to the given key.
+     * Starts an execution of the given code in the access profiles, if
+     * they're enabled.
+     *
+     * @param ctx
+     * @param codeHash the keccak hash of the code, or null if it isn't known
+     */
+    static void beginProfile(ExecutionContext ctx, byte[] codeHash) {
+        StorageAccessProfiles profiles = accessProfiles;
+        if (profiles != null && codeHash != null) {
+            profiles.begin(ctx, codeHash);
+        }
+    }
+
+    /**
+     * Ends an execution in the access profiles, if they're enabled.
+     *
+     * @param ctx
+     */
+    static void endProfile(ExecutionContext ctx) {
+        StorageAccessProfiles profiles = accessProfiles;
+        if (profiles != null) {
+            profiles.end(ctx);
+        }
+    }
+
+    /**
+     * Records a storage access of the current execution into the access
+     * profiles, if they're enabled.
      *
      * @param address
      * @param key
-     * @param value
      */
-    public static void putStorage(byte[] address, byte[] key, byte[] value) {
-        repo().addStorageRow(Address.wrap(address), new DataWord(key), new DataWord(value));
+    static void recordStorageAccess(Address address, DataWord key) {
+        StorageAccessProfiles profiles = accessProfiles;
+        if (profiles != null && address.equals(context().address())) {
+            profiles.record(context(), key);
+        }
+    }
+
+    /**
+     * Processes SELFDESTRUCT opcode. The owner and beneficiary are in the
+     * mailbox.
+     */
+    public static void selfDestruct() {
+        ByteBuffer mailbox = mailbox();
+        selfDestruct(readAddress(mailbox, MAILBOX_ADDRESS), readAddress(mailbox, MAILBOX_ADDRESS2));
     }
 
     /**
-     * Processes SELFDESTRUCT opcode.
+     * Transfers the balance of the owner to the beneficiary and marks the
+     * owner as deleted.
      *
      * @param owner
      * @param beneficiary
      */
-    public static void selfDestruct(byte[] owner, byte[] beneficiary) {
-        BigInteger balance = repo().getBalance(Address.wrap(owner));
-
-        newInternalTx(Address.wrap(owner), Address.wrap(beneficiary), repo().getNonce(Address.wrap(owner)), new DataWord(balance), ByteUtil.EMPTY_BYTE_ARRAY,
-                "selfdestruct");
+    static void selfDestruct(Address owner, Address beneficiary) {
+        BigInteger balance = repo().getBalance(owner);
 
-        repo().addBalance(Address.wrap(owner), balance.negate());
+        repo().addBalance(owner, balance.negate());
+        repo().addBalance(beneficiary, balance);
 
-        if (!owner.equals(beneficiary)) {
-            repo().addBalance(Address.wrap(beneficiary), balance);
-        }
-
-        context().result().addDeleteAccount(Address.wrap(owner));
+        context().result().addDeleteAccount(owner);
     }
 
     /**
-     * Processes LOG opcode.
+     * Processes LOG opcode. The address and topics are in the mailbox.
      *
-     * @param address
-     * @param topics
+     * @param numTopics
      * @param data
      */
-    public static void log(byte[] address, byte[] topics, byte[] data) {
-        List<byte[]> list = new ArrayList<>();
+    public static void log(int numTopics, byte[] data) {
+        ByteBuffer mailbox = mailbox();
+        Address address = readAddress(mailbox, MAILBOX_ADDRESS);
 
-        for (int i = 0; i < topics.length; i += 32) {
-            byte[] t = Arrays.copyOfRange(topics, i, i + 32);
+        List<byte[]> list = new ArrayList<>();
+        mailbox.position(MAILBOX_TOPICS);
+        for (int i = 0; i < numTopics; i++) {
+            byte[] t = new byte[32];
+            mailbox.get(t);
             list.add(t);
         }
 
-        context().result().addLog(new Log(Address.wrap(address), list, data));
+        context().result().addLog(new Log(address, list, data));
     }
 
     /**
@@ -210,8 +362,8 @@ public class Callback {
         }
 
         // check value
-        BigInteger endowment = ctx.callValue().value();
-        BigInteger callersBalance = repo().getBalance(ctx.caller());
+        Uint128 endowment = Uint128.of(ctx.callValue());
+        Uint128 callersBalance = Uint128.of(repo().getBalance(ctx.caller()));
         if (callersBalance.compareTo(endowment) < 0) {
             return new ExecutionResult(Code.FAILURE, 0).toBytes();
         }
@@ -224,6 +376,110 @@ public class Callback {
         }
     }
 
+    /**
+     * Executes a call without value into a stateless precompiled contract,
+     * such as the hash functions, whose address is in the mailbox. There's
+     * no state to track and no value to transfer, so the call is executed
+     * without a track and without recording an internal transaction.
+     *
+     * @param input the call data
+     * @param nrg   the nrg limit of the call
+     * @param depth the depth of the call
+     * @return the encoded execution result, or null if there's no stateless
+     * contract at the address and the call must go through {@link #call(byte[])}
+     */
+    public static byte[] callStateless(byte[] input, long nrg, int depth) {
+        ExecutionContext ctx = context();
+        PrecompiledContract pc = PrecompiledContracts.getStatelessContract(readAddress(mailbox(), MAILBOX_ADDRESS),
+                ctx.blockNumber());
+        if (pc == null) {
+            return null;
+        }
+        if (depth == Constants.MAX_CALL_DEPTH) {
+            return new ExecutionResult(Code.FAILURE, 0).toBytes();
+        }
+
+        ExecutionResult result = pc.execute(input, nrg);
+        if (result.getCode() != Code.SUCCESS) {
+            ctx.result().rejectInternalTransactions(); // reject all, as a failed call does
+        }
+        return result.toBytes();
+    }
+
+    /**
+     * Prepares a CALL/CALLCODE/DELEGATECALL which is executed by the native
+     * side itself, as long as the code of the callee is already compiled by
+     * the jit, rather than interpreted or waiting to be compiled. Value is
+     * transferred, the internal transaction is recorded, and the context and
+     * a new track are pushed into the callback stack, as in
+     * {@link #call(byte[])}. The code hash is written into the mailbox.
+     *
+     * @param message
+     * @return the code to execute natively, or null if the call must go
+     * through {@link #call(byte[])}
+     */
+    public static byte[] beginCall(byte[] message) {
+        ExecutionContext ctx = parseMessage(message);
+
+        if (ctx.kind() == ExecutionContext.CREATE || ctx.depth() == Constants.MAX_CALL_DEPTH
+                || PrecompiledContracts.isPrecompiled(ctx.address(), ctx.blockNumber())) {
+            return null;
+        }
+        Uint128 endowment = Uint128.of(ctx.callValue());
+        if (Uint128.of(repo().getBalance(ctx.caller())).compareTo(endowment) < 0) {
+            return null;
+        }
+
+        byte[] code = repo().hasAccountState(ctx.address()) ? repo().getCode(ctx.address()) : null;
+        byte[] codeHash = null;
+        if (ArrayUtils.isEmpty(code)) {
+            code = ByteUtil.EMPTY_BYTE_ARRAY;
+        } else {
+            codeHash = FastVM.codeHash(ctx.address(), code);
+            if (!FastVM.isCompiled(codeHash, ctx.flags())) {
+                return null;
+            }
+        }
+
+        IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> track = repo().startTracking();
+
+        // transfer balance
+        track.addBalance(ctx.caller(), endowment.toNegatedBigInteger());
+        track.addBalance(ctx.address(), endowment.toBigInteger());
+
+        // add internal transaction
+        if (recordInternalTxs) {
+            addInternalTx(ctx.caller(), ctx.address(), track.getNonce(ctx.caller()), ctx.callValue(), ctx.callData(),
+                    "call");
+        }
+
+        if (codeHash != null) {
+            write(mailbox(), MAILBOX_HASH, codeHash);
+        }
+        push(Pair.of(ctx, track));
+        beginProfile(ctx, codeHash);
+        return code;
+    }
+
+    /**
+     * Completes a call prepared by {@link #beginCall(byte[])}, after the
+     * native side executed it.
+     *
+     * @param success whether the execution succeeded
+     */
+    public static void endCall(boolean success) {
+        Pair<ExecutionContext, IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>>> pair = stack().pop();
+        endProfile(pair.getLeft());
+
+        if (!success) {
+            pair.getLeft().result().rejectInternalTransactions(); // reject all
+
+            pair.getRight().rollback();
+        } else {
+            pair.getRight().flush();
+        }
+    }
+
     /**
      * The method handles the CALL/CALLCODE/DELEGATECALL opcode.
      *
@@ -235,13 +491,15 @@ public class Callback {
         ExecutionResult result = new ExecutionResult(Code.SUCCESS, ctx.nrgLimit());
 
         // transfer balance
-        track.addBalance(ctx.caller(), ctx.callValue().value().negate());
-        track.addBalance(ctx.address(), ctx.callValue().value());
+        Uint128 endowment = Uint128.of(ctx.callValue());
+        track.addBalance(ctx.caller(), endowment.toNegatedBigInteger());
+        track.addBalance(ctx.address(), endowment.toBigInteger());
 
         // add internal transaction TODO: basic transaction cost?
-        AionInternalTx internalTx = newInternalTx(ctx.caller(), ctx.address(), track.getNonce(ctx.caller()),
-                ctx.callValue(), ctx.callData(), "call");
-        ctx.result().addInternalTransaction(internalTx);
+        if (recordInternalTxs) {
+            addInternalTx(ctx.caller(), ctx.address(), track.getNonce(ctx.caller()), ctx.callValue(), ctx.callData(),
+                    "call");
+        }
 
         PrecompiledContract pc = PrecompiledContracts.getPrecompiledContract(ctx.address(), track, ctx);
         if (pc != null) {
@@ -252,14 +510,12 @@ public class Callback {
 
             // execute transaction
             if (ArrayUtils.isNotEmpty(code)) {
-                FastVM jit = new FastVM();
-                result = jit.run(code, ctx, track);
+                result = vm.run(code, FastVM.codeHash(ctx.address(), code), ctx, track);
             }
         }
 
         // post execution
         if (result.getCode() != Code.SUCCESS) {
-            internalTx.reject();
             ctx.result().rejectInternalTransactions(); // reject all
 
             track.rollback();
@@ -293,23 +549,22 @@ public class Callback {
         // track.increaseNonce(newAddress);
 
         // transfer balance
-        track.addBalance(ctx.caller(), ctx.callValue().value().negate());
-        track.addBalance(newAddress, ctx.callValue().value());
+        Uint128 endowment = Uint128.of(ctx.callValue());
+        track.addBalance(ctx.caller(), endowment.toNegatedBigInteger());
+        track.addBalance(newAddress, endowment.toBigInteger());
 
         // add internal transaction TODO: basic transaction cost?
-        AionInternalTx internalTx = newInternalTx(ctx.caller(), null, track.getNonce(ctx.caller()), ctx.callValue(),
-                ctx.callData(), "create");
-        ctx.result().addInternalTransaction(internalTx);
+        if (recordInternalTxs) {
+            addInternalTx(ctx.caller(), null, track.getNonce(ctx.caller()), ctx.callValue(), ctx.callData(), "create");
+        }
 
         // execute transaction
         if (ArrayUtils.isNotEmpty(ctx.callData())) {
-            FastVM jit = new FastVM();
-            result = jit.run(ctx.callData(), ctx, track);
+            result = vm.run(ctx.callData(), ctx, track);
         }
 
         // post execution
         if (result.getCode() != Code.SUCCESS) {
-            internalTx.reject();
             ctx.result().rejectInternalTransactions(); // reject all
 
             track.rollback();
@@ -320,6 +575,9 @@ public class Callback {
                 return result;
             }
             byte[] code = result.getOutput();
+            if (code != null && code.length > 0) {
+                FastVM.deployed(newAddress, code);
+            }
             track.saveCode(newAddress, code == null ? new byte[0] : code);
 
             result.setOutput(newAddress.toBytes());
@@ -362,37 +620,58 @@ public class Callback {
         int kind = buffer.getInt();
         int flags = buffer.getInt();
 
-        Address blockCoinbase = prev.blockCoinbase();
-        long blockNumber = prev.blockNumber();
-        long blockTimestamp = prev.blockTimestamp();
-        long blockNrgLimit = prev.blockNrgLimit();
-        DataWord blockDifficulty = prev.blockDifficulty();
-
         TransactionResult txResult = prev.result();
 
         return new ExecutionContext(txHash, Address.wrap(address), origin, Address.wrap(caller), nrgPrice, nrgLimit, callValue, callData, depth,
-                kind, flags, blockCoinbase, blockNumber, blockTimestamp, blockNrgLimit, blockDifficulty, txResult);
+                kind, flags, prev.block(), txResult);
+    }
+
+    /**
+     * Sets whether internal transactions are recorded. Nodes which don't
+     * serve internal transactions can turn it off.
+     *
+     * @param record
+     */
+    public static void setRecordInternalTransactions(boolean record) {
+        recordInternalTxs = record;
+    }
+
+    /**
+     * Sets the profiles which storage accesses are recorded into, or null to
+     * stop recording.
+     *
+     * @param profiles
+     */
+    public static void setAccessProfiles(StorageAccessProfiles profiles) {
+        accessProfiles = profiles;
     }
 
     /**
-     * Creates a new internal transaction.
+     * Returns the profiles which storage accesses are recorded into, or null
+     * if they aren't recorded.
+     *
+     * @return
+     */
+    public static StorageAccessProfiles getAccessProfiles() {
+        return accessProfiles;
+    }
+
+    /**
+     * Records a new internal transaction in the trace of the current
+     * transaction. It's only built when it's asked for.
      *
      * @param from
      * @param to
+     * @param nonce
      * @param value
      * @param data
      * @param note
-     * @return
      */
-    private static AionInternalTx newInternalTx(Address from, Address to, BigInteger nonce, DataWord value, byte[] data,
-                                                String note) {
+    private static void addInternalTx(Address from, Address to, BigInteger nonce, DataWord value, byte[] data,
+                                      String note) {
         // TODO: heavily test internal transaction
 
-        byte[] parentHash = context().transactionHash();
-        int deep = stack.size();
-        int idx = context().result().getInternalTransactions().size();
-
-        return new AionInternalTx(parentHash, deep, idx, new DataWord(nonce).getData(), from, to, value.getData(), data,
-                note);
+        InternalTxTrace trace = context().result().getInternalTxTrace();
+        trace.add(context().transactionHash(), stack().size(), trace.size(), nonce, from, to, value, data, note);
     }
 }
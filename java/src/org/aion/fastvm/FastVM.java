@@ -21,17 +21,42 @@
 package org.aion.fastvm;
 
 import org.aion.base.db.IRepositoryCache;
+import org.aion.base.type.Address;
+import org.aion.base.util.ByteArrayWrapper;
 import org.aion.base.util.NativeLoader;
+import org.aion.crypto.HashUtil;
+import org.aion.log.AionLoggerFactory;
+import org.aion.log.LogEnum;
+import org.aion.vm.BlockContext;
+import org.aion.vm.BlockExecutionRecorder;
 import org.aion.mcf.core.AccountState;
 import org.aion.mcf.db.IBlockStoreBase;
 import org.aion.vm.ExecutionContext;
 import org.aion.vm.ExecutionResult;
+import org.aion.vm.ExecutionResult.Code;
+import org.aion.vm.PrecompiledContracts;
 import org.aion.vm.VirtualMachine;
 import org.aion.mcf.vm.types.DataWord;
 import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The FastVM implementation. It calls into the jit library via JNI.
+ * <p>
+ * Optionally, the first executions of each code are interpreted instead (see
+ * {@link Interpreter}), so that code executed only a few times doesn't pay
+ * for the compilation. With background compile threads, code which becomes
+ * hot keeps being interpreted until the jit has compiled it, so compilation
+ * stays off the executing thread.
  *
  * @author yulong
  */
@@ -45,12 +70,107 @@ public class FastVM implements VirtualMachine {
     public static int REVISION_AION = 5;
 
     public static int FLAG_STATIC = 1;
+    public static int FLAG_ASYNC_COMPILE = 2;
+
+    // initial capacity of the pooled context and result buffers
+    private static final int BUFFER_SIZE = 1024;
+
+    private static final Logger logger = AionLoggerFactory.getLogger(LogEnum.VM.name());
+
+    // the jit library keeps a single process-wide instance
+    private static long instance;
+
+    // the flight recorder events, if they're built and supported by the runtime, or null
+    private static BlockExecutionRecorder blockExecutionRecorder;
 
     static {
         NativeLoader.loadLibrary("fastvm");
         init();
+        setStatelessContracts(PrecompiledContracts.getStatelessActivations());
+        instance = create();
+
+        // machine code budget of the jit, in bytes
+        String codeCacheSize = System.getProperty("fastvm.code.cache.size");
+        if (codeCacheSize != null) {
+            setOption(instance, "code-cache-size", codeCacheSize);
+        }
+
+        // off-heap store of executed contract code, in bytes; 0 disables it
+        String codeStoreSize = System.getProperty("fastvm.code.store.size");
+        if (codeStoreSize != null) {
+            setCodeStoreSize(Long.parseLong(codeStoreSize));
+        }
+
+        // on-disk cache of compiled code: 0 (off), 1 (on), r (read only), w (write only), c (clear) or
+        // p (on, and load all cached code at the first execution)
+        String cacheDir = System.getProperty("fastvm.cache.dir");
+        if (cacheDir != null) {
+            setOption(instance, "cache-dir", cacheDir);
+        }
+        String cacheMode = System.getProperty("fastvm.cache");
+        if (cacheMode != null) {
+            setOption(instance, "cache", cacheMode);
+        }
+
+        int threads = Integer.getInteger("fastvm.compile.threads", 0);
+        if (threads > 0) {
+            setOption(instance, "compile-queue-size", Integer.getInteger("fastvm.compile.queue", 256).toString());
+            setOption(instance, "compile-threads", Integer.toString(threads));
+        }
+
+        // latencies of the JNI callbacks, off by default as they cost two clock reads per callback
+        if (Boolean.getBoolean("fastvm.metrics.callbacks")) {
+            setCallbackMetrics(true);
+        }
+        blockExecutionRecorder = registerEvents();
+    }
+
+    /**
+     * Registers the flight recorder events, which are built separately as
+     * they need <code>jdk.jfr</code>. Metrics must never keep FastVM from
+     * loading, so any failure only disables them.
+     */
+    private static BlockExecutionRecorder registerEvents() {
+        try {
+            return (BlockExecutionRecorder) Class.forName("org.aion.fastvm.jfr.FastVMEvents")
+                    .getMethod("register").invoke(null);
+        } catch (ClassNotFoundException e) {
+            return null; // built without the events
+        } catch (Throwable e) {
+            logger.warn("Flight recorder events are disabled", e);
+            return null;
+        }
     }
 
+    // executions of a code which are interpreted before it's compiled by the jit; 0 disables the interpreter
+    private static volatile int interpreterThreshold = Integer.getInteger("fastvm.interpreter.threshold", 0);
+
+    private static final int MAX_PROFILES = 16 * 1024;
+
+    private static Map<ByteArrayWrapper, CodeProfile> profiles = new ConcurrentHashMap<>();
+
+    private static final int MAX_CODE_HASHES = 16 * 1024;
+
+    private static Map<Address, CodeHash> codeHashes = Collections.synchronizedMap(
+            new LinkedHashMap<Address, CodeHash>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Address, CodeHash> eldest) {
+                    return size() > MAX_CODE_HASHES;
+                }
+            });
+
+    /**
+     * Context and result buffers of each nesting level, per thread. A nested
+     * CALL/CREATE runs while the caller's buffers are still in use, so every
+     * level has its own pair.
+     */
+    private static ThreadLocal<List<Frame>> frames = ThreadLocal.withInitial(ArrayList::new);
+
+    /**
+     * The block context last passed to the native side, per thread.
+     */
+    private static ThreadLocal<BlockContext> blocks = new ThreadLocal<>();
+
     /**
      * Creates a FastVM instance.
      */
@@ -60,13 +180,248 @@ public class FastVM implements VirtualMachine {
     @Override
     public ExecutionResult run(byte[] code, ExecutionContext ctx,
                                IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo) {
+        return run(code, null, ctx, repo);
+    }
+
+    /**
+     * Executes the given code, whose hash is already known. Code with a known
+     * hash is copied off-heap once, on its first execution, and later runs
+     * of it don't touch the array.
+     *
+     * @param code
+     * @param codeHash the keccak hash of the code (see {@link #codeHash}), or
+     *                 null to have it computed
+     * @param ctx
+     * @param repo
+     * @return
+     */
+    public ExecutionResult run(byte[] code, byte[] codeHash, ExecutionContext ctx,
+                               IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo) {
+        Callback.mailbox();
         Callback.push(Pair.of(ctx, repo));
-        long instance = create();
-        byte[] result = run(instance, code, ctx.toBytes(), REVISION_AION);
-        destroy(instance);
-        Callback.pop();
+        try {
+            if (codeHash == null && interpreterThreshold > 0) {
+                codeHash = HashUtil.keccak256(code);
+            }
+            Callback.beginProfile(ctx, codeHash);
+            CodeProfile profile = profile(code, codeHash);
+            if (profile != null && profile.isCold()) {
+                return new Interpreter(code, profile.analysis, ctx, repo).run();
+            }
+
+            BlockContext block = ctx.block();
+            if (blocks.get() != block) {
+                setBlockContext(block.toBytes());
+                blocks.set(block);
+            }
+
+            Frame frame = frame(Callback.depth() - 1, ctx.getEncodedSize());
+
+            ByteBuffer context = frame.context;
+            context.clear();
+            ctx.encode(context);
+
+            ByteBuffer result = frame.result;
+            result.clear();
+            int flags = profile != null ? FLAG_ASYNC_COMPILE : 0;
+            byte[] overflow = run(instance, code, codeHash, context, result, REVISION_AION, flags);
+
+            ExecutionResult res = overflow == null ? ExecutionResult.parse(result) : ExecutionResult.parse(overflow);
+            if (flags != 0 && res.getCode() == Code.INTERNAL_ERROR) {
+                // rejected by the jit, while the code is compiled in the background
+                return new Interpreter(code, profile.analysis, ctx, repo).run();
+            }
+            return res;
+        } finally {
+            Callback.endProfile(ctx);
+            Callback.pop();
+        }
+    }
+
+    /**
+     * Executes a batch of messages one after another, against the same
+     * repository, reusing the buffers of the calling thread.
+     *
+     * @param codes the code of each message
+     * @param ctxs  the context of each message
+     * @param repo  the repository
+     * @return the execution results, in order
+     */
+    public List<ExecutionResult> runBatch(List<byte[]> codes, List<ExecutionContext> ctxs,
+                                          IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo) {
+        if (codes.size() != ctxs.size()) {
+            throw new IllegalArgumentException("Number of codes and contexts doesn't match");
+        }
+
+        List<ExecutionResult> results = new ArrayList<>(ctxs.size());
+        for (int i = 0; i < ctxs.size(); i++) {
+            results.add(run(codes.get(i), ctxs.get(i), repo));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the keccak hash of the code of the given account, which
+     * identifies the code in the jit. The hash is memoized per account, for
+     * the code array it was computed of, or recorded when the code was
+     * deployed (see {@link #deployed}); a repository returning another
+     * array of the code has it hashed again.
+     *
+     * @param address
+     * @param code
+     * @return
+     */
+    public static byte[] codeHash(Address address, byte[] code) {
+        CodeHash entry = codeHashes.get(address);
+        if (entry != null && entry.code == code) {
+            return entry.hash;
+        }
+        return deployed(address, code);
+    }
+
+    /**
+     * Records the code saved to the given account by a contract creation,
+     * hashing it once for the calls that follow.
+     *
+     * @param address
+     * @param code    the code, as saved to the repository
+     * @return the keccak hash of the code
+     */
+    public static byte[] deployed(Address address, byte[] code) {
+        byte[] hash = HashUtil.keccak256(code);
+        codeHashes.put(address, new CodeHash(code, hash));
+        return hash;
+    }
+
+    private static class CodeHash {
+        final byte[] code;
+        final byte[] hash;
+
+        CodeHash(byte[] code, byte[] hash) {
+            this.code = code;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Sets the number of executions of a code which are interpreted, before
+     * the code is compiled by the jit. Zero disables the interpreter.
+     *
+     * @param threshold
+     */
+    public static void setInterpreterThreshold(int threshold) {
+        interpreterThreshold = threshold;
+        profiles.clear();
+    }
+
+    /**
+     * Returns whether the code of the given hash would run compiled on the
+     * jit, rather than be interpreted or compiled on the spot, when it's run
+     * next with the given flags: the interpreter is disabled, can't run the
+     * code, or the code is hot and the jit has compiled it. Doesn't count as
+     * an execution.
+     *
+     * @param codeHash the keccak hash of the code
+     * @param flags    the execution flags
+     * @return
+     */
+    static boolean isCompiled(byte[] codeHash, int flags) {
+        if (interpreterThreshold <= 0) {
+            return true;
+        }
+
+        CodeProfile profile = profiles.get(new ByteArrayWrapper(codeHash));
+        if (profile == null) {
+            return false;
+        }
+        return profile.analysis == null || (profile.hot && isJitCompiled(codeHash, REVISION_AION, flags));
+    }
+
+    /**
+     * Returns the profile of the given code, looked up by its hash, or null
+     * if the interpreter is disabled or can't run the code.
+     */
+    private static CodeProfile profile(byte[] code, byte[] codeHash) {
+        if (interpreterThreshold <= 0) {
+            return null;
+        }
+
+        if (profiles.size() >= MAX_PROFILES) {
+            profiles.clear();
+        }
+        CodeProfile profile = profiles.computeIfAbsent(new ByteArrayWrapper(codeHash),
+                k -> new CodeProfile(Interpreter.analyze(code)));
+
+        return profile.analysis == null ? null : profile;
+    }
+
+    private static class CodeProfile {
+        final Interpreter.Analysis analysis;
+        final AtomicInteger hits = new AtomicInteger();
+        volatile boolean hot;
+
+        CodeProfile(Interpreter.Analysis analysis) {
+            this.analysis = analysis;
+        }
+
+        /**
+         * Counts an execution, and returns whether it should be interpreted.
+         */
+        boolean isCold() {
+            if (hot) {
+                return false;
+            }
+            if (hits.incrementAndGet() > interpreterThreshold) {
+                hot = true;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the buffers of the given nesting level, with a context buffer
+     * of at least the given size.
+     */
+    private static Frame frame(int level, int contextSize) {
+        List<Frame> list = frames.get();
+        while (list.size() <= level) {
+            list.add(new Frame());
+        }
+
+        Frame frame = list.get(level);
+        if (frame.context.capacity() < contextSize) {
+            frame.context = ByteBuffer.allocateDirect(Math.max(contextSize, 2 * frame.context.capacity()));
+        }
+        return frame;
+    }
+
+    private static class Frame {
+        ByteBuffer context = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        ByteBuffer result = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
 
-        return ExecutionResult.parse(result);
+    /**
+     * Returns the recorder of block executions, or null if the flight
+     * recorder events aren't available.
+     *
+     * @return
+     */
+    public static BlockExecutionRecorder getBlockExecutionRecorder() {
+        return blockExecutionRecorder;
+    }
+
+    /**
+     * Returns a snapshot of the metrics of the jit and of the callbacks.
+     *
+     * @return
+     */
+    public static FastVMMetrics getMetrics() {
+        long[] jit = new long[FastVMMetrics.JIT_METRICS];
+        getJitMetrics(jit);
+        long[] callbacks = new long[FastVMMetrics.CALLBACK_METRICS_SIZE];
+        getCallbackMetrics(callbacks);
+        return new FastVMMetrics(jit, callbacks);
     }
 
     /**
@@ -75,27 +430,104 @@ public class FastVM implements VirtualMachine {
     private native static void init();
 
     /**
-     * Creates a new VM instance.
+     * Tells the native side from which block each reserved address has a
+     * stateless precompiled contract, so that other calls into the reserved
+     * range skip Callback.callStateless.
+     *
+     * @param fromBlocks see {@link PrecompiledContracts#getStatelessActivations()}
+     */
+    private native static void setStatelessContracts(long[] fromBlocks);
+
+    /**
+     * Registers the callback mailbox of the current thread.
+     *
+     * @param mailbox a direct buffer of at least {@link Callback#MAILBOX_SIZE}
+     *                bytes
+     */
+    native static void setMailbox(ByteBuffer mailbox);
+
+    /**
+     * Sets the block context of the executions on the current thread.
+     *
+     * @param block the encoded block context, see {@link BlockContext}
+     */
+    private native static void setBlockContext(byte[] block);
+
+    /**
+     * Returns the VM instance.
      *
      * @return instance
      */
     private native static long create();
 
     /**
-     * Executes the given code and returns the execution results.
+     * Sets an option of the VM instance.
      *
      * @param instance
-     * @param code
-     * @param context
+     * @param name
+     * @param value
+     * @return whether the option was set
+     */
+    private native static boolean setOption(long instance, String name, String value);
+
+    /**
+     * Sets the capacity of the off-heap code store.
+     *
+     * @param size capacity in bytes, 0 disables the store
+     */
+    private native static void setCodeStoreSize(long size);
+
+    /**
+     * Returns whether the jit has the code of the given hash compiled, for the
+     * given revision and flags. Doesn't compile it nor count as an execution.
+     *
+     * @param codeHash
      * @param revision
+     * @param flags
      * @return
      */
-    private native static byte[] run(long instance, byte[] code, byte[] context, int revision);
+    private native static boolean isJitCompiled(byte[] codeHash, int revision, int flags);
+
+    /**
+     * Sets whether the counts and latencies of the callbacks are measured.
+     *
+     * @param enabled
+     */
+    public native static void setCallbackMetrics(boolean enabled);
+
+    /**
+     * Copies the metrics of the jit into the given array, in the order of
+     * the native side.
+     *
+     * @param out
+     * @return the number of metrics, which may exceed the array length
+     */
+    private native static int getJitMetrics(long[] out);
+
+    /**
+     * Copies the metrics of the callbacks into the given array: for each
+     * callback, the count, the total time and the latency buckets.
+     *
+     * @param out
+     * @return the number of values, which may exceed the array length
+     */
+    private native static int getCallbackMetrics(long[] out);
 
     /**
-     * Destroys the given VM instance.
+     * Executes the given code. The encoded result is written into the result
+     * buffer if it fits; otherwise it's returned as a byte array.
      *
      * @param instance
+     * @param code
+     * @param codeHash the keccak hash of the code, which looks it up in the code
+     *                 store, or null to compute it
+     * @param context  direct buffer holding the encoded context, without the
+     *                 block fields
+     * @param result   direct buffer receiving the encoded result
+     * @param revision
+     * @param flags    message flags in addition to those of the context
+     * @return null, or the encoded result if it doesn't fit into the buffer
      */
-    private native static void destroy(long instance);
+    private native static byte[] run(long instance, byte[] code, byte[] codeHash, ByteBuffer context,
+                                     ByteBuffer result, int revision, int flags);
 }
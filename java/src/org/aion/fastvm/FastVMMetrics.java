@@ -0,0 +1,399 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.fastvm;
+
+import java.util.Arrays;
+
+/**
+ * A snapshot of the process-wide metrics of FastVM: the compilations of the
+ * jit and their phases, the code map and object cache, the memory of the
+ * compiled code, the native executions, and the JNI callbacks. All counters
+ * are cumulative since the start of the process; the difference of two
+ * snapshots (see {@link #minus}) gives the activity in between. Times are in
+ * nanoseconds and sizes in bytes.
+ * <p>
+ * Callbacks are only measured while enabled (see
+ * {@link FastVM#setCallbackMetrics(boolean)}). Their times include what the
+ * Java side does, e.g. the nested execution of a call.
+ *
+ * @author yulong
+ */
+public class FastVMMetrics {
+
+    /**
+     * Phases of the jit.
+     */
+    public enum Phase {
+        /**
+         * Lookups of the on-disk object cache.
+         */
+        CACHE_LOAD,
+        /**
+         * Generation of LLVM IR.
+         */
+        COMPILATION,
+        /**
+         * Optimization of LLVM IR.
+         */
+        OPTIMIZATION,
+        /**
+         * Generation of machine code.
+         */
+        CODE_GEN,
+        /**
+         * Outermost native executions, nested calls and callbacks included.
+         */
+        EXECUTION
+    }
+
+    /**
+     * Callbacks from the native side. The order matches the native side.
+     */
+    public enum CallbackKind {
+        EXISTS, GET_BALANCE, GET_CODE, GET_CODE_SIZE, GET_STORAGE, PUT_STORAGE_BATCH, GET_BLOCK_HASH,
+        SELFDESTRUCT, LOG, CALL, BEGIN_CALL, END_CALL
+    }
+
+    /**
+     * Number of latency buckets per callback; bucket i counts the callbacks
+     * which took [2^i, 2^(i+1)) ns, the last one everything above.
+     */
+    public static final int LATENCY_BUCKETS = 32;
+
+    // layout of the jit metrics, see JITMetric in libevmjit
+    private static final int COMPILATIONS = 0;
+    private static final int COMPILE_FAILURES = 1;
+    private static final int COMPILE_TIME = 2;
+    private static final int COMPILE_TIME_MAX = 3;
+    private static final int CACHE_LOAD_TIME = 4;
+    private static final int COMPILATION_TIME = 5;
+    private static final int OPTIMIZATION_TIME = 6;
+    private static final int CODE_GEN_TIME = 7;
+    private static final int CODE_MAP_HITS = 8;
+    private static final int CODE_MAP_MISSES = 9;
+    private static final int CACHE_LOADS = 10;
+    private static final int CACHE_WRITES = 11;
+    private static final int CACHE_WRITE_BYTES = 12;
+    private static final int CODE_MEMORY = 13;
+    private static final int CODE_MEMORY_TOTAL = 14;
+    private static final int CODES_UNLOADED = 15;
+    private static final int ENGINES_RELEASED = 16;
+    private static final int EXECUTIONS = 17;
+    private static final int EXECUTION_TIME = 18;
+
+    static final int JIT_METRICS = 19;
+
+    // layout of the metrics of each callback: count, time, latency buckets
+    private static final int CALLBACK_COUNT = 0;
+    private static final int CALLBACK_TIME = 1;
+    private static final int CALLBACK_BUCKETS = 2;
+    private static final int CALLBACK_METRICS = 2 + LATENCY_BUCKETS;
+
+    static final int CALLBACK_METRICS_SIZE = CallbackKind.values().length * CALLBACK_METRICS;
+
+    private final long[] jit;
+    private final long[] callbacks;
+
+    /**
+     * Creates a snapshot of the given raw metrics.
+     *
+     * @param jit       the jit metrics, in native order
+     * @param callbacks the callback metrics, in native order
+     */
+    FastVMMetrics(long[] jit, long[] callbacks) {
+        if (jit.length != JIT_METRICS || callbacks.length != CALLBACK_METRICS_SIZE) {
+            throw new IllegalArgumentException("Invalid metrics: " + jit.length + ", " + callbacks.length);
+        }
+        this.jit = jit;
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * Returns the activity between an earlier snapshot and this one. Gauges,
+     * the code memory and the maximum compile time, are those of this
+     * snapshot.
+     *
+     * @param earlier
+     * @return
+     */
+    public FastVMMetrics minus(FastVMMetrics earlier) {
+        long[] j = new long[JIT_METRICS];
+        for (int i = 0; i < j.length; i++) {
+            j[i] = jit[i] - earlier.jit[i];
+        }
+        j[CODE_MEMORY] = jit[CODE_MEMORY];
+        j[COMPILE_TIME_MAX] = jit[COMPILE_TIME_MAX];
+
+        long[] c = new long[CALLBACK_METRICS_SIZE];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = callbacks[i] - earlier.callbacks[i];
+        }
+        return new FastVMMetrics(j, c);
+    }
+
+    /**
+     * Returns the number of codes compiled, or loaded from the object cache.
+     *
+     * @return
+     */
+    public long getCompilations() {
+        return jit[COMPILATIONS];
+    }
+
+    /**
+     * Returns the number of compilations which failed.
+     *
+     * @return
+     */
+    public long getCompileFailures() {
+        return jit[COMPILE_FAILURES];
+    }
+
+    /**
+     * Returns the total time of the compilations.
+     *
+     * @return
+     */
+    public long getCompileTimeNanos() {
+        return jit[COMPILE_TIME];
+    }
+
+    /**
+     * Returns the longest compilation so far.
+     *
+     * @return
+     */
+    public long getMaxCompileTimeNanos() {
+        return jit[COMPILE_TIME_MAX];
+    }
+
+    /**
+     * Returns the total time of the given phase.
+     *
+     * @param phase
+     * @return
+     */
+    public long getPhaseTimeNanos(Phase phase) {
+        switch (phase) {
+        case CACHE_LOAD:
+            return jit[CACHE_LOAD_TIME];
+        case COMPILATION:
+            return jit[COMPILATION_TIME];
+        case OPTIMIZATION:
+            return jit[OPTIMIZATION_TIME];
+        case CODE_GEN:
+            return jit[CODE_GEN_TIME];
+        case EXECUTION:
+            return jit[EXECUTION_TIME];
+        default:
+            throw new IllegalArgumentException("Unknown phase: " + phase);
+        }
+    }
+
+    /**
+     * Returns the number of native executions whose code was compiled
+     * already.
+     *
+     * @return
+     */
+    public long getCodeMapHits() {
+        return jit[CODE_MAP_HITS];
+    }
+
+    /**
+     * Returns the number of native executions whose code wasn't compiled
+     * yet.
+     *
+     * @return
+     */
+    public long getCodeMapMisses() {
+        return jit[CODE_MAP_MISSES];
+    }
+
+    /**
+     * Returns the fraction of native executions whose code was compiled
+     * already, or 0 if there was none.
+     *
+     * @return
+     */
+    public double getCodeMapHitRate() {
+        long total = getCodeMapHits() + getCodeMapMisses();
+        return total == 0 ? 0 : (double) getCodeMapHits() / total;
+    }
+
+    /**
+     * Returns the number of objects loaded from the on-disk object cache.
+     *
+     * @return
+     */
+    public long getCacheLoads() {
+        return jit[CACHE_LOADS];
+    }
+
+    /**
+     * Returns the number of objects written to the on-disk object cache.
+     *
+     * @return
+     */
+    public long getCacheWrites() {
+        return jit[CACHE_WRITES];
+    }
+
+    /**
+     * Returns the size of the objects written to the on-disk object cache.
+     *
+     * @return
+     */
+    public long getCacheWriteBytes() {
+        return jit[CACHE_WRITE_BYTES];
+    }
+
+    /**
+     * Returns the size of the machine code of the codes currently loaded.
+     *
+     * @return
+     */
+    public long getCodeMemory() {
+        return jit[CODE_MEMORY];
+    }
+
+    /**
+     * Returns the size of all the machine code generated or loaded.
+     *
+     * @return
+     */
+    public long getTotalCodeMemory() {
+        return jit[CODE_MEMORY_TOTAL];
+    }
+
+    /**
+     * Returns the number of codes unloaded to keep the code cache within
+     * its budget.
+     *
+     * @return
+     */
+    public long getCodesUnloaded() {
+        return jit[CODES_UNLOADED];
+    }
+
+    /**
+     * Returns the number of execution engines released, after their code
+     * was unloaded.
+     *
+     * @return
+     */
+    public long getEnginesReleased() {
+        return jit[ENGINES_RELEASED];
+    }
+
+    /**
+     * Returns the number of outermost native executions.
+     *
+     * @return
+     */
+    public long getExecutions() {
+        return jit[EXECUTIONS];
+    }
+
+    /**
+     * Returns the number of round trips of the given callback.
+     *
+     * @param kind
+     * @return
+     */
+    public long getCallbackCount(CallbackKind kind) {
+        return callbacks[kind.ordinal() * CALLBACK_METRICS + CALLBACK_COUNT];
+    }
+
+    /**
+     * Returns the total time of the given callback.
+     *
+     * @param kind
+     * @return
+     */
+    public long getCallbackTimeNanos(CallbackKind kind) {
+        return callbacks[kind.ordinal() * CALLBACK_METRICS + CALLBACK_TIME];
+    }
+
+    /**
+     * Returns the total time of all callbacks. Nested callbacks, e.g. within
+     * a call, are counted in both.
+     *
+     * @return
+     */
+    public long getTotalCallbackTimeNanos() {
+        long total = 0;
+        for (CallbackKind kind : CallbackKind.values()) {
+            total += getCallbackTimeNanos(kind);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the latency histogram of the given callback, see
+     * {@link #LATENCY_BUCKETS}.
+     *
+     * @param kind
+     * @return
+     */
+    public long[] getCallbackLatencies(CallbackKind kind) {
+        int from = kind.ordinal() * CALLBACK_METRICS + CALLBACK_BUCKETS;
+        return Arrays.copyOfRange(callbacks, from, from + LATENCY_BUCKETS);
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of the latency of the
+     * given callback, i.e. the end of the bucket it falls into, or 0 if the
+     * callback wasn't measured.
+     *
+     * @param kind
+     * @param percentile between 0 and 100
+     * @return
+     */
+    public long getCallbackLatencyNanos(CallbackKind kind, double percentile) {
+        long[] buckets = getCallbackLatencies(kind);
+        long total = 0;
+        for (long n : buckets) {
+            total += n;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length - 1; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return 1L << (i + 1);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return "FastVMMetrics{compilations=" + getCompilations() + ", compileTimeNanos=" + getCompileTimeNanos()
+                + ", codeMapHitRate=" + getCodeMapHitRate() + ", codeMemory=" + getCodeMemory()
+                + ", executions=" + getExecutions() + ", executionTimeNanos=" + getPhaseTimeNanos(Phase.EXECUTION)
+                + ", callbackTimeNanos=" + getTotalCallbackTimeNanos() + "}";
+    }
+}
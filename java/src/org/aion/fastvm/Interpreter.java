@@ -0,0 +1,873 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.fastvm;
+
+import org.aion.base.db.IRepositoryCache;
+import org.aion.base.type.Address;
+import org.aion.crypto.HashUtil;
+import org.aion.mcf.core.AccountState;
+import org.aion.mcf.db.IBlockStoreBase;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.mcf.vm.types.Log;
+import org.aion.vm.ExecutionContext;
+import org.aion.vm.ExecutionResult;
+import org.aion.vm.ExecutionResult.Code;
+import org.aion.vm.Instruction;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A bytecode interpreter, the first execution tier of FastVM. Cold code is
+ * interpreted, so that it doesn't pay for the LLVM compilation; the code is
+ * handed over to the jit once it's hot.
+ * <p>
+ * The semantics follow libevmjit for the Aion revision: 128-bit stack items,
+ * addresses and hashes taking two items, memory charged in 32-byte words, and
+ * all failures reported as out of energy. Code which makes message calls or
+ * creates contracts is not interpreted, see {@link #analyze(byte[])}.
+ * <p>
+ * An interpreter instance executes one message and is not thread-safe.
+ *
+ * @author yulong
+ */
+public class Interpreter {
+
+    private static final int STACK_LIMIT = 1024;
+
+    // largest memory offset or size which is charged normally
+    private static final long MEMORY_INPUT_MAX = 1L << 33;
+
+    private static final BigInteger TWO_128 = BigInteger.ONE.shiftLeft(128);
+
+    private static final OutOfNrg OUT_OF_NRG = new OutOfNrg();
+
+    private byte[] code;
+    private Analysis analysis;
+    private ExecutionContext ctx;
+    private IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo;
+
+    private long nrg;
+
+    // stack items, as high and low 64 bits
+    private long[] hi = new long[STACK_LIMIT];
+    private long[] lo = new long[STACK_LIMIT];
+    private int sp = 0;
+
+    private byte[] memory = new byte[0];
+    private int memorySize = 0;
+
+    /**
+     * Creates an interpreter for one message.
+     *
+     * @param code     the code to execute
+     * @param analysis analysis of the code, see {@link #analyze(byte[])}
+     * @param ctx      the execution context
+     * @param repo     the repository
+     */
+    public Interpreter(byte[] code, Analysis analysis, ExecutionContext ctx,
+                       IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo) {
+        this.code = code;
+        this.analysis = analysis;
+        this.ctx = ctx;
+        this.repo = repo;
+        this.nrg = ctx.nrgLimit();
+    }
+
+    /**
+     * Analyzes the given code, and returns its jump destinations and cost
+     * blocks if the code can be interpreted, or null if it must be executed by
+     * the jit.
+     * <p>
+     * Only reachable instructions are considered: the bytes following a
+     * terminating instruction are skipped up to the next JUMPDEST, like the
+     * jit does.
+     *
+     * @param code
+     * @return
+     */
+    public static Analysis analyze(byte[] code) {
+        BitSet jumpdests = new BitSet(code.length);
+        List<Integer> blocks = new ArrayList<>();
+        List<Long> costs = new ArrayList<>();
+
+        boolean dead = false;
+        boolean start = true;
+        for (int pc = 0; pc < code.length; pc = next(code, pc)) {
+            Instruction inst = Instruction.of(code[pc]);
+
+            if (inst == Instruction.JUMPDEST) {
+                jumpdests.set(pc);
+                dead = false;
+                start = true;
+            }
+            if (dead) {
+                continue;
+            }
+            if (start) {
+                blocks.add(pc);
+                costs.add(0L);
+                start = false;
+            }
+
+            if (inst == null) {
+                dead = true; // execution can't continue past an invalid instruction
+                continue;
+            }
+            costs.set(costs.size() - 1, costs.get(costs.size() - 1) + stepCost(inst));
+
+            switch (inst) {
+            case CALL:
+            case CALLCODE:
+            case DELEGATECALL:
+            case STATICCALL:
+            case CREATE:
+            case RETURNDATASIZE:
+            case RETURNDATACOPY:
+            case GASPRICE:
+                return null;
+            case JUMP:
+            case RETURN:
+            case REVERT:
+            case STOP:
+            case SELFDESTRUCT:
+                dead = true;
+                start = true;
+                break;
+            case JUMPI:
+            case GAS:
+                // GAS reports the energy left after the cost of its block
+                start = true;
+                break;
+            default:
+                break;
+            }
+        }
+
+        return new Analysis(jumpdests, blocks.stream().mapToInt(Integer::intValue).toArray(),
+                costs.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    private static int next(byte[] code, int pc) {
+        int op = code[pc] & 0xff;
+        if (op >= (Instruction.PUSH1.code() & 0xff) && op <= (Instruction.PUSH32.code() & 0xff)) {
+            return pc + 1 + Math.min(op - (Instruction.PUSH1.code() & 0xff) + 1, code.length - pc - 1);
+        }
+        return pc + 1;
+    }
+
+    /**
+     * Executes the code.
+     *
+     * @return
+     */
+    public ExecutionResult run() {
+        try {
+            return execute();
+        } catch (OutOfNrg e) {
+            return new ExecutionResult(Code.OUT_OF_NRG, 0);
+        }
+    }
+
+    private ExecutionResult execute() {
+        boolean isStatic = (ctx.flags() & FastVM.FLAG_STATIC) != 0;
+
+        // the static costs are charged per block on entry, like the jit does
+        int[] blocks = analysis.blocks;
+        int block = 0;
+        if (blocks.length > 0) {
+            use(analysis.costs[0]);
+        }
+
+        int pc = 0;
+        while (pc < code.length) {
+            Instruction inst = Instruction.of(code[pc]);
+            if (inst == null) {
+                throw OUT_OF_NRG;
+            }
+
+            int next = pc + 1;
+            boolean jumped = false;
+
+            switch (inst) {
+            case STOP:
+                return new ExecutionResult(Code.SUCCESS, nrg);
+
+            case ADD: {
+                need(2);
+                long aHi = hi[sp - 1], aLo = lo[sp - 1];
+                pop();
+                long bHi = hi[sp - 1], bLo = lo[sp - 1];
+                long rLo = aLo + bLo;
+                long carry = Long.compareUnsigned(rLo, aLo) < 0 ? 1 : 0;
+                set(aHi + bHi + carry, rLo);
+                break;
+            }
+            case SUB: {
+                need(2);
+                long aHi = hi[sp - 1], aLo = lo[sp - 1];
+                pop();
+                long bHi = hi[sp - 1], bLo = lo[sp - 1];
+                long borrow = Long.compareUnsigned(aLo, bLo) < 0 ? 1 : 0;
+                set(aHi - bHi - borrow, aLo - bLo);
+                break;
+            }
+            case MUL: {
+                need(2);
+                long aHi = hi[sp - 1], aLo = lo[sp - 1];
+                pop();
+                long bHi = hi[sp - 1], bLo = lo[sp - 1];
+                set(unsignedMultiplyHigh(aLo, bLo) + aLo * bHi + aHi * bLo, aLo * bLo);
+                break;
+            }
+            case DIV: {
+                BigInteger d = popUnsigned(), n = popUnsigned();
+                push(n.signum() == 0 ? BigInteger.ZERO : d.divide(n));
+                break;
+            }
+            case SDIV: {
+                BigInteger d = popSigned(), n = popSigned();
+                push(n.signum() == 0 ? BigInteger.ZERO : d.divide(n));
+                break;
+            }
+            case MOD: {
+                BigInteger d = popUnsigned(), n = popUnsigned();
+                push(n.signum() == 0 ? BigInteger.ZERO : d.mod(n));
+                break;
+            }
+            case SMOD: {
+                BigInteger d = popSigned(), n = popSigned();
+                push(n.signum() == 0 ? BigInteger.ZERO : d.remainder(n));
+                break;
+            }
+            case ADDMOD: {
+                BigInteger a = popUnsigned(), b = popUnsigned(), m = popUnsigned();
+                push(m.signum() == 0 ? BigInteger.ZERO : a.add(b).mod(m));
+                break;
+            }
+            case MULMOD: {
+                BigInteger a = popUnsigned(), b = popUnsigned(), m = popUnsigned();
+                push(m.signum() == 0 ? BigInteger.ZERO : a.multiply(b).mod(m));
+                break;
+            }
+            case EXP: {
+                BigInteger base = popUnsigned(), exponent = popUnsigned();
+                use((exponent.bitLength() + 7) / 8);
+                push(base.modPow(exponent, TWO_128));
+                break;
+            }
+            case SIGNEXTEND: {
+                BigInteger idx = popUnsigned();
+                BigInteger word = popUnsigned();
+                if (idx.compareTo(BigInteger.valueOf(14)) <= 0) {
+                    int bitpos = idx.intValue() * 8 + 7;
+                    BigInteger mask = BigInteger.ONE.shiftLeft(bitpos).subtract(BigInteger.ONE);
+                    word = word.testBit(bitpos) ? word.or(mask.not()) : word.and(mask);
+                }
+                push(word);
+                break;
+            }
+
+            case LT:
+            case GT:
+            case SLT:
+            case SGT:
+            case EQ: {
+                need(2);
+                long aHi = hi[sp - 1], aLo = lo[sp - 1];
+                pop();
+                long bHi = hi[sp - 1], bLo = lo[sp - 1];
+                int cmp;
+                if (inst == Instruction.SLT || inst == Instruction.SGT) {
+                    cmp = aHi != bHi ? Long.compare(aHi, bHi) : Long.compareUnsigned(aLo, bLo);
+                } else {
+                    cmp = aHi != bHi ? Long.compareUnsigned(aHi, bHi) : Long.compareUnsigned(aLo, bLo);
+                }
+                boolean r = inst == Instruction.EQ ? cmp == 0
+                        : (inst == Instruction.LT || inst == Instruction.SLT) ? cmp < 0 : cmp > 0;
+                set(0, r ? 1 : 0);
+                break;
+            }
+            case ISZERO:
+                need(1);
+                set(0, (hi[sp - 1] | lo[sp - 1]) == 0 ? 1 : 0);
+                break;
+            case AND: {
+                need(2);
+                long aHi = hi[sp - 1], aLo = lo[sp - 1];
+                pop();
+                set(aHi & hi[sp - 1], aLo & lo[sp - 1]);
+                break;
+            }
+            case OR: {
+                need(2);
+                long aHi = hi[sp - 1], aLo = lo[sp - 1];
+                pop();
+                set(aHi | hi[sp - 1], aLo | lo[sp - 1]);
+                break;
+            }
+            case XOR: {
+                need(2);
+                long aHi = hi[sp - 1], aLo = lo[sp - 1];
+                pop();
+                set(aHi ^ hi[sp - 1], aLo ^ lo[sp - 1]);
+                break;
+            }
+            case NOT:
+                need(1);
+                set(~hi[sp - 1], ~lo[sp - 1]);
+                break;
+            case BYTE: {
+                need(2);
+                long iHi = hi[sp - 1], iLo = lo[sp - 1];
+                pop();
+                long b = 0;
+                if (iHi == 0 && iLo >= 0 && iLo < 16) {
+                    int i = (int) iLo;
+                    long w = i < 8 ? hi[sp - 1] : lo[sp - 1];
+                    b = (w >>> (56 - 8 * (i % 8))) & 0xff;
+                }
+                set(0, b);
+                break;
+            }
+
+            case SHA3: {
+                long offset = popOffset(), size = popOffset();
+                require(offset, size);
+                use(6 * ((size + 31) / 32));
+                push256(HashUtil.keccak256(read(offset, size)));
+                break;
+            }
+
+            case ADDRESS:
+                push256(ctx.address().toBytes());
+                break;
+            case BALANCE: {
+                Address address = popAddress();
+                BigInteger balance = repo.getBalance(address);
+                push(balance == null ? BigInteger.ZERO : balance);
+                break;
+            }
+            case ORIGIN:
+                push256(ctx.origin().toBytes());
+                break;
+            case CALLER:
+                push256(ctx.caller().toBytes());
+                break;
+            case CALLVALUE:
+                push128(ctx.callValue().getData());
+                break;
+            case CALLDATALOAD: {
+                byte[] data = ctx.callData();
+                need(1);
+                long iHi = hi[sp - 1], iLo = lo[sp - 1];
+                pop();
+                byte[] word = new byte[16];
+                if (iHi == 0 && iLo >= 0 && iLo < data.length) {
+                    System.arraycopy(data, (int) iLo, word, 0, Math.min(16, data.length - (int) iLo));
+                }
+                push128(word);
+                break;
+            }
+            case CALLDATASIZE:
+                push(0, ctx.callData().length);
+                break;
+            case CALLDATACOPY:
+                copy(ctx.callData());
+                break;
+            case CODESIZE:
+                push(0, code.length);
+                break;
+            case CODECOPY:
+                copy(code);
+                break;
+            case EXTCODESIZE:
+                push(0, getCode(popAddress()).length);
+                break;
+            case EXTCODECOPY:
+                copy(getCode(popAddress()));
+                break;
+
+            case BLOCKHASH: {
+                need(1);
+                long nHi = hi[sp - 1], nLo = lo[sp - 1];
+                pop();
+                byte[] hash = null;
+                if (nHi == 0 && nLo >= 0) {
+                    hash = repo.getBlockStore().getBlockHashByNumber(nLo);
+                }
+                push256(hash == null ? new byte[32] : hash);
+                break;
+            }
+            case COINBASE:
+                push256(ctx.blockCoinbase().toBytes());
+                break;
+            case TIMESTAMP:
+                push(0, ctx.blockTimestamp());
+                break;
+            case NUMBER:
+                push(0, ctx.blockNumber());
+                break;
+            case DIFFICULTY:
+                push128(ctx.blockDifficulty().getData());
+                break;
+            case GASLIMIT:
+                push(0, ctx.blockNrgLimit());
+                break;
+
+            case POP:
+                pop();
+                break;
+            case MLOAD: {
+                long offset = popOffset();
+                require(offset, 16);
+                push128(Arrays.copyOfRange(memory, (int) offset, (int) offset + 16));
+                break;
+            }
+            case MSTORE: {
+                long offset = popOffset();
+                byte[] word = pop128();
+                require(offset, 16);
+                System.arraycopy(word, 0, memory, (int) offset, 16);
+                break;
+            }
+            case MSTORE8: {
+                long offset = popOffset();
+                need(1);
+                byte b = (byte) lo[sp - 1];
+                pop();
+                require(offset, 1);
+                memory[(int) offset] = b;
+                break;
+            }
+            case SLOAD: {
+                DataWord key = new DataWord(pop128());
+                DataWord value = repo.getStorageValue(ctx.address(), key);
+                push128(value == null ? new byte[16] : value.getData());
+                Callback.recordStorageAccess(ctx.address(), key);
+                break;
+            }
+            case SSTORE: {
+                if (isStatic) {
+                    throw OUT_OF_NRG;
+                }
+                DataWord key = new DataWord(pop128());
+                DataWord value = new DataWord(pop128());
+                DataWord old = repo.getStorageValue(ctx.address(), key);
+                boolean isInsert = (old == null || old.isZero()) && !value.isZero();
+                use(isInsert ? 20000 : 8000);
+                repo.addStorageRow(ctx.address(), key, value);
+                Callback.recordStorageAccess(ctx.address(), key);
+                break;
+            }
+            case JUMP:
+                need(1);
+                next = jumpTarget(hi[sp - 1], lo[sp - 1]);
+                jumped = true;
+                pop();
+                break;
+            case JUMPI: {
+                need(2);
+                long dHi = hi[sp - 1], dLo = lo[sp - 1];
+                boolean cond = (hi[sp - 2] | lo[sp - 2]) != 0;
+                sp -= 2;
+                if (cond) {
+                    next = jumpTarget(dHi, dLo);
+                    jumped = true;
+                }
+                break;
+            }
+            case PC:
+                push(0, pc);
+                break;
+            case MSIZE:
+                push(0, memorySize);
+                break;
+            case GAS:
+                push(0, nrg);
+                break;
+            case JUMPDEST:
+                break;
+
+            case LOG0:
+            case LOG1:
+            case LOG2:
+            case LOG3:
+            case LOG4: {
+                if (isStatic) {
+                    throw OUT_OF_NRG;
+                }
+                long offset = popOffset(), size = popOffset();
+                require(offset, size);
+                use(20 * size);
+
+                int numTopics = inst.ordinal() - Instruction.LOG0.ordinal();
+                List<byte[]> topics = new ArrayList<>();
+                for (int i = 0; i < numTopics; i++) {
+                    byte[] topic = new byte[32];
+                    System.arraycopy(pop128(), 0, topic, 0, 16);
+                    System.arraycopy(pop128(), 0, topic, 16, 16);
+                    topics.add(topic);
+                }
+
+                ctx.result().addLog(new Log(ctx.address(), topics, read(offset, size)));
+                break;
+            }
+
+            case RETURN:
+            case REVERT: {
+                long offset = popOffset(), size = popOffset();
+                require(offset, size);
+                return new ExecutionResult(inst == Instruction.RETURN ? Code.SUCCESS : Code.REVERT, nrg,
+                        read(offset, size));
+            }
+
+            case SELFDESTRUCT: {
+                if (isStatic) {
+                    throw OUT_OF_NRG;
+                }
+                Address beneficiary = popAddress();
+                BigInteger balance = repo.getBalance(ctx.address());
+                if (!repo.hasAccountState(beneficiary) && balance != null && balance.signum() != 0) {
+                    use(25000);
+                }
+                Callback.selfDestruct(ctx.address(), beneficiary);
+                return new ExecutionResult(Code.SUCCESS, nrg);
+            }
+
+            default:
+                int op = code[pc] & 0xff;
+                if (op >= (Instruction.PUSH1.code() & 0xff) && op <= (Instruction.PUSH32.code() & 0xff)) {
+                    int n = op - (Instruction.PUSH1.code() & 0xff) + 1;
+                    byte[] data = new byte[n > 16 ? 32 : 16];
+                    for (int i = 0; i < n; i++) {
+                        int idx = pc + 1 + i;
+                        data[data.length - n + i] = idx < code.length ? code[idx] : 0;
+                    }
+                    if (n > 16) {
+                        push256(data);
+                    } else {
+                        push128(data);
+                    }
+                    next = next(code, pc);
+                } else if (op >= (Instruction.DUP1.code() & 0xff) && op <= (Instruction.DUP16.code() & 0xff)) {
+                    int n = op - (Instruction.DUP1.code() & 0xff) + 1;
+                    need(n);
+                    push(hi[sp - n], lo[sp - n]);
+                } else if (op >= (Instruction.SWAP1.code() & 0xff) && op <= (Instruction.SWAP16.code() & 0xff)) {
+                    int n = op - (Instruction.SWAP1.code() & 0xff) + 1;
+                    need(n + 1);
+                    int a = sp - 1, b = sp - 1 - n;
+                    long t = hi[a];
+                    hi[a] = hi[b];
+                    hi[b] = t;
+                    t = lo[a];
+                    lo[a] = lo[b];
+                    lo[b] = t;
+                } else {
+                    // instructions rejected by analyze()
+                    throw OUT_OF_NRG;
+                }
+                break;
+            }
+
+            if (jumped) {
+                block = Arrays.binarySearch(blocks, next);
+                use(analysis.costs[block]);
+            } else if (block + 1 < blocks.length && next == blocks[block + 1]) {
+                block++;
+                use(analysis.costs[block]);
+            }
+            pc = next;
+        }
+
+        return new ExecutionResult(Code.SUCCESS, nrg);
+    }
+
+    /**
+     * Returns the energy cost of an instruction, excluding the dynamic part.
+     * Mirrors GasMeter::getStepCost of libevmjit, for the Aion revision.
+     */
+    private static long stepCost(Instruction inst) {
+        switch (inst) {
+        case STOP:
+        case RETURN:
+        case REVERT:
+        case SSTORE:
+            return 0;
+        case BALANCE:
+        case EXTCODESIZE:
+        case EXTCODECOPY:
+        case SLOAD:
+            return 1000;
+        case BLOCKHASH:
+            return 20;
+        case SHA3:
+            return 30;
+        case LOG0:
+        case LOG1:
+        case LOG2:
+        case LOG3:
+        case LOG4:
+            return 500 + 500 * (inst.ordinal() - Instruction.LOG0.ordinal());
+        case SELFDESTRUCT:
+            return 5000;
+        default:
+            return 1;
+        }
+    }
+
+    private void use(long cost) {
+        if (nrg - cost < 0) {
+            throw OUT_OF_NRG;
+        }
+        nrg -= cost;
+    }
+
+    /**
+     * Charges and expands the memory to cover the given range, rounded up to
+     * 32 bytes.
+     */
+    private void require(long offset, long size) {
+        if (size == 0) {
+            return;
+        }
+        if (offset > MEMORY_INPUT_MAX || size > MEMORY_INPUT_MAX) {
+            throw OUT_OF_NRG;
+        }
+
+        long required = (offset + size + 31) & ~31L;
+        if (required <= memorySize) {
+            return;
+        }
+
+        long w1 = required >>> 5, w0 = memorySize >>> 5;
+        use((w1 + (w1 * w1 >>> 9)) - (w0 + (w0 * w0 >>> 9)));
+        if (required > Integer.MAX_VALUE - 32) {
+            throw OUT_OF_NRG;
+        }
+
+        if (memory.length < required) {
+            memory = Arrays.copyOf(memory, (int) Math.max(required, Math.min(2L * memory.length, Integer.MAX_VALUE - 32)));
+        }
+        memorySize = (int) required;
+    }
+
+    /**
+     * Processes a *COPY instruction, from the given source.
+     */
+    private void copy(byte[] src) {
+        long dest = popOffset();
+        need(1);
+        long sHi = hi[sp - 1], sLo = lo[sp - 1];
+        pop();
+        long size = popOffset();
+
+        require(dest, size);
+        use(3 * ((size + 31) / 32));
+
+        int copied = 0;
+        if (sHi == 0 && sLo >= 0 && sLo < src.length) {
+            copied = (int) Math.min(size, src.length - sLo);
+            System.arraycopy(src, (int) sLo, memory, (int) dest, copied);
+        }
+        Arrays.fill(memory, (int) dest + copied, (int) (dest + size), (byte) 0);
+    }
+
+    /**
+     * Reads a range of the memory, which has been required.
+     */
+    private byte[] read(long offset, long size) {
+        return size == 0 ? new byte[0] : Arrays.copyOfRange(memory, (int) offset, (int) (offset + size));
+    }
+
+    private byte[] getCode(Address address) {
+        byte[] code = repo.getCode(address);
+        return code == null ? new byte[0] : code;
+    }
+
+    private int jumpTarget(long dHi, long dLo) {
+        if (dHi != 0 || dLo < 0 || dLo >= code.length || !analysis.jumpdests.get((int) dLo)) {
+            throw OUT_OF_NRG;
+        }
+        return (int) dLo;
+    }
+
+    // =============================
+    // Stack operations
+    // =============================
+
+    private void need(int n) {
+        if (sp < n) {
+            throw OUT_OF_NRG;
+        }
+    }
+
+    private void pop() {
+        need(1);
+        sp--;
+    }
+
+    private void set(long h, long l) {
+        hi[sp - 1] = h;
+        lo[sp - 1] = l;
+    }
+
+    private void push(long h, long l) {
+        if (sp == STACK_LIMIT) {
+            throw OUT_OF_NRG;
+        }
+        hi[sp] = h;
+        lo[sp] = l;
+        sp++;
+    }
+
+    private void push(BigInteger value) {
+        push(value.shiftRight(64).longValue(), value.longValue());
+    }
+
+    /**
+     * Pushes a big-endian 16-byte word.
+     */
+    private void push128(byte[] word) {
+        push(toLong(word, 0), toLong(word, 8));
+    }
+
+    /**
+     * Pushes a big-endian 32-byte value as two items, the high half on top.
+     */
+    private void push256(byte[] value) {
+        push(toLong(value, 16), toLong(value, 24));
+        push(toLong(value, 0), toLong(value, 8));
+    }
+
+    private byte[] pop128() {
+        need(1);
+        byte[] word = new byte[16];
+        fromLong(hi[sp - 1], word, 0);
+        fromLong(lo[sp - 1], word, 8);
+        sp--;
+        return word;
+    }
+
+    private Address popAddress() {
+        byte[] address = new byte[32];
+        System.arraycopy(pop128(), 0, address, 0, 16);
+        System.arraycopy(pop128(), 0, address, 16, 16);
+        return Address.wrap(address);
+    }
+
+    /**
+     * Pops a memory offset or size, saturated at just above the maximum.
+     */
+    private long popOffset() {
+        need(1);
+        long h = hi[sp - 1], l = lo[sp - 1];
+        sp--;
+        return (h != 0 || l < 0 || l > MEMORY_INPUT_MAX) ? MEMORY_INPUT_MAX + 1 : l;
+    }
+
+    private BigInteger popUnsigned() {
+        return new BigInteger(1, pop128());
+    }
+
+    private BigInteger popSigned() {
+        return new BigInteger(pop128());
+    }
+
+    private static long toLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[off + i] & 0xff);
+        }
+        return v;
+    }
+
+    private static void fromLong(long v, byte[] b, int off) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long unsignedMultiplyHigh(long x, long y) {
+        return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+    }
+
+    /**
+     * The result of {@link #analyze(byte[])}: the jump destinations, and the
+     * blocks the static energy cost is charged by. A block is entered at a
+     * JUMPDEST, or by falling through a JUMPI or GAS; its cost is the sum of
+     * the step costs of its instructions.
+     */
+    public static class Analysis {
+        private final BitSet jumpdests;
+        private final int[] blocks;
+        private final long[] costs;
+
+        private Analysis(BitSet jumpdests, int[] blocks, long[] costs) {
+            this.jumpdests = jumpdests;
+            this.blocks = blocks;
+            this.costs = costs;
+        }
+
+        /**
+         * Returns the jump destinations.
+         *
+         * @return
+         */
+        public BitSet getJumpdests() {
+            return jumpdests;
+        }
+
+        /**
+         * Returns the first pc of every block, in order.
+         *
+         * @return
+         */
+        public int[] getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * Returns the static energy cost of every block.
+         *
+         * @return
+         */
+        public long[] getCosts() {
+            return costs;
+        }
+    }
+
+    /**
+     * Aborts the execution; the jit reports every failure as out of energy.
+     */
+    private static class OutOfNrg extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        OutOfNrg() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.types.IAionBlock;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Block context, shared by all the executions within a block. It's immutable,
+ * and encoded once for FastVM.
+ *
+ * @author yulong
+ */
+public class BlockContext {
+
+    /**
+     * Size of the binary encoding.
+     */
+    public static final int ENCODED_SIZE = 32 + 8 + 8 + 8 + 16;
+
+    private Address coinbase;
+    private long number;
+    private long timestamp;
+    private long nrgLimit;
+    private DataWord difficulty;
+
+    private byte[] encoded;
+
+    /**
+     * Creates a block context.
+     *
+     * @param coinbase
+     * @param number
+     * @param timestamp
+     * @param nrgLimit
+     * @param difficulty
+     */
+    public BlockContext(Address coinbase, long number, long timestamp, long nrgLimit, DataWord difficulty) {
+        this.coinbase = coinbase;
+        this.number = number;
+        this.timestamp = timestamp;
+        this.nrgLimit = nrgLimit;
+        this.difficulty = difficulty;
+
+        ByteBuffer buffer = ByteBuffer.allocate(ENCODED_SIZE);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.put(coinbase.toBytes());
+        buffer.putLong(number);
+        buffer.putLong(timestamp);
+        buffer.putLong(nrgLimit);
+        buffer.put(difficulty.getData());
+        this.encoded = buffer.array();
+    }
+
+    /**
+     * Creates the context of the given block.
+     *
+     * @param block
+     */
+    public BlockContext(IAionBlock block) {
+        this(block.getCoinbase(), block.getNumber(), block.getTimestamp(), block.getNrgLimit(),
+                difficulty(block.getDifficulty()));
+    }
+
+    private static DataWord difficulty(byte[] diff) {
+        // TODO: temp solution for difficulty length
+        if (diff.length > 16) {
+            diff = Arrays.copyOfRange(diff, diff.length - 16, diff.length);
+        }
+        return new DataWord(diff);
+    }
+
+    /**
+     * Binary encoding of the context, passed to FastVM. The returned array
+     * must not be modified.
+     *
+     * @return
+     */
+    public byte[] toBytes() {
+        return encoded;
+    }
+
+    /**
+     * Returns the block's beneficiary address.
+     *
+     * @return
+     */
+    public Address coinbase() {
+        return coinbase;
+    }
+
+    /**
+     * Returns the block number.
+     *
+     * @return
+     */
+    public long number() {
+        return number;
+    }
+
+    /**
+     * Returns the block timestamp.
+     *
+     * @return
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the block nrg limit.
+     *
+     * @return
+     */
+    public long nrgLimit() {
+        return nrgLimit;
+    }
+
+    /**
+     * Returns the block difficulty.
+     *
+     * @return
+     */
+    public DataWord difficulty() {
+        return difficulty;
+    }
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+/**
+ * Records the executions of blocks by {@link BlockExecutor}, e.g. as flight
+ * recorder events. An implementation is only available when FastVM is built
+ * with the flight recorder events and the runtime supports them, see
+ * {@link org.aion.fastvm.FastVM#getBlockExecutionRecorder()}.
+ *
+ * @author yulong
+ */
+public interface BlockExecutionRecorder {
+
+    /**
+     * Starts recording the execution of a block.
+     *
+     * @param number the block number
+     * @return the recording, or null if blocks aren't being recorded
+     */
+    Recording begin(long number);
+
+    /**
+     * The recording of the execution of one block.
+     */
+    interface Recording {
+        /**
+         * Ends the recording, once the block is executed.
+         *
+         * @param transactions the number of transactions
+         * @param reExecuted   the number of transactions executed again
+         */
+        void end(int transactions, int reExecuted);
+    }
+}
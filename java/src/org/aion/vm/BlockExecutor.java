@@ -0,0 +1,266 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.db.IRepositoryCache;
+import org.aion.fastvm.FastVM;
+import org.aion.log.AionLoggerFactory;
+import org.aion.log.LogEnum;
+import org.aion.mcf.core.AccountState;
+import org.aion.mcf.db.IBlockStoreBase;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.impl.blockchain.AionTxExecSummary;
+import org.aion.zero.types.AionTransaction;
+import org.aion.zero.types.IAionBlock;
+import org.slf4j.Logger;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Block executor runs the transactions of a block in parallel, with optimistic
+ * concurrency control.
+ * <p>
+ * Every transaction is first executed speculatively, against its own track of
+ * the block repository, while recording the state it reads and writes. The
+ * results are then committed in block order; a transaction which read
+ * anything written by a transaction committed before it is discarded and
+ * executed again, on top of the committed state. The outcome is identical to
+ * executing the transactions one by one.
+ * <p>
+ * Fees paid to the block coinbase are deferred during speculation, so that
+ * they don't make all transactions conflict with each other.
+ * <p>
+ * When given a {@link TransactionValidator}, the transactions are validated
+ * in parallel batches before the speculative executions start. When given a
+ * {@link BlockPrefetcher}, the state the block is expected to access is read
+ * into the repository first, and the storage accesses of the committed
+ * transactions are fed back to it.
+ * <p>
+ * Each block is recorded by the {@link BlockExecutionRecorder} of FastVM,
+ * as a flight recorder event, when there's one and it's enabled.
+ * <p>
+ * NOTE: the repository must support concurrent reads while no one is writing
+ * to it, as speculative executions read it from multiple threads.
+ *
+ * @author yulong
+ */
+public class BlockExecutor {
+
+    private static final Logger logger = AionLoggerFactory.getLogger(LogEnum.VM.name());
+
+    private ExecutorService executor;
+    private TransactionValidator validator;
+    private BlockPrefetcher prefetcher;
+
+    private int numReExecuted;
+
+    /**
+     * Creates a block executor.
+     *
+     * @param executor the thread pool which runs speculative executions
+     */
+    public BlockExecutor(ExecutorService executor) {
+        this(executor, null);
+    }
+
+    /**
+     * Creates a block executor, with a pre-validation stage.
+     *
+     * @param executor  the thread pool which runs speculative executions
+     * @param validator the validator of the transactions, or null to skip validation
+     */
+    public BlockExecutor(ExecutorService executor, TransactionValidator validator) {
+        this(executor, validator, null);
+    }
+
+    /**
+     * Creates a block executor, with pre-validation and prefetching stages.
+     *
+     * @param executor   the thread pool which runs speculative executions
+     * @param validator  the validator of the transactions, or null to skip validation
+     * @param prefetcher the prefetcher of the block state, or null to skip prefetching
+     */
+    public BlockExecutor(ExecutorService executor, TransactionValidator validator, BlockPrefetcher prefetcher) {
+        this.executor = executor;
+        this.validator = validator;
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * Executes the given transactions, in the context of the given block, and
+     * commits the state changes into the repository.
+     *
+     * @param txs   transactions, in block order
+     * @param block the block
+     * @param repo  the block repository
+     * @return the execution summaries, in block order
+     */
+    public List<AionTxExecSummary> execute(List<AionTransaction> txs, IAionBlock block,
+                                           IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo) {
+        numReExecuted = 0;
+        BlockContext blockCtx = new BlockContext(block);
+
+        BlockExecutionRecorder recorder = FastVM.getBlockExecutionRecorder();
+        BlockExecutionRecorder.Recording recording = recorder == null ? null : recorder.begin(block.getNumber());
+
+        // prefetching
+        if (prefetcher != null) {
+            prefetcher.prefetch(txs, repo);
+        }
+
+        // validation
+        List<ValidatedTransaction> vtxs = validator == null ? null : validator.validate(txs, block.getNumber());
+
+        // speculative execution
+        List<Future<Speculation>> futures = new ArrayList<>(txs.size());
+        for (int i = 0; i < txs.size(); i++) {
+            AionTransaction tx = txs.get(i);
+            ValidatedTransaction vtx = vtxs == null ? null : vtxs.get(i);
+            RecordingRepository track = new RecordingRepository(overlay(repo), new ReadWriteSet(),
+                    block.getCoinbase());
+            futures.add(executor.submit(() -> run(tx, vtx, block, blockCtx, track, block.getNrgLimit())));
+        }
+
+        List<Speculation> speculations = new ArrayList<>(txs.size());
+        for (Future<Speculation> f : futures) {
+            speculations.add(await(f));
+        }
+
+        // commit in block order
+        List<AionTxExecSummary> summaries = new ArrayList<>(txs.size());
+        ReadWriteSet committed = new ReadWriteSet();
+        long blockRemainingNrg = block.getNrgLimit();
+
+        for (int i = 0; i < txs.size(); i++) {
+            AionTransaction tx = txs.get(i);
+            Speculation spec = speculations.get(i);
+
+            if (spec.track.getReadWriteSet().readsAnyWriteOf(committed) || tx.nrgLimit() > blockRemainingNrg) {
+                spec.track.rollback();
+                // set by the speculation, and left as is if the re-execution is rejected
+                tx.setNrgConsume(0);
+
+                RecordingRepository track = new RecordingRepository(overlay(repo), new ReadWriteSet(), null);
+                spec = run(tx, vtxs == null ? null : vtxs.get(i), block, blockCtx, track, blockRemainingNrg);
+                numReExecuted++;
+            }
+
+            commit(spec, block, repo);
+            committed.mergeWrites(spec.track.getReadWriteSet());
+            if (prefetcher != null) {
+                prefetcher.record(spec.track.getReadWriteSet());
+            }
+
+            if (!spec.summary.isRejected()) {
+                blockRemainingNrg -= spec.nrgUsed;
+            }
+            summaries.add(spec.summary);
+        }
+
+        if (recording != null) {
+            recording.end(txs.size(), numReExecuted);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Executed {} transactions, {} re-executed", txs.size(), numReExecuted);
+        }
+
+        return summaries;
+    }
+
+    /**
+     * Returns the number of transactions re-executed in the last call of
+     * {@link #execute(List, IAionBlock, IRepositoryCache)}.
+     *
+     * @return
+     */
+    public int getNumReExecuted() {
+        return numReExecuted;
+    }
+
+    /**
+     * Returns a new journaled overlay on a track of the block repository, so
+     * that the call frames of a transaction don't stack repository caches.
+     */
+    private static JournaledRepository overlay(
+            IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo) {
+        return new JournaledRepository(repo.startTracking());
+    }
+
+    /**
+     * Executes one transaction against the given track, reusing its
+     * validation if there's one.
+     */
+    private static Speculation run(AionTransaction tx, ValidatedTransaction vtx, IAionBlock block,
+                                   BlockContext blockCtx, RecordingRepository track, long blockRemainingNrg) {
+        TransactionExecutor exec = vtx == null
+                ? new TransactionExecutor(tx, block, blockCtx, track, false, blockRemainingNrg)
+                : new TransactionExecutor(vtx, block, blockCtx, track, blockRemainingNrg);
+        AionTxExecSummary summary = exec.execute();
+        return new Speculation(track, summary, exec.getNrgUsed());
+    }
+
+    /**
+     * Writes the changes of a transaction into the block repository. Only
+     * the entries the transaction wrote are applied; the copies of the
+     * accounts its track merely read may be stale by now.
+     */
+    private static void commit(Speculation spec, IAionBlock block,
+                               IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo) {
+        spec.track.flushTo(repo);
+
+        BigInteger delta = spec.track.getDeferredDelta();
+        if (delta.signum() != 0) {
+            repo.addBalance(block.getCoinbase(), delta);
+        }
+    }
+
+    private static Speculation await(Future<Speculation> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while executing block", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to execute transaction", e.getCause());
+        }
+    }
+
+    /**
+     * A transaction executed against its own track, not yet committed.
+     */
+    private static class Speculation {
+        final RecordingRepository track;
+        final AionTxExecSummary summary;
+        final long nrgUsed;
+
+        Speculation(RecordingRepository track, AionTxExecSummary summary, long nrgUsed) {
+            this.track = track;
+            this.summary = summary;
+            this.nrgUsed = nrgUsed;
+        }
+    }
+}
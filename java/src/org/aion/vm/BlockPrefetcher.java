@@ -0,0 +1,316 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.db.IRepositoryCache;
+import org.aion.base.type.Address;
+import org.aion.fastvm.Callback;
+import org.aion.fastvm.FastVM;
+import org.aion.log.AionLoggerFactory;
+import org.aion.log.LogEnum;
+import org.aion.mcf.core.AccountState;
+import org.aion.mcf.db.IBlockStoreBase;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.types.AionTransaction;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Block prefetcher warms the block repository before the transactions of a
+ * block are executed, so that executions hit memory instead of the database.
+ * <p>
+ * The accounts touched by a block are collected up front: the senders, the
+ * recipients, and the accounts whose addresses are passed in call data. Their
+ * state and code are read in parallel batches, along with the storage entries
+ * the recipients are predicted to access, in one multi-get per contract. The
+ * predictions come from the storage accesses recorded in earlier blocks (see
+ * {@link #record(ReadWriteSet)}), and from the learned access profiles of the
+ * code of the recipients, if given, which derive mapping keys from the call
+ * data of each transaction (see {@link StorageAccessProfiles}).
+ * <p>
+ * Prefetching is best-effort: failures are logged and ignored, as executions
+ * read the same state anyway.
+ * <p>
+ * NOTE: the repository must support concurrent reads while no one is writing
+ * to it.
+ *
+ * @author yulong
+ */
+public class BlockPrefetcher {
+
+    private static final Logger logger = AionLoggerFactory.getLogger(LogEnum.VM.name());
+
+    /**
+     * Default number of accounts read by one task.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * Default number of contracts whose storage accesses are remembered.
+     */
+    public static final int DEFAULT_HISTORY_SIZE = 4096;
+
+    /**
+     * Maximum number of storage keys remembered per contract.
+     */
+    public static final int MAX_KEYS_PER_CONTRACT = 64;
+
+    /**
+     * First byte of the account addresses.
+     */
+    private static final byte ADDRESS_PREFIX = (byte) 0xA0;
+
+    private static final int SELECTOR_SIZE = 4;
+    private static final int WORD_SIZE = 16;
+
+    private ExecutorService executor;
+    private int batchSize;
+    private StorageAccessProfiles profiles;
+
+    private final Map<Address, Set<DataWord>> history;
+
+    /**
+     * Creates a block prefetcher, using the access profiles FastVM records
+     * into, if any.
+     *
+     * @param executor the thread pool which runs the batches
+     */
+    public BlockPrefetcher(ExecutorService executor) {
+        this(executor, DEFAULT_BATCH_SIZE, DEFAULT_HISTORY_SIZE, Callback.getAccessProfiles());
+    }
+
+    /**
+     * Creates a block prefetcher.
+     *
+     * @param executor    the thread pool which runs the batches
+     * @param batchSize   number of accounts read by one task
+     * @param historySize number of contracts whose storage accesses are remembered
+     * @param profiles    the learned access profiles, or null
+     */
+    public BlockPrefetcher(ExecutorService executor, int batchSize, int historySize,
+                           StorageAccessProfiles profiles) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        if (historySize <= 0) {
+            throw new IllegalArgumentException("Invalid history size: " + historySize);
+        }
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.profiles = profiles;
+        this.history = new LinkedHashMap<Address, Set<DataWord>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Address, Set<DataWord>> eldest) {
+                return size() > historySize;
+            }
+        };
+    }
+
+    /**
+     * Reads the state the given transactions are expected to access into the
+     * repository, and waits for the reads to complete.
+     *
+     * @param txs  transactions, in block order
+     * @param repo the block repository
+     * @return the number of existing accounts read
+     */
+    public int prefetch(List<AionTransaction> txs,
+                        IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo) {
+        List<Target> targets = new ArrayList<>(collect(txs).values());
+
+        List<Future<Integer>> futures = new ArrayList<>(targets.size() / batchSize + 1);
+        for (int from = 0; from < targets.size(); from += batchSize) {
+            List<Target> batch = targets.subList(from, Math.min(from + batchSize, targets.size()));
+            futures.add(executor.submit(() -> read(batch, repo)));
+        }
+
+        int count = 0;
+        for (Future<Integer> f : futures) {
+            count += await(f);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Prefetched {} of {} accounts", count, targets.size());
+        }
+        return count;
+    }
+
+    /**
+     * Remembers the storage entries accessed by an execution, to predict the
+     * accesses of later transactions.
+     *
+     * @param rwSet
+     */
+    public void record(ReadWriteSet rwSet) {
+        synchronized (history) {
+            record(rwSet.getStorageReads());
+            record(rwSet.getStorageWrites());
+        }
+    }
+
+    private void record(Set<Pair<Address, DataWord>> entries) {
+        for (Pair<Address, DataWord> entry : entries) {
+            Set<DataWord> keys = history.computeIfAbsent(entry.getLeft(), k -> new LinkedHashSet<>());
+
+            // keep the most recently accessed keys
+            keys.remove(entry.getRight());
+            keys.add(entry.getRight());
+            if (keys.size() > MAX_KEYS_PER_CONTRACT) {
+                keys.remove(keys.iterator().next());
+            }
+        }
+    }
+
+    /**
+     * Returns the storage keys of the given contract which are expected to
+     * be accessed.
+     *
+     * @param address
+     * @return
+     */
+    public Set<DataWord> getPredictedKeys(Address address) {
+        synchronized (history) {
+            Set<DataWord> keys = history.get(address);
+            return keys == null ? Collections.emptySet() : new LinkedHashSet<>(keys);
+        }
+    }
+
+    /**
+     * Collects the accounts touched by the given transactions, along with
+     * the storage keys predicted for each of them, and the calls of them.
+     */
+    private Map<Address, Target> collect(List<AionTransaction> txs) {
+        Map<Address, Target> targets = new LinkedHashMap<>();
+        for (AionTransaction tx : txs) {
+            add(targets, tx.getFrom());
+            if (tx.isContractCreation()) {
+                continue;
+            }
+
+            Target to = add(targets, tx.getTo());
+            if (to != null) {
+                to.calls.add(tx);
+            }
+            byte[] data = tx.getData();
+            if (data != null) {
+                for (Address address : addressesIn(data)) {
+                    add(targets, address);
+                }
+            }
+        }
+        return targets;
+    }
+
+    private Target add(Map<Address, Target> targets, Address address) {
+        if (address == null) {
+            return null;
+        }
+        return targets.computeIfAbsent(address, a -> new Target(a, getPredictedKeys(a)));
+    }
+
+    /**
+     * Returns the account addresses passed as arguments in the given call
+     * data. An address takes two words, after the function selector.
+     *
+     * @param data
+     * @return
+     */
+    static List<Address> addressesIn(byte[] data) {
+        List<Address> addresses = new ArrayList<>();
+        for (int i = SELECTOR_SIZE; i + 2 * WORD_SIZE <= data.length; i += WORD_SIZE) {
+            if (data[i] == ADDRESS_PREFIX) {
+                addresses.add(Address.wrap(Arrays.copyOfRange(data, i, i + 2 * WORD_SIZE)));
+                i += WORD_SIZE;
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Reads a batch of accounts, returning the number of existing ones.
+     */
+    private int read(List<Target> batch, IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo) {
+        int count = 0;
+        for (Target target : batch) {
+            Address address = target.address;
+            if (!repo.hasAccountState(address)) {
+                continue;
+            }
+
+            repo.getNonce(address);
+            repo.getBalance(address);
+            byte[] code = repo.getCode(address);
+
+            Set<DataWord> keys = target.keys;
+            if (profiles != null && code != null && code.length > 0 && !target.calls.isEmpty()) {
+                keys = new LinkedHashSet<>(keys);
+                byte[] codeHash = FastVM.codeHash(address, code);
+                for (AionTransaction tx : target.calls) {
+                    keys.addAll(profiles.predict(codeHash, tx.getData(), tx.getFrom()));
+                }
+            }
+            if (!keys.isEmpty()) {
+                repo.getStorage(address, keys);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * An account to read, the storage keys predicted from its history, and
+     * the transactions calling it.
+     */
+    private static class Target {
+        final Address address;
+        final Set<DataWord> keys;
+        final List<AionTransaction> calls = new ArrayList<>();
+
+        Target(Address address, Set<DataWord> keys) {
+            this.address = address;
+            this.keys = keys;
+        }
+    }
+
+    private static int await(Future<Integer> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } catch (ExecutionException e) {
+            logger.debug("Failed to prefetch accounts", e.getCause());
+            return 0;
+        }
+    }
+}
@@ -27,7 +27,9 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 /**
- * Execution context, including both transaction and block information.
+ * Execution context, including both transaction and block information. The
+ * block information is held in a {@link BlockContext}, shared by all the
+ * executions within the block.
  *
  * @author yulong
  */
@@ -53,11 +55,7 @@ public class ExecutionContext {
     private int kind;
     private int flags;
 
-    private Address blockCoinbase;
-    private long blockNumber;
-    private long blockTimestamp;
-    private long blockNrgLimit;
-    private DataWord blockDifficulty;
+    private BlockContext block;
 
     private TransactionResult result;
 
@@ -86,6 +84,30 @@ public class ExecutionContext {
                             long nrgLimit, DataWord callValue, byte[] callData, int depth, int kind, int flags, Address blockCoinbase,
                             long blockNumber, long blockTimestamp, long blockNrgLimit, DataWord blockDifficulty,
                             TransactionResult result) {
+        this(txHash, address, origin, caller, nrgPrice, nrgLimit, callValue, callData, depth, kind, flags,
+                new BlockContext(blockCoinbase, blockNumber, blockTimestamp, blockNrgLimit, blockDifficulty), result);
+    }
+
+    /**
+     * Create a VM execution context within the given block.
+     *
+     * @param txHash
+     * @param address
+     * @param origin
+     * @param caller
+     * @param nrgPrice
+     * @param nrgLimit
+     * @param callValue
+     * @param callData
+     * @param depth
+     * @param kind
+     * @param flags
+     * @param block
+     * @param result
+     */
+    public ExecutionContext(byte[] txHash, Address address, Address origin, Address caller, DataWord nrgPrice,
+                            long nrgLimit, DataWord callValue, byte[] callData, int depth, int kind, int flags,
+                            BlockContext block, TransactionResult result) {
         super();
         this.address = address;
         this.origin = origin;
@@ -100,24 +122,42 @@ public class ExecutionContext {
         this.kind = kind;
         this.flags = flags;
 
-        this.blockCoinbase = blockCoinbase;
-        this.blockNumber = blockNumber;
-        this.blockTimestamp = blockTimestamp;
-        this.blockNrgLimit = blockNrgLimit;
-        this.blockDifficulty = blockDifficulty;
+        this.block = block;
 
         this.txHash = txHash;
         this.result = result;
     }
 
     /**
-     * Binary encoding of the context, passed to FastVM.
+     * Binary encoding of the message fields of the context, passed to FastVM.
+     * The block fields are encoded separately, see {@link BlockContext}.
      *
      * @return
      */
     public byte[] toBytes() {
-        ByteBuffer buffer = ByteBuffer
-                .allocate(32 + 32 + 32 + 16 + 8 + 16 + 4 + callData.length + 4 + 4 + 4 + 32 + 8 + 8 + 8 + 16);
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+        encode(buffer);
+
+        return buffer.array();
+    }
+
+    /**
+     * Returns the size of the binary encoding.
+     *
+     * @return
+     */
+    public int getEncodedSize() {
+        return 32 + 32 + 32 + 16 + 8 + 16 + 4 + callData.length + 4 + 4 + 4;
+    }
+
+    /**
+     * Writes the binary encoding of the context into the given buffer, at its
+     * current position.
+     *
+     * @param buffer a buffer with at least {@link #getEncodedSize()} bytes
+     *               remaining
+     */
+    public void encode(ByteBuffer buffer) {
         buffer.order(ByteOrder.BIG_ENDIAN);
 
         buffer.put(address.toBytes());
@@ -133,14 +173,6 @@ public class ExecutionContext {
         buffer.putInt(depth);
         buffer.putInt(kind);
         buffer.putInt(flags);
-
-        buffer.put(blockCoinbase.toBytes());
-        buffer.putLong(blockNumber);
-        buffer.putLong(blockTimestamp);
-        buffer.putLong(blockNrgLimit);
-        buffer.put(blockDifficulty.getData());
-
-        return buffer.array();
     }
 
     // =============================
@@ -246,13 +278,22 @@ public class ExecutionContext {
     // Block context
     // =============================
 
+    /**
+     * Returns the block context.
+     *
+     * @return
+     */
+    public BlockContext block() {
+        return block;
+    }
+
     /**
      * Returns the block's beneficiary address.
      *
      * @return
      */
     public Address blockCoinbase() {
-        return blockCoinbase;
+        return block.coinbase();
     }
 
     /**
@@ -261,7 +302,7 @@ public class ExecutionContext {
      * @return
      */
     public long blockNumber() {
-        return blockNumber;
+        return block.number();
     }
 
     /**
@@ -270,7 +311,7 @@ public class ExecutionContext {
      * @return
      */
     public long blockTimestamp() {
-        return blockTimestamp;
+        return block.timestamp();
     }
 
     /**
@@ -279,7 +320,7 @@ public class ExecutionContext {
      * @return
      */
     public long blockNrgLimit() {
-        return blockNrgLimit;
+        return block.nrgLimit();
     }
 
     /**
@@ -288,7 +329,7 @@ public class ExecutionContext {
      * @return
      */
     public DataWord blockDifficulty() {
-        return blockDifficulty;
+        return block.difficulty();
     }
 
     // =============================
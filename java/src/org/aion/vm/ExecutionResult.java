@@ -59,6 +59,8 @@ public class ExecutionResult {
 
         CONTRACT_ALREADY_EXISTS(11),
 
+        INVALID_TRANSACTION(12),
+
         INTERNAL_ERROR(-1);
 
         private int code;
@@ -113,7 +115,16 @@ public class ExecutionResult {
      * @return
      */
     public static ExecutionResult parse(byte[] result) {
-        ByteBuffer buffer = ByteBuffer.wrap(result);
+        return parse(ByteBuffer.wrap(result));
+    }
+
+    /**
+     * Parse execution result from a buffer, starting at its current position.
+     *
+     * @param buffer
+     * @return
+     */
+    public static ExecutionResult parse(ByteBuffer buffer) {
         buffer.order(ByteOrder.BIG_ENDIAN);
 
         Code code = Code.fromInt(buffer.getInt());
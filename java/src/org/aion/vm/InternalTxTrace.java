@@ -0,0 +1,219 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.types.AionInternalTx;
+
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * An append-only trace of the internal transactions of a transaction. The
+ * fields of each internal transaction are kept as they are, in parallel
+ * arrays, and the {@link AionInternalTx} is only built when it's asked for.
+ *
+ * @author yulong
+ */
+public class InternalTxTrace {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int size;
+
+    private byte[][] parentHashes = new byte[0][];
+    private int[] deeps = new int[0];
+    private int[] indices = new int[0];
+    private BigInteger[] nonces = new BigInteger[0];
+    private Address[] froms = new Address[0];
+    private Address[] tos = new Address[0];
+    private DataWord[] values = new DataWord[0];
+    private byte[][] data = new byte[0][];
+    private String[] notes = new String[0];
+
+    private BitSet rejected = new BitSet();
+    private AionInternalTx[] built = new AionInternalTx[0];
+
+    /**
+     * Appends an internal transaction.
+     *
+     * @param parentHash
+     * @param deep
+     * @param idx
+     * @param nonce
+     * @param from
+     * @param to
+     * @param value
+     * @param data
+     * @param note
+     * @return the position of the internal transaction in the trace
+     */
+    public int add(byte[] parentHash, int deep, int idx, BigInteger nonce, Address from, Address to, DataWord value,
+                   byte[] data, String note) {
+        ensureCapacity(size + 1);
+
+        this.parentHashes[size] = parentHash;
+        this.deeps[size] = deep;
+        this.indices[size] = idx;
+        this.nonces[size] = nonce;
+        this.froms[size] = from;
+        this.tos[size] = to;
+        this.values[size] = value;
+        this.data[size] = data;
+        this.notes[size] = note;
+        return size++;
+    }
+
+    /**
+     * Appends an internal transaction which is already built.
+     *
+     * @param tx
+     * @return the position of the internal transaction in the trace
+     */
+    public int add(AionInternalTx tx) {
+        ensureCapacity(size + 1);
+
+        built[size] = tx;
+        if (tx.isRejected()) {
+            rejected.set(size);
+        }
+        return size++;
+    }
+
+    /**
+     * Appends all internal transactions of another trace.
+     *
+     * @param other
+     */
+    public void addAll(InternalTxTrace other) {
+        ensureCapacity(size + other.size);
+
+        System.arraycopy(other.parentHashes, 0, parentHashes, size, other.size);
+        System.arraycopy(other.deeps, 0, deeps, size, other.size);
+        System.arraycopy(other.indices, 0, indices, size, other.size);
+        System.arraycopy(other.nonces, 0, nonces, size, other.size);
+        System.arraycopy(other.froms, 0, froms, size, other.size);
+        System.arraycopy(other.tos, 0, tos, size, other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        System.arraycopy(other.data, 0, data, size, other.size);
+        System.arraycopy(other.notes, 0, notes, size, other.size);
+        System.arraycopy(other.built, 0, built, size, other.size);
+        for (int i = other.rejected.nextSetBit(0); i >= 0; i = other.rejected.nextSetBit(i + 1)) {
+            rejected.set(size + i);
+        }
+        size += other.size;
+    }
+
+    /**
+     * Returns the number of internal transactions.
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Rejects the internal transaction at the given position.
+     *
+     * @param i
+     */
+    public void reject(int i) {
+        rejected.set(i);
+        if (built[i] != null) {
+            built[i].reject();
+        }
+    }
+
+    /**
+     * Rejects all internal transactions.
+     */
+    public void rejectAll() {
+        for (int i = 0; i < size; i++) {
+            reject(i);
+        }
+    }
+
+    /**
+     * Returns the internal transaction at the given position, building it on
+     * first access.
+     *
+     * @param i
+     * @return
+     */
+    public AionInternalTx get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+        }
+
+        if (built[i] == null) {
+            AionInternalTx tx = new AionInternalTx(parentHashes[i], deeps[i], indices[i],
+                    new DataWord(nonces[i]).getData(), froms[i], tos[i], values[i].getData(), data[i], notes[i]);
+            if (rejected.get(i)) {
+                tx.reject();
+            }
+            built[i] = tx;
+        }
+        return built[i];
+    }
+
+    /**
+     * Returns a list view of the trace. Internal transactions are built as
+     * the list is accessed.
+     *
+     * @return
+     */
+    public List<AionInternalTx> asList() {
+        return new AbstractList<AionInternalTx>() {
+            @Override
+            public AionInternalTx get(int index) {
+                return InternalTxTrace.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= built.length) {
+            return;
+        }
+
+        int n = Math.max(capacity, Math.max(INITIAL_CAPACITY, built.length * 2));
+        parentHashes = Arrays.copyOf(parentHashes, n);
+        deeps = Arrays.copyOf(deeps, n);
+        indices = Arrays.copyOf(indices, n);
+        nonces = Arrays.copyOf(nonces, n);
+        froms = Arrays.copyOf(froms, n);
+        tos = Arrays.copyOf(tos, n);
+        values = Arrays.copyOf(values, n);
+        data = Arrays.copyOf(data, n);
+        notes = Arrays.copyOf(notes, n);
+        built = Arrays.copyOf(built, n);
+    }
+}
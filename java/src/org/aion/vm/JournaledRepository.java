@@ -0,0 +1,536 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.db.IContractDetails;
+import org.aion.base.db.IRepository;
+import org.aion.base.db.IRepositoryCache;
+import org.aion.base.type.Address;
+import org.aion.base.util.ByteUtil;
+import org.aion.mcf.core.AccountState;
+import org.aion.mcf.db.IBlockStoreBase;
+import org.aion.mcf.vm.types.DataWord;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A state overlay on top of a repository, with an undo log. All the tracks
+ * started from it share one write set: a track is only a position in the
+ * journal, so starting and flushing one costs nothing, and rolling one back
+ * unwinds the entries written since it started. The write set reaches the
+ * underlying repository only when the overlay itself is flushed.
+ * <p>
+ * Unlike nested repository caches, writes are visible to the parent track
+ * before the child is flushed. Tracks must therefore be used in a stack
+ * discipline: a track is flushed or rolled back before its parent is used
+ * again, as call frames are.
+ * <p>
+ * Reads of a whole account, such as its contract details or storage keys,
+ * are served from a throwaway track of the underlying repository, with the
+ * pending changes of the account applied to it.
+ * <p>
+ * This class is not thread-safe, and the underlying repository must not be
+ * modified while the overlay has pending changes.
+ *
+ * @author yulong
+ */
+public class JournaledRepository implements IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> {
+
+    private Overlay overlay;
+
+    // size of the journal when the track started, or -1 for the overlay itself
+    private int mark;
+
+    /**
+     * Creates an overlay on top of the given repository.
+     *
+     * @param repo
+     */
+    public JournaledRepository(IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> repo) {
+        this(new Overlay(repo), -1);
+    }
+
+    private JournaledRepository(Overlay overlay, int mark) {
+        this.overlay = overlay;
+        this.mark = mark;
+    }
+
+    /**
+     * Returns the number of entries in the journal.
+     *
+     * @return
+     */
+    public int getJournalSize() {
+        return overlay.journal.size();
+    }
+
+    private IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> base() {
+        return overlay.base;
+    }
+
+    /**
+     * Returns the repository which reads of the whole account are served
+     * from: the underlying one, unless the account has pending changes.
+     */
+    private IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> reader(Address addr) {
+        return overlay.accounts.containsKey(addr) ? overlay.view(addr) : base();
+    }
+
+    @Override
+    public AccountState createAccount(Address addr) {
+        overlay.wipe(addr, true);
+        return new AccountState();
+    }
+
+    @Override
+    public boolean hasAccountState(Address addr) {
+        Account acc = overlay.accounts.get(addr);
+        return acc != null && acc.exists != null ? acc.exists : base().hasAccountState(addr);
+    }
+
+    @Override
+    public AccountState getAccountState(Address addr) {
+        return reader(addr).getAccountState(addr);
+    }
+
+    @Override
+    public void deleteAccount(Address addr) {
+        overlay.wipe(addr, false);
+    }
+
+    @Override
+    public BigInteger incrementNonce(Address addr) {
+        return setNonce(addr, getNonce(addr).add(BigInteger.ONE));
+    }
+
+    @Override
+    public BigInteger setNonce(Address addr, BigInteger nonce) {
+        Account acc = overlay.touch(addr);
+        overlay.log(acc, Entry.NONCE, null, acc.nonce);
+        acc.nonce = nonce;
+        return nonce;
+    }
+
+    @Override
+    public BigInteger getNonce(Address addr) {
+        Account acc = overlay.accounts.get(addr);
+        if (acc != null && acc.nonce != null) {
+            return acc.nonce;
+        }
+        return acc != null && acc.wiped ? BigInteger.ZERO : base().getNonce(addr);
+    }
+
+    @Override
+    public IContractDetails<DataWord> getContractDetails(Address addr) {
+        return reader(addr).getContractDetails(addr);
+    }
+
+    @Override
+    public boolean hasContractDetails(Address addr) {
+        return reader(addr).hasContractDetails(addr);
+    }
+
+    @Override
+    public void saveCode(Address addr, byte[] code) {
+        Account acc = overlay.touch(addr);
+        overlay.log(acc, Entry.CODE, null, acc.code);
+        acc.code = code;
+    }
+
+    @Override
+    public byte[] getCode(Address addr) {
+        Account acc = overlay.accounts.get(addr);
+        if (acc != null && acc.code != null) {
+            return acc.code;
+        }
+        return acc != null && acc.wiped ? ByteUtil.EMPTY_BYTE_ARRAY : base().getCode(addr);
+    }
+
+    @Override
+    public Map<DataWord, DataWord> getStorage(Address addr, Collection<DataWord> keys) {
+        Map<DataWord, DataWord> storage = new HashMap<>();
+        for (DataWord key : keys) {
+            DataWord value = getStorageValue(addr, key);
+            if (value != null) {
+                storage.put(key, value);
+            }
+        }
+        return storage;
+    }
+
+    @Override
+    public int getStorageSize(Address addr) {
+        return reader(addr).getStorageSize(addr);
+    }
+
+    @Override
+    public Set<DataWord> getStorageKeys(Address addr) {
+        return reader(addr).getStorageKeys(addr);
+    }
+
+    @Override
+    public void addStorageRow(Address addr, DataWord key, DataWord value) {
+        Account acc = overlay.account(addr);
+        overlay.log(acc, Entry.STORAGE, key, acc.storage.get(key));
+        acc.storage.put(key, value);
+    }
+
+    @Override
+    public DataWord getStorageValue(Address addr, DataWord key) {
+        Account acc = overlay.accounts.get(addr);
+        if (acc != null) {
+            DataWord value = acc.storage.get(key);
+            if (value != null || acc.wiped) {
+                return value;
+            }
+        }
+        return base().getStorageValue(addr, key);
+    }
+
+    @Override
+    public BigInteger getBalance(Address addr) {
+        Account acc = overlay.accounts.get(addr);
+        if (acc != null && acc.balance != null) {
+            return acc.balance;
+        }
+        return acc != null && acc.wiped ? BigInteger.ZERO : base().getBalance(addr);
+    }
+
+    @Override
+    public BigInteger addBalance(Address addr, BigInteger value) {
+        BigInteger balance = getBalance(addr).add(value);
+        Account acc = overlay.touch(addr);
+        overlay.log(acc, Entry.BALANCE, null, acc.balance);
+        acc.balance = balance;
+        return balance;
+    }
+
+    @Override
+    public IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> startTracking() {
+        return new JournaledRepository(overlay, overlay.journal.size());
+    }
+
+    /**
+     * Commits the changes. For a track, there's nothing to do; for the
+     * overlay itself, the write set is applied to the underlying repository,
+     * which is then flushed.
+     */
+    @Override
+    public void flush() {
+        if (mark < 0) {
+            overlay.commit();
+        }
+    }
+
+    /**
+     * Discards the changes made since the track started. For the overlay
+     * itself, all changes are discarded and the underlying repository is
+     * rolled back.
+     */
+    @Override
+    public void rollback() {
+        if (mark < 0) {
+            overlay.revert(0);
+            overlay.accounts.clear();
+            base().rollback();
+        } else {
+            overlay.revert(mark);
+        }
+    }
+
+    @Override
+    public void syncToRoot(byte[] root) {
+        base().syncToRoot(root);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return base().isClosed();
+    }
+
+    @Override
+    public void close() {
+        base().close();
+    }
+
+    @Override
+    public boolean isValidRoot(byte[] root) {
+        return base().isValidRoot(root);
+    }
+
+    @Override
+    public void updateBatch(Map<Address, AccountState> accountStates,
+                            Map<Address, IContractDetails<DataWord>> contractDetails) {
+        Set<Address> deleted = new HashSet<>();
+        for (Map.Entry<Address, AccountState> e : accountStates.entrySet()) {
+            Address addr = e.getKey();
+            AccountState state = e.getValue();
+
+            if (state.isDeleted()) {
+                deleteAccount(addr);
+                deleted.add(addr);
+                continue;
+            }
+            if (!hasAccountState(addr)) {
+                createAccount(addr);
+            }
+            if (!state.getNonce().equals(getNonce(addr))) {
+                setNonce(addr, state.getNonce());
+            }
+            BigInteger delta = state.getBalance().subtract(getBalance(addr));
+            if (delta.signum() != 0) {
+                addBalance(addr, delta);
+            }
+        }
+
+        for (Map.Entry<Address, IContractDetails<DataWord>> e : contractDetails.entrySet()) {
+            Address addr = e.getKey();
+            IContractDetails<DataWord> details = e.getValue();
+            if (deleted.contains(addr) || details.isDeleted()) {
+                continue;
+            }
+
+            byte[] code = details.getCode();
+            if (code != null && code.length > 0 && !Arrays.equals(code, getCode(addr))) {
+                saveCode(addr, code);
+            }
+            for (DataWord key : details.getStorageKeys()) {
+                DataWord value = details.get(key);
+                addStorageRow(addr, key, value == null ? DataWord.ZERO : value);
+            }
+        }
+    }
+
+    @Override
+    public byte[] getRoot() {
+        return base().getRoot();
+    }
+
+    @Override
+    public void loadAccountState(Address addr, Map<Address, AccountState> cacheAccounts,
+                                 Map<Address, IContractDetails<DataWord>> cacheDetails) {
+        reader(addr).loadAccountState(addr, cacheAccounts, cacheDetails);
+    }
+
+    @Override
+    public IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> getSnapshotTo(byte[] root) {
+        return base().getSnapshotTo(root);
+    }
+
+    @Override
+    public IBlockStoreBase<?, ?> getBlockStore() {
+        return base().getBlockStore();
+    }
+
+    /**
+     * The pending changes of an account. A null field isn't overridden and
+     * is read from the underlying repository, unless the account is wiped.
+     */
+    private static class Account {
+        Boolean exists;
+        boolean wiped; // created or deleted; the underlying state is ignored
+        BigInteger nonce;
+        BigInteger balance;
+        byte[] code;
+        Map<DataWord, DataWord> storage = new HashMap<>();
+
+        Account copy() {
+            Account copy = new Account();
+            copy.exists = exists;
+            copy.wiped = wiped;
+            copy.nonce = nonce;
+            copy.balance = balance;
+            copy.code = code;
+            copy.storage = new HashMap<>(storage);
+            return copy;
+        }
+    }
+
+    /**
+     * An undo log entry: the previous value of one field of an account.
+     */
+    private static class Entry {
+        static final int EXISTS = 0;
+        static final int NONCE = 1;
+        static final int BALANCE = 2;
+        static final int CODE = 3;
+        static final int STORAGE = 4;
+        static final int WIPE = 5;
+
+        final Account account;
+        final int field;
+        final DataWord key;
+        final Object prev;
+
+        Entry(Account account, int field, DataWord key, Object prev) {
+            this.account = account;
+            this.field = field;
+            this.key = key;
+            this.prev = prev;
+        }
+
+        void undo() {
+            switch (field) {
+            case EXISTS:
+                account.exists = (Boolean) prev;
+                break;
+            case NONCE:
+                account.nonce = (BigInteger) prev;
+                break;
+            case BALANCE:
+                account.balance = (BigInteger) prev;
+                break;
+            case CODE:
+                account.code = (byte[]) prev;
+                break;
+            case STORAGE:
+                if (prev == null) {
+                    account.storage.remove(key);
+                } else {
+                    account.storage.put(key, (DataWord) prev);
+                }
+                break;
+            case WIPE:
+                Account old = (Account) prev;
+                account.exists = old.exists;
+                account.wiped = old.wiped;
+                account.nonce = old.nonce;
+                account.balance = old.balance;
+                account.code = old.code;
+                account.storage = old.storage;
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal entry: " + field);
+            }
+        }
+    }
+
+    /**
+     * The state shared by the overlay and all its tracks.
+     */
+    private static class Overlay {
+        final IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> base;
+        final Map<Address, Account> accounts = new LinkedHashMap<>();
+        final List<Entry> journal = new ArrayList<>();
+
+        Overlay(IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> base) {
+            this.base = base;
+        }
+
+        Account account(Address addr) {
+            return accounts.computeIfAbsent(addr, k -> new Account());
+        }
+
+        void log(Account acc, int field, DataWord key, Object prev) {
+            journal.add(new Entry(acc, field, key, prev));
+        }
+
+        /**
+         * Returns the account for a write which implicitly creates it.
+         */
+        Account touch(Address addr) {
+            Account acc = account(addr);
+            if (acc.exists != Boolean.TRUE) {
+                log(acc, Entry.EXISTS, null, acc.exists);
+                acc.exists = Boolean.TRUE;
+            }
+            return acc;
+        }
+
+        void wipe(Address addr, boolean exists) {
+            Account acc = account(addr);
+            log(acc, Entry.WIPE, null, acc.copy());
+            acc.exists = exists;
+            acc.wiped = true;
+            acc.nonce = null;
+            acc.balance = null;
+            acc.code = null;
+            acc.storage = new HashMap<>();
+        }
+
+        /**
+         * Returns a track of the underlying repository with the pending
+         * changes of the given account applied. It's only read, and must
+         * never be flushed.
+         */
+        IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> view(Address addr) {
+            IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> view = base.startTracking();
+            apply(addr, accounts.get(addr), view);
+            return view;
+        }
+
+        void revert(int mark) {
+            for (int i = journal.size() - 1; i >= mark; i--) {
+                journal.remove(i).undo();
+            }
+        }
+
+        void commit() {
+            for (Map.Entry<Address, Account> e : accounts.entrySet()) {
+                apply(e.getKey(), e.getValue(), base);
+            }
+
+            accounts.clear();
+            journal.clear();
+            base.flush();
+        }
+
+        /**
+         * Writes the pending changes of an account into the target repository.
+         */
+        static void apply(Address addr, Account acc,
+                          IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> target) {
+            if (acc.wiped) {
+                if (acc.exists != Boolean.TRUE) {
+                    target.deleteAccount(addr);
+                    return;
+                }
+                target.createAccount(addr);
+            }
+            if (acc.nonce != null) {
+                BigInteger nonce = target.getNonce(addr);
+                if (acc.nonce.equals(nonce.add(BigInteger.ONE))) {
+                    target.incrementNonce(addr);
+                } else if (!acc.nonce.equals(nonce)) {
+                    target.setNonce(addr, acc.nonce);
+                }
+            }
+            if (acc.balance != null) {
+                target.addBalance(addr, acc.balance.subtract(target.getBalance(addr)));
+            }
+            if (acc.code != null) {
+                target.saveCode(addr, acc.code);
+            }
+            for (Map.Entry<DataWord, DataWord> row : acc.storage.entrySet()) {
+                target.addStorageRow(addr, row.getKey(), row.getValue());
+            }
+        }
+    }
+}
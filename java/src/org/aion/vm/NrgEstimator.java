@@ -0,0 +1,188 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.db.IRepository;
+import org.aion.log.AionLoggerFactory;
+import org.aion.log.LogEnum;
+import org.aion.mcf.core.AccountState;
+import org.aion.mcf.db.IBlockStoreBase;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.impl.blockchain.AionTxExecSummary;
+import org.aion.zero.types.AionTransaction;
+import org.aion.zero.types.IAionBlock;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Nrg estimator finds the lowest nrg limit a transaction succeeds with.
+ * <p>
+ * The transaction is first executed once with the block nrg limit; the nrg
+ * it uses is a lower bound of the answer, and usually the answer itself. The
+ * remaining interval is then searched in rounds, each probing several nrg
+ * limits in parallel, the lower bound always among them: as soon as it
+ * succeeds, the search stops. Otherwise the interval shrinks by the number
+ * of probes per round, rather than by half.
+ * <p>
+ * All executions are local calls against the same repository snapshot,
+ * each through its own {@link JournaledRepository} overlay, so the snapshot
+ * must support concurrent reads and must not change during the estimation.
+ *
+ * @author yulong
+ */
+public class NrgEstimator {
+
+    private static final Logger logger = AionLoggerFactory.getLogger(LogEnum.VM.name());
+
+    private ExecutorService executor;
+    private int probes;
+
+    /**
+     * Creates a nrg estimator.
+     *
+     * @param executor the thread pool which runs the probes
+     * @param probes   number of nrg limits probed in parallel per round
+     */
+    public NrgEstimator(ExecutorService executor, int probes) {
+        if (probes < 1) {
+            throw new IllegalArgumentException("Invalid number of probes: " + probes);
+        }
+        this.executor = executor;
+        this.probes = probes;
+    }
+
+    /**
+     * Estimates the nrg limit of a transaction, in the context of the given
+     * block.
+     *
+     * @param tx       the transaction; its nrg limit is ignored
+     * @param block    the block in whose context the transaction runs
+     * @param snapshot an immutable repository snapshot
+     * @return the lowest nrg limit the transaction succeeds with, or -1 if it
+     * fails even with the block nrg limit
+     */
+    public long estimate(AionTransaction tx, IAionBlock block,
+                         IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> snapshot) {
+        BlockContext blockCtx = new BlockContext(block);
+
+        // the lower bound
+        long hi = block.getNrgLimit();
+        Probe bound = run(tx, hi, block, blockCtx, snapshot);
+        if (!bound.success) {
+            return -1;
+        }
+        long lo = bound.nrgUsed - 1;
+        int executions = 1;
+
+        // invariant: hi succeeds, lo fails (or is below the lower bound)
+        for (int round = 0; hi - lo > 1; round++) {
+            long[] points = points(lo, hi, round == 0);
+            List<Future<Probe>> futures = new ArrayList<>(points.length);
+            for (long nrg : points) {
+                futures.add(executor.submit(() -> run(tx, nrg, block, blockCtx, snapshot)));
+            }
+            executions += points.length;
+
+            // the lower bound is the likely answer
+            if (points[0] == lo + 1 && await(futures.get(0)).success) {
+                for (Future<Probe> f : futures) {
+                    f.cancel(false);
+                }
+                hi = points[0];
+                break;
+            }
+
+            long newHi = hi;
+            long newLo = lo;
+            for (int i = 0; i < points.length; i++) {
+                if (await(futures.get(i)).success) {
+                    newHi = Math.min(newHi, points[i]);
+                } else if (points[i] < newHi) {
+                    newLo = Math.max(newLo, points[i]);
+                }
+            }
+            hi = newHi;
+            lo = Math.min(newLo, hi - 1);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Estimated nrg {} in {} executions", hi, executions);
+        }
+        return hi;
+    }
+
+    /**
+     * Returns the nrg limits to probe within (lo, hi): lo + 1 first, then
+     * evenly spread points. With a single probe per round, only the first
+     * round tries lo + 1, and the following ones bisect.
+     */
+    long[] points(long lo, long hi, boolean first) {
+        int n = (int) Math.min(probes, hi - lo - 1);
+        if (n == 1 && !first) {
+            return new long[]{lo + (hi - lo) / 2};
+        }
+        long[] points = new long[n];
+        points[0] = lo + 1;
+        for (int i = 1; i < n; i++) {
+            points[i] = lo + 1 + (hi - lo - 1) * i / n;
+        }
+        return points;
+    }
+
+    private static Probe run(AionTransaction tx, long nrg, IAionBlock block, BlockContext blockCtx,
+                                         IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> snapshot) {
+        AionTransaction probe = new AionTransaction(tx.getNonce(), tx.getFrom(), tx.getTo(), tx.getValue(),
+                tx.getData(), nrg, tx.getNrgPrice());
+        TransactionExecutor exec = new TransactionExecutor(probe, block, blockCtx, new JournaledRepository(snapshot),
+                true, block.getNrgLimit());
+        AionTxExecSummary summary = exec.execute();
+        return new Probe(!summary.isFailed() && !summary.isRejected(), exec.getNrgUsed());
+    }
+
+    private static Probe await(Future<Probe> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while estimating nrg", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to estimate nrg", e.getCause());
+        }
+    }
+
+    /**
+     * The outcome of one execution.
+     */
+    private static class Probe {
+        final boolean success;
+        final long nrgUsed;
+
+        Probe(boolean success, long nrgUsed) {
+            this.success = success;
+            this.nrgUsed = nrgUsed;
+        }
+    }
+}
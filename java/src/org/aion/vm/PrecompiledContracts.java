@@ -24,21 +24,112 @@ import org.aion.base.db.IRepositoryCache;
 import org.aion.base.type.Address;
 import org.aion.mcf.core.AccountState;
 import org.aion.mcf.db.IBlockStoreBase;
+import org.aion.crypto.HashUtil;
+import org.aion.vm.precompiled.Ed25519VerifyContract;
+import org.aion.vm.precompiled.HashContract;
 import org.aion.vm.precompiled.TotalCurrencyContract;
 import org.aion.mcf.vm.types.DataWord;
 
 /**
  * A collection of precompiled contracts for FastVM.
+ * <p>
+ * Precompiled contracts live in a reserved address range: addresses whose
+ * first 30 bytes are zero, and whose last two bytes are below
+ * {@link #RESERVED_RANGE}. The registry is a table indexed by the last two
+ * bytes. Stateless contracts are registered as a single shared instance.
+ * <p>
+ * Each contract is available from the block it was introduced in; calls to
+ * its address in earlier blocks execute the account as a regular one.
  *
  * @author yulong, yao
  */
 public class PrecompiledContracts {
 
+    /**
+     * Number of reserved addresses. The native side routes calls into this
+     * range straight to Java, and must use the same value.
+     */
+    public static final int RESERVED_RANGE = 0x400;
+
+    /**
+     * The first block in which the hash and signature verification contracts
+     * are available, set with the <code>fastvm.fork.crypto</code> property.
+     * They're not available unless it's set.
+     */
+    public static final long CRYPTO_FORK_BLOCK = Long.getLong("fastvm.fork.crypto", Long.MAX_VALUE);
+
     // total currency address definition
     public static final Address totalCurrencyAddress = Address.wrap("0000000000000000000000000000000000000000000000000000000000000100");
     // TODO: move these to a configurable location (BlockConstants?)
     public static final Address totalCurrencyOwnerAddress = Address.wrap("0000000000000000000000000000000000000000000000000000000000000100");
 
+    public static final Address blake2bAddress = Address.wrap("0000000000000000000000000000000000000000000000000000000000000010");
+    public static final Address sha256Address = Address.wrap("0000000000000000000000000000000000000000000000000000000000000011");
+    public static final Address keccak256Address = Address.wrap("0000000000000000000000000000000000000000000000000000000000000012");
+    public static final Address ed25519VerifyAddress = Address.wrap("0000000000000000000000000000000000000000000000000000000000000013");
+
+    private static final Factory[] registry = new Factory[RESERVED_RANGE];
+    private static final PrecompiledContract[] stateless = new PrecompiledContract[RESERVED_RANGE];
+    private static final long[] activations = new long[RESERVED_RANGE];
+
+    static {
+        register(totalCurrencyAddress, 0,
+                (track, context) -> new TotalCurrencyContract(track, totalCurrencyAddress, totalCurrencyOwnerAddress));
+
+        register(blake2bAddress, CRYPTO_FORK_BLOCK, new HashContract(HashUtil::h256, 60, 12));
+        register(sha256Address, CRYPTO_FORK_BLOCK, new HashContract(HashUtil::sha256, 60, 12));
+        register(keccak256Address, CRYPTO_FORK_BLOCK, new HashContract(HashUtil::keccak256, 30, 6));
+        register(ed25519VerifyAddress, CRYPTO_FORK_BLOCK, new Ed25519VerifyContract());
+    }
+
+    /**
+     * Creates a precompiled contract for a call.
+     */
+    public interface Factory {
+        /**
+         * Returns the precompiled contract which executes a call.
+         *
+         * @param track   temporary state on top of world state
+         * @param context the context of the call
+         * @return
+         */
+        PrecompiledContract create(IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> track,
+                                   ExecutionContext context);
+    }
+
+    private static void register(Address address, long fromBlock, Factory factory) {
+        registry[index(address)] = factory;
+        activations[index(address)] = fromBlock;
+    }
+
+    private static void register(Address address, long fromBlock, PrecompiledContract contract) {
+        register(address, fromBlock, (track, context) -> contract);
+        stateless[index(address)] = contract;
+    }
+
+    private static boolean isActive(int index, long blockNumber) {
+        return index >= 0 && registry[index] != null && blockNumber >= activations[index];
+    }
+
+    /**
+     * Returns the index of the given address in the reserved range, or -1 if
+     * it's not a reserved address.
+     *
+     * @param address
+     * @return
+     */
+    public static int index(Address address) {
+        byte[] bytes = address.toBytes();
+        for (int i = 0; i < bytes.length - 2; i++) {
+            if (bytes[i] != 0) {
+                return -1;
+            }
+        }
+
+        int index = ((bytes[bytes.length - 2] & 0xff) << 8) | (bytes[bytes.length - 1] & 0xff);
+        return index < RESERVED_RANGE ? index : -1;
+    }
+
     /**
      * Returns a precompiled contract by address. For a reader with only knowledge regarding
      * this area of the code, define the track as a temporary state on top of an existing state.
@@ -47,14 +138,74 @@ public class PrecompiledContracts {
      *
      * @param address address of the desired precompiled contract (non-null)
      * @param track   temporary state on top of world state (non-null)
+     * @param context the context of the call, whose block number decides which contracts are available
      * @return the desired precompiled contract or {@code null} if none exists
      */
     public static PrecompiledContract getPrecompiledContract(
             Address address, IRepositoryCache track, ExecutionContext context) {
-        if (totalCurrencyAddress.equals(address)) {
-            return new TotalCurrencyContract(track, address, totalCurrencyOwnerAddress);
+        return getPrecompiledContract(address, context.blockNumber(), track, context);
+    }
+
+    /**
+     * Returns a precompiled contract by address, as of the given block.
+     *
+     * @param address     address of the desired precompiled contract (non-null)
+     * @param blockNumber the number of the block the call is executed in
+     * @param track       temporary state on top of world state (non-null)
+     * @param context     the context of the call
+     * @return the desired precompiled contract or {@code null} if none exists
+     */
+    public static PrecompiledContract getPrecompiledContract(
+            Address address, long blockNumber, IRepositoryCache track, ExecutionContext context) {
+        int index = index(address);
+        if (!isActive(index, blockNumber)) {
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        PrecompiledContract contract = registry[index].create(track, context);
+        return contract;
+    }
+
+    /**
+     * Returns the shared instance of a stateless precompiled contract, which
+     * can be executed without a track, as of the given block.
+     *
+     * @param address
+     * @param blockNumber
+     * @return the contract, or null if there's no stateless contract at the address
+     */
+    public static PrecompiledContract getStatelessContract(Address address, long blockNumber) {
+        int index = index(address);
+        return isActive(index, blockNumber) ? stateless[index] : null;
+    }
+
+    /**
+     * Returns, for every reserved address, the first block in which a
+     * stateless contract is available there, or Long.MAX_VALUE if there's
+     * none. Lets the native side skip calls which no stateless contract can
+     * serve.
+     *
+     * @return
+     */
+    public static long[] getStatelessActivations() {
+        long[] blocks = new long[RESERVED_RANGE];
+        for (int i = 0; i < RESERVED_RANGE; i++) {
+            blocks[i] = stateless[i] != null ? activations[i] : Long.MAX_VALUE;
         }
-        return null;
+        return blocks;
+    }
+
+    /**
+     * Returns whether there's a precompiled contract at the given address, as
+     * of the given block.
+     *
+     * @param address
+     * @param blockNumber
+     * @return
+     */
+    public static boolean isPrecompiled(Address address, long blockNumber) {
+        return isActive(index(address), blockNumber);
     }
 
     /**
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.db.IRepository;
+import org.aion.fastvm.FastVM;
+import org.aion.log.AionLoggerFactory;
+import org.aion.log.LogEnum;
+import org.aion.mcf.core.AccountState;
+import org.aion.mcf.db.IBlockStoreBase;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.impl.blockchain.AionTxExecSummary;
+import org.aion.zero.types.AionTransaction;
+import org.aion.zero.types.IAionBlock;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read-only executor runs local calls (e.g. <code>eth_call</code>)
+ * concurrently, without any lock.
+ * <p>
+ * Each call runs against a repository snapshot, through a
+ * {@link JournaledRepository} overlay which is never flushed, and in static
+ * mode ({@link FastVM#FLAG_STATIC}): storage writes, logs, contract creation,
+ * self-destruction and value transfers fail. Nothing is charged, and the
+ * nonce and balance of the sender aren't checked.
+ * <p>
+ * The snapshot must not change while calls are running against it, e.g. it's
+ * obtained by {@link IRepository#getSnapshotTo(byte[])} at the state root of
+ * a block, so that block imports never have to wait for calls, nor the other
+ * way round.
+ * <p>
+ * Concurrency is bounded by a fixed number of threads and a bounded queue;
+ * calls beyond that are rejected right away rather than queued without
+ * limit.
+ *
+ * @author yulong
+ */
+public class ReadOnlyExecutor {
+
+    private static final Logger logger = AionLoggerFactory.getLogger(LogEnum.VM.name());
+
+    private static final AtomicInteger poolId = new AtomicInteger();
+
+    private ThreadPoolExecutor pool;
+
+    /**
+     * Creates a read-only executor.
+     *
+     * @param threads   number of calls executed at the same time
+     * @param queueSize number of calls waiting for a thread, beyond which calls are rejected
+     */
+    public ReadOnlyExecutor(int threads, int queueSize) {
+        int id = poolId.incrementAndGet();
+        AtomicInteger threadId = new AtomicInteger();
+
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread t = new Thread(r, "fastvm-readonly-" + id + "-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Executes a local call, asynchronously. The returned future fails with
+     * {@link RejectedExecutionException} if too many calls are pending.
+     *
+     * @param tx       the call
+     * @param block    the block in whose context the call runs
+     * @param snapshot an immutable repository snapshot
+     * @return the execution summary
+     */
+    public CompletableFuture<AionTxExecSummary> execute(AionTransaction tx, IAionBlock block,
+                                                        IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> snapshot) {
+        try {
+            return CompletableFuture.supplyAsync(() -> executeNow(tx, block, snapshot), pool);
+        } catch (RejectedExecutionException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Local call rejected, {} calls pending", pool.getQueue().size());
+            }
+            CompletableFuture<AionTxExecSummary> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * Executes a local call on the current thread.
+     *
+     * @param tx       the call
+     * @param block    the block in whose context the call runs
+     * @param snapshot an immutable repository snapshot
+     * @return the execution summary
+     */
+    public static AionTxExecSummary executeNow(AionTransaction tx, IAionBlock block,
+                                               IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> snapshot) {
+        JournaledRepository overlay = new JournaledRepository(snapshot);
+        TransactionExecutor exec = new TransactionExecutor(tx, block, new BlockContext(block), overlay, true,
+                block.getNrgLimit(), FastVM.FLAG_STATIC);
+        return exec.execute();
+    }
+
+    /**
+     * Returns the number of calls waiting for a thread.
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Stops accepting calls. The calls already submitted still complete.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
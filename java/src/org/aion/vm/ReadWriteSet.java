@@ -0,0 +1,200 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.mcf.vm.types.DataWord;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The state accessed by a transaction execution. Accounts (balance, nonce,
+ * code and existence) and storage entries are tracked separately, so that
+ * transactions touching different slots of the same contract don't conflict.
+ * <p>
+ * This class is not thread-safe; each execution should have its own set.
+ *
+ * @author yulong
+ */
+public class ReadWriteSet {
+
+    private Set<Address> accountReads = new HashSet<>();
+    private Set<Address> accountWrites = new HashSet<>();
+
+    private Set<Pair<Address, DataWord>> storageReads = new HashSet<>();
+    private Set<Pair<Address, DataWord>> storageWrites = new HashSet<>();
+
+    // accounts whose storage was read as a whole, written to, or wiped
+    private Set<Address> storageScans = new HashSet<>();
+    private Set<Address> storageOwners = new HashSet<>();
+    private Set<Address> storageWipes = new HashSet<>();
+
+    /**
+     * Records a read of the account state.
+     *
+     * @param address
+     */
+    public void readAccount(Address address) {
+        accountReads.add(address);
+    }
+
+    /**
+     * Records a write of the account state.
+     *
+     * @param address
+     */
+    public void writeAccount(Address address) {
+        accountWrites.add(address);
+    }
+
+    /**
+     * Records a read of a storage entry.
+     *
+     * @param address
+     * @param key
+     */
+    public void readStorage(Address address, DataWord key) {
+        storageReads.add(Pair.of(address, key));
+    }
+
+    /**
+     * Records a write of a storage entry.
+     *
+     * @param address
+     * @param key
+     */
+    public void writeStorage(Address address, DataWord key) {
+        storageWrites.add(Pair.of(address, key));
+        storageOwners.add(address);
+    }
+
+    /**
+     * Records a read of the whole storage of an account.
+     *
+     * @param address
+     */
+    public void readAllStorage(Address address) {
+        storageScans.add(address);
+    }
+
+    /**
+     * Records a write of the whole account, including its storage, e.g. when
+     * it's deleted.
+     *
+     * @param address
+     */
+    public void writeAllStorage(Address address) {
+        accountWrites.add(address);
+        storageWipes.add(address);
+    }
+
+    /**
+     * Adds all the writes of another set into this one.
+     *
+     * @param other
+     */
+    public void mergeWrites(ReadWriteSet other) {
+        accountWrites.addAll(other.accountWrites);
+        storageWrites.addAll(other.storageWrites);
+        storageOwners.addAll(other.storageOwners);
+        storageWipes.addAll(other.storageWipes);
+    }
+
+    /**
+     * Returns whether anything this set has read was written by the other set.
+     *
+     * @param other
+     * @return
+     */
+    public boolean readsAnyWriteOf(ReadWriteSet other) {
+        if (!Collections.disjoint(accountReads, other.accountWrites)) {
+            return true;
+        }
+        if (!Collections.disjoint(storageScans, other.storageOwners)
+                || !Collections.disjoint(storageScans, other.storageWipes)) {
+            return true;
+        }
+        for (Pair<Address, DataWord> key : storageReads) {
+            if (other.storageWrites.contains(key) || other.storageWipes.contains(key.getLeft())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the accounts read.
+     *
+     * @return
+     */
+    public Set<Address> getAccountReads() {
+        return accountReads;
+    }
+
+    /**
+     * Returns the accounts written.
+     *
+     * @return
+     */
+    public Set<Address> getAccountWrites() {
+        return accountWrites;
+    }
+
+    /**
+     * Returns the storage entries read.
+     *
+     * @return
+     */
+    public Set<Pair<Address, DataWord>> getStorageReads() {
+        return storageReads;
+    }
+
+    /**
+     * Returns the storage entries written.
+     *
+     * @return
+     */
+    public Set<Pair<Address, DataWord>> getStorageWrites() {
+        return storageWrites;
+    }
+
+    /**
+     * Returns the accounts deleted or replaced as a whole.
+     *
+     * @return
+     */
+    public Set<Address> getStorageWipes() {
+        return storageWipes;
+    }
+
+    /**
+     * Returns whether nothing has been recorded.
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+        return accountReads.isEmpty() && accountWrites.isEmpty() && storageReads.isEmpty()
+                && storageWrites.isEmpty() && storageScans.isEmpty() && storageWipes.isEmpty();
+    }
+}
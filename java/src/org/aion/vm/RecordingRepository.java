@@ -0,0 +1,368 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.db.IContractDetails;
+import org.aion.base.db.IRepository;
+import org.aion.base.db.IRepositoryCache;
+import org.aion.base.type.Address;
+import org.aion.mcf.core.AccountState;
+import org.aion.mcf.db.IBlockStoreBase;
+import org.aion.mcf.vm.types.DataWord;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A repository track which records every account and storage entry accessed
+ * through it into a {@link ReadWriteSet}. Tracks started from it share the
+ * same set.
+ * <p>
+ * Optionally, balance credits to one account (the block coinbase) can be
+ * deferred: they are accumulated instead of being applied, and handed to the
+ * parent on flush, so that paying fees doesn't make every transaction of a
+ * block write the same account. The deferred account is never loaded by a
+ * credit either, so the returned balance is only the pending credit.
+ * <p>
+ * Every access which loads an account from the underlying repository is
+ * recorded as a read of it, including storage accesses.
+ *
+ * @author yulong
+ */
+public class RecordingRepository implements IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> {
+
+    private IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> track;
+    private ReadWriteSet rwSet;
+
+    private RecordingRepository parent;
+    private Address deferred;
+    private BigInteger deferredDelta = BigInteger.ZERO;
+
+    /**
+     * Creates a recording repository.
+     *
+     * @param track    the track to record
+     * @param rwSet    the set which accesses are recorded into
+     * @param deferred the account whose credits are deferred, or null
+     */
+    public RecordingRepository(IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> track,
+                               ReadWriteSet rwSet, Address deferred) {
+        this.track = track;
+        this.rwSet = rwSet;
+        this.deferred = deferred;
+    }
+
+    private RecordingRepository(RecordingRepository parent) {
+        this(parent.track.startTracking(), parent.rwSet, parent.deferred);
+        this.parent = parent;
+    }
+
+    /**
+     * Returns the recorded accesses.
+     *
+     * @return
+     */
+    public ReadWriteSet getReadWriteSet() {
+        return rwSet;
+    }
+
+    /**
+     * Returns the deferred balance change of the deferred account.
+     *
+     * @return
+     */
+    public BigInteger getDeferredDelta() {
+        return deferredDelta;
+    }
+
+    private boolean isDeferred(Address addr) {
+        return deferred != null && deferred.equals(addr);
+    }
+
+    private BigInteger pendingDelta() {
+        return parent == null ? deferredDelta : deferredDelta.add(parent.pendingDelta());
+    }
+
+    @Override
+    public AccountState createAccount(Address addr) {
+        rwSet.writeAccount(addr);
+        return track.createAccount(addr);
+    }
+
+    @Override
+    public boolean hasAccountState(Address addr) {
+        rwSet.readAccount(addr);
+        return track.hasAccountState(addr);
+    }
+
+    @Override
+    public AccountState getAccountState(Address addr) {
+        rwSet.readAccount(addr);
+        return track.getAccountState(addr);
+    }
+
+    @Override
+    public void deleteAccount(Address addr) {
+        rwSet.writeAllStorage(addr);
+        track.deleteAccount(addr);
+    }
+
+    @Override
+    public BigInteger incrementNonce(Address addr) {
+        rwSet.readAccount(addr);
+        rwSet.writeAccount(addr);
+        return track.incrementNonce(addr);
+    }
+
+    @Override
+    public BigInteger setNonce(Address addr, BigInteger nonce) {
+        rwSet.writeAccount(addr);
+        return track.setNonce(addr, nonce);
+    }
+
+    @Override
+    public BigInteger getNonce(Address addr) {
+        rwSet.readAccount(addr);
+        return track.getNonce(addr);
+    }
+
+    @Override
+    public IContractDetails<DataWord> getContractDetails(Address addr) {
+        rwSet.readAccount(addr);
+        rwSet.readAllStorage(addr);
+        return track.getContractDetails(addr);
+    }
+
+    @Override
+    public boolean hasContractDetails(Address addr) {
+        rwSet.readAccount(addr);
+        return track.hasContractDetails(addr);
+    }
+
+    @Override
+    public void saveCode(Address addr, byte[] code) {
+        rwSet.writeAccount(addr);
+        track.saveCode(addr, code);
+    }
+
+    @Override
+    public byte[] getCode(Address addr) {
+        rwSet.readAccount(addr);
+        return track.getCode(addr);
+    }
+
+    @Override
+    public Map<DataWord, DataWord> getStorage(Address addr, Collection<DataWord> keys) {
+        rwSet.readAccount(addr);
+        for (DataWord key : keys) {
+            rwSet.readStorage(addr, key);
+        }
+        return track.getStorage(addr, keys);
+    }
+
+    @Override
+    public int getStorageSize(Address addr) {
+        rwSet.readAccount(addr);
+        rwSet.readAllStorage(addr);
+        return track.getStorageSize(addr);
+    }
+
+    @Override
+    public Set<DataWord> getStorageKeys(Address addr) {
+        rwSet.readAccount(addr);
+        rwSet.readAllStorage(addr);
+        return track.getStorageKeys(addr);
+    }
+
+    @Override
+    public void addStorageRow(Address addr, DataWord key, DataWord value) {
+        rwSet.writeStorage(addr, key);
+        track.addStorageRow(addr, key, value);
+    }
+
+    @Override
+    public DataWord getStorageValue(Address addr, DataWord key) {
+        rwSet.readAccount(addr);
+        rwSet.readStorage(addr, key);
+        return track.getStorageValue(addr, key);
+    }
+
+    @Override
+    public BigInteger getBalance(Address addr) {
+        rwSet.readAccount(addr);
+        BigInteger balance = track.getBalance(addr);
+        return isDeferred(addr) ? balance.add(pendingDelta()) : balance;
+    }
+
+    @Override
+    public BigInteger addBalance(Address addr, BigInteger value) {
+        rwSet.writeAccount(addr);
+        if (isDeferred(addr) && value.signum() >= 0) {
+            // not read through the track, whose copy of the account would
+            // be stale by the time it's committed
+            deferredDelta = deferredDelta.add(value);
+            return pendingDelta();
+        }
+
+        rwSet.readAccount(addr);
+        return track.addBalance(addr, value);
+    }
+
+    @Override
+    public IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> startTracking() {
+        return new RecordingRepository(this);
+    }
+
+    @Override
+    public void flush() {
+        track.flush();
+        if (parent != null) {
+            parent.deferredDelta = parent.deferredDelta.add(deferredDelta);
+            deferredDelta = BigInteger.ZERO;
+        }
+    }
+
+    /**
+     * Commits the recorded writes into the given repository, instead of the
+     * underlying one, which is rolled back. Only the accounts and storage
+     * entries written through this repository reach the target: the copies
+     * of the accounts which were only read may be stale by now. Deferred
+     * credits are not applied. The target isn't flushed.
+     *
+     * @param target
+     */
+    public void flushTo(IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> target) {
+        if (parent != null) {
+            throw new IllegalStateException("Only the top-level track can be flushed to another repository");
+        }
+
+        Set<Address> gone = new HashSet<>();
+        for (Address addr : rwSet.getAccountWrites()) {
+            if (isDeferred(addr) && !rwSet.getAccountReads().contains(addr)) {
+                // only credited, which is applied by the caller
+                continue;
+            }
+
+            if (!track.hasAccountState(addr)) {
+                if (target.hasAccountState(addr)) {
+                    target.deleteAccount(addr);
+                }
+                gone.add(addr);
+                continue;
+            }
+            if (rwSet.getStorageWipes().contains(addr) && target.hasAccountState(addr)) {
+                target.deleteAccount(addr);
+            }
+            if (!target.hasAccountState(addr)) {
+                target.createAccount(addr);
+            }
+
+            BigInteger nonce = track.getNonce(addr);
+            if (!nonce.equals(target.getNonce(addr))) {
+                target.setNonce(addr, nonce);
+            }
+            BigInteger balance = track.getBalance(addr);
+            if (!balance.equals(target.getBalance(addr))) {
+                target.addBalance(addr, balance.subtract(target.getBalance(addr)));
+            }
+            byte[] code = track.getCode(addr);
+            if (code != null && code.length > 0 && !Arrays.equals(code, target.getCode(addr))) {
+                target.saveCode(addr, code);
+            }
+        }
+
+        for (Pair<Address, DataWord> entry : rwSet.getStorageWrites()) {
+            Address addr = entry.getLeft();
+            if (!gone.contains(addr)) {
+                DataWord value = track.getStorageValue(addr, entry.getRight());
+                target.addStorageRow(addr, entry.getRight(), value == null ? DataWord.ZERO : value);
+            }
+        }
+
+        track.rollback();
+    }
+
+    @Override
+    public void rollback() {
+        track.rollback();
+        deferredDelta = BigInteger.ZERO;
+    }
+
+    @Override
+    public void syncToRoot(byte[] root) {
+        track.syncToRoot(root);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return track.isClosed();
+    }
+
+    @Override
+    public void close() {
+        track.close();
+    }
+
+    @Override
+    public boolean isValidRoot(byte[] root) {
+        return track.isValidRoot(root);
+    }
+
+    @Override
+    public void updateBatch(Map<Address, AccountState> accountStates,
+                            Map<Address, IContractDetails<DataWord>> contractDetails) {
+        for (Address addr : accountStates.keySet()) {
+            rwSet.writeAccount(addr);
+        }
+        for (Address addr : contractDetails.keySet()) {
+            rwSet.writeAllStorage(addr);
+        }
+        track.updateBatch(accountStates, contractDetails);
+    }
+
+    @Override
+    public byte[] getRoot() {
+        return track.getRoot();
+    }
+
+    @Override
+    public void loadAccountState(Address addr, Map<Address, AccountState> cacheAccounts,
+                                 Map<Address, IContractDetails<DataWord>> cacheDetails) {
+        rwSet.readAccount(addr);
+        rwSet.readAllStorage(addr);
+        track.loadAccountState(addr, cacheAccounts, cacheDetails);
+    }
+
+    @Override
+    public IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> getSnapshotTo(byte[] root) {
+        return track.getSnapshotTo(root);
+    }
+
+    @Override
+    public IBlockStoreBase<?, ?> getBlockStore() {
+        return track.getBlockStore();
+    }
+}
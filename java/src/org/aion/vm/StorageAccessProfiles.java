@@ -0,0 +1,599 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.base.util.ByteArrayWrapper;
+import org.aion.crypto.HashUtil;
+import org.aion.log.AionLoggerFactory;
+import org.aion.log.LogEnum;
+import org.aion.mcf.vm.types.DataWord;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Learned storage access profiles, per contract code and function selector.
+ * <p>
+ * The storage accesses of executions are recorded as they happen (see
+ * {@link #record}). A slot is remembered either as a fixed key, or, when it's
+ * a mapping entry keyed by a call data argument or by the caller, as a
+ * pattern: the argument and the base slot of the mapping, from which the key
+ * is derived again for later calls with other arguments. Aion Solidity
+ * derives the key of {@code m[k]} as the first 16 bytes of
+ * {@code keccak256(k ++ p)}, where {@code p} is the 16-byte base slot of
+ * {@code m}; nested mappings aren't recognized.
+ * <p>
+ * Deriving the keys of a call takes a few hundred hashes, so only the first
+ * {@value #WARMUP_CALLS} calls of each selector are learned from, then one
+ * call in {@value #SAMPLE_INTERVAL}. Profiles are keyed by code hash, so
+ * that all the instances of a contract share theirs, and memory is bounded
+ * by the number of contracts, selectors per contract, and keys and patterns
+ * per selector. When full, the least called half of the contracts is
+ * evicted.
+ * <p>
+ * Profiles can be saved to and loaded from a file, to survive restarts.
+ *
+ * @author yulong
+ */
+public class StorageAccessProfiles {
+
+    private static final Logger logger = AionLoggerFactory.getLogger(LogEnum.VM.name());
+
+    /**
+     * Default number of contracts profiled.
+     */
+    public static final int DEFAULT_MAX_CONTRACTS = 1024;
+
+    /**
+     * Maximum number of selectors profiled per contract.
+     */
+    public static final int MAX_SELECTORS = 32;
+
+    /**
+     * Maximum number of fixed keys remembered per selector.
+     */
+    public static final int MAX_KEYS = 16;
+
+    /**
+     * Maximum number of derived key patterns remembered per selector.
+     */
+    public static final int MAX_PATTERNS = 8;
+
+    /**
+     * Number of calls of a selector which are all learned from.
+     */
+    public static final int WARMUP_CALLS = 16;
+
+    /**
+     * One call in this many is learned from, after the warm-up.
+     */
+    public static final int SAMPLE_INTERVAL = 64;
+
+    // the candidate arguments and base slots of derived keys
+    private static final int MAX_ARGS = 8;
+    private static final int MAX_BASE_SLOT = 16;
+
+    private static final int SELECTOR_SIZE = 4;
+    private static final int WORD_SIZE = 16;
+    private static final int ADDRESS_SIZE = 32;
+    private static final int HASH_SIZE = 32;
+
+    // the source of a pattern which derives the key from the caller
+    private static final int SOURCE_CALLER = 0xFFFF;
+
+    private static final long NO_SELECTOR = -1L;
+
+    private static final int FILE_MAGIC = 0x41505246;
+    private static final int FILE_VERSION = 1;
+
+    private final int maxContracts;
+
+    private final Map<ByteArrayWrapper, ContractProfile> profiles = new ConcurrentHashMap<>();
+
+    /**
+     * The frames of the transaction being executed which are learned from, per thread.
+     */
+    private final ThreadLocal<Map<ExecutionContext, Frame>> frames = ThreadLocal.withInitial(IdentityHashMap::new);
+
+    /**
+     * Creates empty profiles.
+     */
+    public StorageAccessProfiles() {
+        this(DEFAULT_MAX_CONTRACTS);
+    }
+
+    /**
+     * Creates empty profiles.
+     *
+     * @param maxContracts number of contracts profiled
+     */
+    public StorageAccessProfiles(int maxContracts) {
+        if (maxContracts <= 0) {
+            throw new IllegalArgumentException("Invalid number of contracts: " + maxContracts);
+        }
+        this.maxContracts = maxContracts;
+    }
+
+    /**
+     * Returns profiles persisted in the given file: they're loaded from it if
+     * it exists, and saved into it when the JVM exits. A file that can't be
+     * loaded is ignored, and the profiles start empty.
+     *
+     * @param file the profile file, or null
+     * @return the profiles, or null if no file is given
+     */
+    public static StorageAccessProfiles open(String file) {
+        if (file == null) {
+            return null;
+        }
+
+        Path path = Paths.get(file);
+        StorageAccessProfiles profiles = Files.exists(path) ? tryLoad(path) : new StorageAccessProfiles();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                profiles.save(path);
+            } catch (IOException e) {
+                logger.warn("Failed to save storage access profiles to " + path, e);
+            }
+        }, "fastvm-profiles-save"));
+        return profiles;
+    }
+
+    /**
+     * Returns the profiles loaded from the given file, or empty ones if it
+     * can't be loaded.
+     *
+     * @param file
+     * @return the profiles
+     */
+    private static StorageAccessProfiles tryLoad(Path file) {
+        StorageAccessProfiles profiles = new StorageAccessProfiles();
+        try {
+            profiles.load(file);
+            return profiles;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to load storage access profiles from " + file, e);
+            return new StorageAccessProfiles();
+        }
+    }
+
+    /**
+     * Starts an execution of the given code, deciding whether its storage
+     * accesses are learned from.
+     *
+     * @param ctx      the context of the execution
+     * @param codeHash the keccak hash of the code executed
+     */
+    public void begin(ExecutionContext ctx, byte[] codeHash) {
+        SelectorProfile profile = sample(ctx, codeHash);
+        if (profile != null) {
+            frames.get().put(ctx, new Frame(ctx, profile));
+        }
+    }
+
+    /**
+     * Ends the execution with the given context. The frames of the
+     * transaction are all dropped when its top-level execution ends.
+     *
+     * @param ctx the context of the execution
+     */
+    public void end(ExecutionContext ctx) {
+        Map<ExecutionContext, Frame> map = frames.get();
+        if (ctx.depth() == 0) {
+            map.clear();
+        } else {
+            map.remove(ctx);
+        }
+    }
+
+    /**
+     * Records a storage access of the execution with the given context,
+     * started by {@link #begin}.
+     *
+     * @param ctx the context of the execution
+     * @param key the storage key read or written
+     */
+    public void record(ExecutionContext ctx, DataWord key) {
+        Frame frame = frames.get().get(ctx);
+        if (frame == null) {
+            return;
+        }
+
+        Integer pattern = frame.candidates().get(key);
+        if (pattern != null) {
+            frame.profile.addPattern(pattern);
+        } else {
+            frame.profile.addKey(key);
+        }
+    }
+
+    /**
+     * Returns the storage keys that a call of the given code is expected to
+     * access.
+     *
+     * @param codeHash the keccak hash of the code
+     * @param callData the call data
+     * @param caller   the caller
+     * @return
+     */
+    public Set<DataWord> predict(byte[] codeHash, byte[] callData, Address caller) {
+        ContractProfile contract = profiles.get(new ByteArrayWrapper(codeHash));
+        SelectorProfile profile = contract == null ? null : contract.selectors.get(selector(callData));
+        if (profile == null) {
+            return Collections.emptySet();
+        }
+
+        Set<DataWord> keys = new LinkedHashSet<>(profile.getKeys());
+        for (int pattern : profile.getPatterns()) {
+            byte[] arg = argument(pattern, callData, caller);
+            if (arg != null) {
+                keys.add(derive(arg, pattern & 0xFF));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the number of contracts profiled.
+     *
+     * @return
+     */
+    public int size() {
+        return profiles.size();
+    }
+
+    /**
+     * Removes all the profiles.
+     */
+    public void clear() {
+        profiles.clear();
+    }
+
+    /**
+     * Writes the profiles into the given file, replacing it atomically.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+
+            List<Map.Entry<ByteArrayWrapper, ContractProfile>> entries = new ArrayList<>(profiles.entrySet());
+            out.writeInt(entries.size());
+            for (Map.Entry<ByteArrayWrapper, ContractProfile> e : entries) {
+                byte[] hash = e.getKey().getData();
+                out.writeInt(hash.length);
+                out.write(hash);
+                out.writeInt(e.getValue().calls.get());
+
+                List<Map.Entry<Long, SelectorProfile>> selectors = new ArrayList<>(e.getValue().selectors.entrySet());
+                out.writeInt(selectors.size());
+                for (Map.Entry<Long, SelectorProfile> s : selectors) {
+                    out.writeLong(s.getKey());
+                    s.getValue().write(out);
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads profiles from the given file, replacing the current ones with
+     * the same code hash.
+     *
+     * @param file
+     * @throws IOException if the file can't be read or isn't a profile file
+     */
+    public void load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Not a storage access profile file: " + file);
+            }
+
+            int n = in.readInt();
+            if (n < 0) {
+                throw new IOException("Invalid number of contracts: " + n);
+            }
+            for (int i = 0; i < n; i++) {
+                int length = in.readInt();
+                if (length != HASH_SIZE) {
+                    throw new IOException("Invalid code hash length: " + length);
+                }
+                byte[] hash = new byte[length];
+                in.readFully(hash);
+                ContractProfile contract = new ContractProfile();
+                contract.calls.set(in.readInt());
+
+                int selectors = in.readInt();
+                if (selectors < 0) {
+                    throw new IOException("Invalid number of selectors: " + selectors);
+                }
+                for (int j = 0; j < selectors; j++) {
+                    long selector = in.readLong();
+                    SelectorProfile profile = SelectorProfile.read(in);
+                    if (contract.selectors.size() < MAX_SELECTORS) {
+                        contract.selectors.put(selector, profile);
+                    }
+                }
+
+                if (profiles.size() >= maxContracts) {
+                    evict();
+                }
+                profiles.put(new ByteArrayWrapper(hash), contract);
+            }
+        }
+    }
+
+    /**
+     * Returns the profile to learn into from the given execution, or null if
+     * it isn't learned from.
+     */
+    private SelectorProfile sample(ExecutionContext ctx, byte[] codeHash) {
+        if (ctx.kind() == ExecutionContext.CREATE) {
+            return null;
+        }
+
+        ByteArrayWrapper hash = new ByteArrayWrapper(codeHash);
+        ContractProfile contract = profiles.get(hash);
+        if (contract == null) {
+            if (profiles.size() >= maxContracts) {
+                evict();
+            }
+            contract = profiles.computeIfAbsent(hash, k -> new ContractProfile());
+        }
+        contract.calls.incrementAndGet();
+
+        long selector = selector(ctx.callData());
+        SelectorProfile profile = contract.selectors.get(selector);
+        if (profile == null) {
+            if (contract.selectors.size() >= MAX_SELECTORS) {
+                return null;
+            }
+            profile = contract.selectors.computeIfAbsent(selector, k -> new SelectorProfile());
+        }
+
+        int calls = profile.calls.incrementAndGet();
+        return calls <= WARMUP_CALLS || calls % SAMPLE_INTERVAL == 0 ? profile : null;
+    }
+
+    /**
+     * Removes the least called half of the contracts.
+     */
+    private synchronized void evict() {
+        if (profiles.size() < maxContracts) {
+            return;
+        }
+
+        List<Map.Entry<ByteArrayWrapper, ContractProfile>> entries = new ArrayList<>(profiles.entrySet());
+        entries.sort((a, b) -> Integer.compare(a.getValue().calls.get(), b.getValue().calls.get()));
+        for (int i = 0; i < (entries.size() + 1) / 2; i++) {
+            profiles.remove(entries.get(i).getKey());
+        }
+    }
+
+    private static long selector(byte[] callData) {
+        if (callData == null || callData.length < SELECTOR_SIZE) {
+            return NO_SELECTOR;
+        }
+        return ByteBuffer.wrap(callData).getInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the argument a pattern derives its key from, or null if the
+     * call data is too short.
+     */
+    private static byte[] argument(int pattern, byte[] callData, Address caller) {
+        int source = pattern >>> 16;
+        if (source == SOURCE_CALLER) {
+            return caller.toBytes();
+        }
+
+        int width = (pattern >>> 8) & 0xFF;
+        if (callData == null || source + width > callData.length) {
+            return null;
+        }
+        return Arrays.copyOfRange(callData, source, source + width);
+    }
+
+    private static int pattern(int source, int width, int baseSlot) {
+        return (source << 16) | (width << 8) | baseSlot;
+    }
+
+    /**
+     * Returns the storage key of the mapping entry with the given key, in the
+     * mapping at the given base slot.
+     *
+     * @param arg
+     * @param baseSlot
+     * @return
+     */
+    static DataWord derive(byte[] arg, int baseSlot) {
+        byte[] preimage = Arrays.copyOf(arg, arg.length + WORD_SIZE);
+        preimage[preimage.length - 1] = (byte) baseSlot;
+        return new DataWord(Arrays.copyOf(HashUtil.keccak256(preimage), DataWord.BYTES));
+    }
+
+    /**
+     * A call being executed, and its candidate derived keys.
+     */
+    private static class Frame {
+        final ExecutionContext ctx;
+        final SelectorProfile profile;
+        Map<DataWord, Integer> candidates;
+
+        Frame(ExecutionContext ctx, SelectorProfile profile) {
+            this.ctx = ctx;
+            this.profile = profile;
+        }
+
+        Map<DataWord, Integer> candidates() {
+            if (candidates == null) {
+                candidates = new HashMap<>();
+
+                byte[] data = ctx.callData();
+                for (int i = 0; i < MAX_ARGS; i++) {
+                    int offset = SELECTOR_SIZE + i * WORD_SIZE;
+                    if (offset + WORD_SIZE <= data.length) {
+                        addCandidates(Arrays.copyOfRange(data, offset, offset + WORD_SIZE),
+                                offset, WORD_SIZE);
+                    }
+                    if (offset + ADDRESS_SIZE <= data.length) {
+                        addCandidates(Arrays.copyOfRange(data, offset, offset + ADDRESS_SIZE),
+                                offset, ADDRESS_SIZE);
+                    }
+                }
+                addCandidates(ctx.caller().toBytes(), SOURCE_CALLER, ADDRESS_SIZE);
+            }
+            return candidates;
+        }
+
+        private void addCandidates(byte[] arg, int source, int width) {
+            for (int slot = 0; slot < MAX_BASE_SLOT; slot++) {
+                candidates.putIfAbsent(derive(arg, slot), pattern(source, width, slot));
+            }
+        }
+    }
+
+    private static class ContractProfile {
+        final AtomicInteger calls = new AtomicInteger();
+        final Map<Long, SelectorProfile> selectors = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The keys and patterns of one selector, kept in small rings so that the
+     * oldest are replaced when full.
+     */
+    private static class SelectorProfile {
+        final AtomicInteger calls = new AtomicInteger();
+
+        private final long[] keys = new long[2 * MAX_KEYS];
+        private int numKeys;
+        private int nextKey;
+
+        private final int[] patterns = new int[MAX_PATTERNS];
+        private int numPatterns;
+        private int nextPattern;
+
+        synchronized void addKey(DataWord key) {
+            ByteBuffer buf = ByteBuffer.wrap(key.getData());
+            long hi = buf.getLong(0);
+            long lo = buf.getLong(8);
+            for (int i = 0; i < numKeys; i++) {
+                if (keys[2 * i] == hi && keys[2 * i + 1] == lo) {
+                    return;
+                }
+            }
+
+            keys[2 * nextKey] = hi;
+            keys[2 * nextKey + 1] = lo;
+            nextKey = (nextKey + 1) % MAX_KEYS;
+            numKeys = Math.min(numKeys + 1, MAX_KEYS);
+        }
+
+        synchronized void addPattern(int pattern) {
+            for (int i = 0; i < numPatterns; i++) {
+                if (patterns[i] == pattern) {
+                    return;
+                }
+            }
+
+            patterns[nextPattern] = pattern;
+            nextPattern = (nextPattern + 1) % MAX_PATTERNS;
+            numPatterns = Math.min(numPatterns + 1, MAX_PATTERNS);
+        }
+
+        synchronized List<DataWord> getKeys() {
+            List<DataWord> list = new ArrayList<>(numKeys);
+            for (int i = 0; i < numKeys; i++) {
+                list.add(new DataWord(ByteBuffer.allocate(DataWord.BYTES)
+                        .putLong(keys[2 * i]).putLong(keys[2 * i + 1]).array()));
+            }
+            return list;
+        }
+
+        synchronized int[] getPatterns() {
+            return Arrays.copyOf(patterns, numPatterns);
+        }
+
+        synchronized void write(DataOutputStream out) throws IOException {
+            out.writeInt(calls.get());
+            out.writeInt(numKeys);
+            for (int i = 0; i < 2 * numKeys; i++) {
+                out.writeLong(keys[i]);
+            }
+            out.writeInt(numPatterns);
+            for (int i = 0; i < numPatterns; i++) {
+                out.writeInt(patterns[i]);
+            }
+        }
+
+        static SelectorProfile read(DataInputStream in) throws IOException {
+            SelectorProfile profile = new SelectorProfile();
+            profile.calls.set(in.readInt());
+
+            int n = in.readInt();
+            if (n < 0 || n > MAX_KEYS) {
+                throw new IOException("Invalid number of keys: " + n);
+            }
+            for (int i = 0; i < 2 * n; i++) {
+                profile.keys[i] = in.readLong();
+            }
+            profile.numKeys = n;
+            profile.nextKey = n % MAX_KEYS;
+
+            int m = in.readInt();
+            if (m < 0 || m > MAX_PATTERNS) {
+                throw new IOException("Invalid number of patterns: " + m);
+            }
+            for (int i = 0; i < m; i++) {
+                profile.patterns[i] = in.readInt();
+            }
+            profile.numPatterns = m;
+            profile.nextPattern = m % MAX_PATTERNS;
+            return profile;
+        }
+    }
+}
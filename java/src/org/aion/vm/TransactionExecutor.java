@@ -60,13 +60,14 @@ public class TransactionExecutor {
     private IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repoTrack;
     private boolean isLocalCall;
     private long blockRemainingNrg;
+    private ValidatedTransaction validation;
+    private Uint128 txValue;
+    private Uint128 txNrgCost;
 
     private ExecutionContext ctx;
     private ExecutionResult exeResult;
     private TransactionResult txResult;
 
-    private static Object lock = new Object();
-
     /**
      * Create a new transaction executor. <br>
      * <br>
@@ -83,6 +84,69 @@ public class TransactionExecutor {
                                IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> repo,
                                boolean isLocalCall,
                                long blockRemainingNrg) {
+        this(tx, block, new BlockContext(block), repo, isLocalCall, blockRemainingNrg);
+    }
+
+    /**
+     * Create a new transaction executor, sharing the context of the block
+     * with the other transactions of the block.
+     *
+     * @param tx                transaction to be executed
+     * @param block             a temporary block used to garner relevant environmental variables
+     * @param blockCtx          the context of the block
+     * @param repo
+     * @param isLocalCall
+     * @param blockRemainingNrg
+     */
+    public TransactionExecutor(AionTransaction tx, IAionBlock block, BlockContext blockCtx,
+                               IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> repo,
+                               boolean isLocalCall,
+                               long blockRemainingNrg) {
+        this(tx, null, block, blockCtx, repo, isLocalCall, blockRemainingNrg, 0);
+    }
+
+    /**
+     * Create a new transaction executor, with the given execution flags.
+     *
+     * @param tx                transaction to be executed
+     * @param block             a temporary block used to garner relevant environmental variables
+     * @param blockCtx          the context of the block
+     * @param repo
+     * @param isLocalCall
+     * @param blockRemainingNrg
+     * @param flags             execution flags, e.g. {@link FastVM#FLAG_STATIC}
+     */
+    public TransactionExecutor(AionTransaction tx, IAionBlock block, BlockContext blockCtx,
+                               IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> repo,
+                               boolean isLocalCall,
+                               long blockRemainingNrg,
+                               int flags) {
+        this(tx, null, block, blockCtx, repo, isLocalCall, blockRemainingNrg, flags);
+    }
+
+    /**
+     * Create a new transaction executor for a transaction which already went
+     * through {@link TransactionValidator}. The signature, format and
+     * intrinsic cost are not checked again, and the parsed fields are reused.
+     *
+     * @param vtx               the validated transaction
+     * @param block             a temporary block used to garner relevant environmental variables
+     * @param blockCtx          the context of the block
+     * @param repo
+     * @param blockRemainingNrg
+     */
+    public TransactionExecutor(ValidatedTransaction vtx, IAionBlock block, BlockContext blockCtx,
+                               IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> repo,
+                               long blockRemainingNrg) {
+        this(vtx.getTransaction(), vtx, block, blockCtx, repo, false, blockRemainingNrg, 0);
+    }
+
+    private TransactionExecutor(AionTransaction tx, ValidatedTransaction validation, IAionBlock block,
+                                BlockContext blockCtx,
+                                IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> repo,
+                                boolean isLocalCall,
+                                long blockRemainingNrg,
+                                int flags) {
         if (logger.isDebugEnabled()) {
             logger.debug("Executing transaction: {}", tx);
         }
@@ -90,9 +154,9 @@ public class TransactionExecutor {
         this.tx = tx;
         this.block = block;
         this.repo = repo;
-        this.repoTrack = this.repo.startTracking();
         this.isLocalCall = isLocalCall;
         this.blockRemainingNrg = blockRemainingNrg;
+        this.validation = validation;
 
         /**
          * transaction info
@@ -107,7 +171,11 @@ public class TransactionExecutor {
          */
         DataWord nrgPrice = tx.nrgPrice();
         long nrgLimit = tx.nrgLimit() - tx.transactionCost(block.getNumber());
-        DataWord callValue = new DataWord(nullToEmpty(tx.getValue()));
+        // the value of a rejected transaction may not even fit in a word
+        byte[] value = validation == null || validation.isValid() ? nullToEmpty(tx.getValue())
+                : ByteUtil.EMPTY_BYTE_ARRAY;
+        DataWord callValue = new DataWord(value);
+        txValue = validation != null && validation.isValid() ? validation.getValue() : Uint128.fromBytes(value);
         byte[] callData = tx.isContractCreation() ? ByteUtil.EMPTY_BYTE_ARRAY : nullToEmpty(tx.getData());
 
         /**
@@ -115,22 +183,6 @@ public class TransactionExecutor {
          */
         int depth = 0;
         int kind = tx.isContractCreation() ? ExecutionContext.CREATE : ExecutionContext.CALL;
-        int flags = 0;
-
-        /**
-         * block info
-         */
-        Address blockCoinbase = block.getCoinbase();
-        long blockNumber = block.getNumber();
-        long blockTimestamp = block.getTimestamp();
-        long blockNrgLimit = block.getNrgLimit();
-
-        // TODO: temp solution for difficulty length
-        byte[] diff = block.getDifficulty();
-        if (diff.length > 16) {
-            diff = Arrays.copyOfRange(diff, diff.length - 16, diff.length);
-        }
-        DataWord blockDifficulty = new DataWord(diff);
 
         /**
          * execution and transaction result
@@ -139,7 +191,7 @@ public class TransactionExecutor {
         txResult = new TransactionResult();
 
         ctx = new ExecutionContext(txHash, address, origin, caller, nrgPrice, nrgLimit, callValue, callData, depth,
-                kind, flags, blockCoinbase, blockNumber, blockTimestamp, blockNrgLimit, blockDifficulty, txResult);
+                kind, flags, blockCtx, txResult);
     }
 
     /**
@@ -167,50 +219,58 @@ public class TransactionExecutor {
     }
 
     /**
-     * Execute the transaction
+     * Execute the transaction. Executors working on independent repositories
+     * can be run concurrently.
      */
     public AionTxExecSummary execute() {
-        synchronized (lock) {
-            // prepare, preliminary check
-            if (prepare()) {
-
-                if (!isLocalCall) {
-                    IRepositoryCache track = repo.startTracking();
-                    // increase nonce
-                    track.incrementNonce(tx.getFrom());
-
-                    // charge nrg cost
-                    BigInteger txNrgLimit = BigInteger.valueOf(tx.nrgLimit());
-                    BigInteger txNrgPrice = tx.nrgPrice().value();
-                    BigInteger txNrgCost = txNrgLimit.multiply(txNrgPrice);
-                    track.addBalance(tx.getFrom(), txNrgCost.negate());
-                    track.flush();
-                }
+        // prepare, preliminary check
+        if (prepare()) {
 
-                // run the logic
-                if (tx.isContractCreation()) {
-                    create();
-                } else {
-                    call();
-                }
+            if (!isLocalCall) {
+                IRepositoryCache track = repo.startTracking();
+                // increase nonce
+                track.incrementNonce(tx.getFrom());
+
+                // charge nrg cost
+                track.addBalance(tx.getFrom(), txNrgCost.toNegatedBigInteger());
+                track.flush();
             }
 
-            // finalize
-            return finish();
+            // run the logic, on a track started after the nrg is charged
+            // so that rolling it back never undoes the charge
+            repoTrack = repo.startTracking();
+            if (tx.isContractCreation()) {
+                create();
+            } else {
+                call();
+            }
         }
+
+        // finalize
+        return finish();
     }
 
     /**
      * Prepares the context for transaction execution.
      */
     protected boolean prepare() {
+        // static mode allows neither creating a contract nor transferring value
+        if ((ctx.flags() & FastVM.FLAG_STATIC) != 0 && (tx.isContractCreation() || !txValue.isZero())) {
+            exeResult.setCodeAndNrgLeft(Code.INVALID_TRANSACTION, 0);
+            return false;
+        }
+
         if (isLocalCall) {
             return true;
         }
 
+        // rejected by the validator
+        if (validation != null && !validation.isValid()) {
+            exeResult.setCodeAndNrgLeft(validation.getCode(), 0);
+            return false;
+        }
 
         // check nrg limit
-        BigInteger txNrgPrice = tx.nrgPrice().value();
         long txNrgLimit = tx.nrgLimit();
         if (txNrgLimit > blockRemainingNrg || ctx.nrgLimit() < 0) {
             exeResult.setCodeAndNrgLeft(Code.INVALID_NRG_LIMIT, 0);
@@ -218,7 +278,7 @@ public class TransactionExecutor {
         }
 
         // check nonce
-        BigInteger txNonce = new BigInteger(1, tx.getNonce());
+        BigInteger txNonce = validation != null ? validation.getNonce() : new BigInteger(1, tx.getNonce());
         BigInteger nonce = repo.getNonce(tx.getFrom());
 
         if (!txNonce.equals(nonce)) {
@@ -227,15 +287,22 @@ public class TransactionExecutor {
         }
 
         // check balance
-        BigInteger txValue = new BigInteger(1, tx.getValue());
-        BigInteger txTotal = txNrgPrice.multiply(BigInteger.valueOf(txNrgLimit)).add(txValue);
-        BigInteger balance = repo.getBalance(tx.getFrom());
+        Uint128 txTotal;
+        try {
+            txNrgCost = Uint128.of(tx.nrgPrice()).mul(txNrgLimit);
+            txTotal = txNrgCost.copy().add(txValue);
+        } catch (ArithmeticException e) {
+            exeResult.setCodeAndNrgLeft(Code.INSUFFICIENT_BALANCE, 0);
+            return false;
+        }
+        Uint128 balance = Uint128.of(repo.getBalance(tx.getFrom()));
         if (txTotal.compareTo(balance) > 0) {
             exeResult.setCodeAndNrgLeft(Code.INSUFFICIENT_BALANCE, 0);
             return false;
         }
 
-        // TODO: confirm if signature check is not required here
+        // NOTE: the signature is only checked when the transaction went
+        // through TransactionValidator
 
         return true;
     }
@@ -252,15 +319,14 @@ public class TransactionExecutor {
             // execute code
             byte[] code = repoTrack.getCode(tx.getTo());
             if (!isEmpty(code)) {
-                VirtualMachine fvm = new FastVM();
-                exeResult = fvm.run(code, ctx, repoTrack);
+                FastVM fvm = new FastVM();
+                exeResult = fvm.run(code, FastVM.codeHash(tx.getTo(), code), ctx, repoTrack);
             }
         }
 
         // transfer value
-        BigInteger txValue = new BigInteger(1, tx.getValue());
-        repoTrack.addBalance(tx.getFrom(), txValue.negate());
-        repoTrack.addBalance(tx.getTo(), txValue);
+        repoTrack.addBalance(tx.getFrom(), txValue.toNegatedBigInteger());
+        repoTrack.addBalance(tx.getTo(), txValue.toBigInteger());
     }
 
     /**
@@ -283,14 +349,16 @@ public class TransactionExecutor {
             exeResult = fvm.run(tx.getData(), ctx, repoTrack);
 
             if (exeResult.getCode() == Code.SUCCESS) {
+                if (!isEmpty(exeResult.getOutput())) {
+                    FastVM.deployed(contractAddress, exeResult.getOutput());
+                }
                 repoTrack.saveCode(contractAddress, exeResult.getOutput());
             }
         }
 
         // transfer value
-        BigInteger txValue = new BigInteger(1, tx.getValue());
-        repoTrack.addBalance(tx.getFrom(), txValue.negate());
-        repoTrack.addBalance(contractAddress, txValue);
+        repoTrack.addBalance(tx.getFrom(), txValue.toNegatedBigInteger());
+        repoTrack.addBalance(contractAddress, txValue.toBigInteger());
     }
 
     /**
@@ -313,6 +381,7 @@ public class TransactionExecutor {
             case INVALID_NONCE:
             case INVALID_NRG_LIMIT:
             case INSUFFICIENT_BALANCE:
+            case INVALID_TRANSACTION:
                 builder.markAsRejected();
                 break;
             case CONTRACT_ALREADY_EXISTS:
@@ -324,6 +393,7 @@ public class TransactionExecutor {
             case STACK_UNDERFLOW:
             case REVERT:
             case INTERNAL_ERROR:
+                repoTrack.rollback();
                 builder.markAsFailed();
                 break;
             default:
@@ -68,7 +68,7 @@ public class TransactionResult {
     }
 
     private Set<Address> deleteAccounts = new HashSet<>();
-    private List<AionInternalTx> internalTxs = new ArrayList<>();
+    private InternalTxTrace internalTxs = new InternalTxTrace();
     private List<Log> logs = new ArrayList<>();
     private List<Call> calls = new ArrayList<>();
 
@@ -159,11 +159,21 @@ public class TransactionResult {
     }
 
     /**
-     * Returns internal transactions.
+     * Returns internal transactions. The returned list is a view of the
+     * trace, which builds each internal transaction on first access.
      *
      * @return
      */
     public List<AionInternalTx> getInternalTransactions() {
+        return internalTxs.asList();
+    }
+
+    /**
+     * Returns the trace of internal transactions.
+     *
+     * @return
+     */
+    public InternalTxTrace getInternalTxTrace() {
         return internalTxs;
     }
 
@@ -182,16 +192,16 @@ public class TransactionResult {
      * @param txs
      */
     public void addInternalTransactions(Collection<AionInternalTx> txs) {
-        internalTxs.addAll(txs);
+        for (AionInternalTx tx : txs) {
+            internalTxs.add(tx);
+        }
     }
 
     /**
      * Reject all internal transactions.
      */
     public void rejectInternalTransactions() {
-        for (AionInternalTx tx : getInternalTransactions()) {
-            tx.reject();
-        }
+        internalTxs.rejectAll();
     }
 
     /**
@@ -200,7 +210,7 @@ public class TransactionResult {
      * @param another
      */
     public void merge(TransactionResult another) {
-        addInternalTransactions(another.getInternalTransactions());
+        internalTxs.addAll(another.internalTxs);
         addDeleteAccounts(another.getDeleteAccounts());
         addLogs(another.getLogs());
     }
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.crypto.ISignature;
+import org.aion.crypto.SignatureFac;
+import org.aion.vm.ExecutionResult.Code;
+import org.aion.zero.types.AionTransaction;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Transaction validator checks the parts of a transaction which don't depend
+ * on the state: format, intrinsic cost and signature. It runs in front of
+ * {@link TransactionExecutor}, over all the transactions of a block, in
+ * parallel batches; the executor is then left with the nonce and balance
+ * checks.
+ *
+ * @author yulong
+ */
+public class TransactionValidator {
+
+    /**
+     * Default number of transactions validated by one task.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private ExecutorService executor;
+    private int batchSize;
+
+    /**
+     * Creates a transaction validator.
+     *
+     * @param executor the thread pool which runs the batches
+     */
+    public TransactionValidator(ExecutorService executor) {
+        this(executor, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a transaction validator.
+     *
+     * @param executor  the thread pool which runs the batches
+     * @param batchSize number of transactions validated by one task
+     */
+    public TransactionValidator(ExecutorService executor, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        this.executor = executor;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Validates the given transactions, in the context of the given block.
+     *
+     * @param txs         transactions, in block order
+     * @param blockNumber the block number
+     * @return the validated transactions, in block order
+     */
+    public List<ValidatedTransaction> validate(List<AionTransaction> txs, long blockNumber) {
+        List<Future<ValidatedTransaction[]>> futures = new ArrayList<>(txs.size() / batchSize + 1);
+        for (int from = 0; from < txs.size(); from += batchSize) {
+            List<AionTransaction> batch = txs.subList(from, Math.min(from + batchSize, txs.size()));
+            futures.add(executor.submit(() -> validate(batch, blockNumber, new ValidatedTransaction[batch.size()])));
+        }
+
+        List<ValidatedTransaction> result = new ArrayList<>(txs.size());
+        for (Future<ValidatedTransaction[]> f : futures) {
+            for (ValidatedTransaction vtx : await(f)) {
+                result.add(vtx);
+            }
+        }
+        return result;
+    }
+
+    private static ValidatedTransaction[] validate(List<AionTransaction> batch, long blockNumber,
+                                                   ValidatedTransaction[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = validate(batch.get(i), blockNumber);
+        }
+        return out;
+    }
+
+    /**
+     * Validates one transaction, in the context of the given block.
+     *
+     * @param tx
+     * @param blockNumber
+     * @return
+     */
+    public static ValidatedTransaction validate(AionTransaction tx, long blockNumber) {
+        // check format
+        byte[] hash = tx.getHash();
+        byte[] nonce = tx.getNonce();
+        byte[] value = tx.getValue();
+        if (hash == null || hash.length != 32 || nonce == null || value == null || value.length > 16
+                || tx.nrgLimit() < 0) {
+            return new ValidatedTransaction(tx, Code.INVALID_TRANSACTION, null, null);
+        }
+
+        // check intrinsic cost
+        if (tx.nrgLimit() < tx.transactionCost(blockNumber)) {
+            return new ValidatedTransaction(tx, Code.INVALID_NRG_LIMIT, null, null);
+        }
+
+        // check signature
+        ISignature sig = tx.getSignature();
+        if (sig == null || !SignatureFac.verify(tx.getRawHash(), sig)) {
+            return new ValidatedTransaction(tx, Code.INVALID_TRANSACTION, null, null);
+        }
+
+        return new ValidatedTransaction(tx, Code.SUCCESS, new BigInteger(1, nonce),
+                Uint128.fromBytes(value));
+    }
+
+    private static ValidatedTransaction[] await(Future<ValidatedTransaction[]> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while validating transactions", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to validate transactions", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.mcf.vm.types.DataWord;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * A mutable unsigned 128-bit integer, the size of Aion values, balances and
+ * nrg fees, kept in two longs. Arithmetic is done in place and throws
+ * {@link ArithmeticException} on overflow, so that values can be accumulated
+ * without allocating a {@link BigInteger} per operation.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @author yulong
+ */
+public class Uint128 implements Comparable<Uint128> {
+
+    /**
+     * Size of the binary encoding.
+     */
+    public static final int BYTES = 16;
+
+    private long hi;
+    private long lo;
+
+    /**
+     * Creates a zero.
+     */
+    public Uint128() {
+    }
+
+    /**
+     * Creates a uint128 from its high and low 64 bits.
+     *
+     * @param hi
+     * @param lo
+     */
+    public Uint128(long hi, long lo) {
+        this.hi = hi;
+        this.lo = lo;
+    }
+
+    /**
+     * Creates a uint128 from a non-negative long.
+     *
+     * @param value
+     * @return
+     */
+    public static Uint128 of(long value) {
+        if (value < 0) {
+            throw new ArithmeticException("Negative value: " + value);
+        }
+        return new Uint128(0, value);
+    }
+
+    /**
+     * Creates a uint128 from a data word.
+     *
+     * @param word
+     * @return
+     */
+    public static Uint128 of(DataWord word) {
+        return fromBytes(word.getData());
+    }
+
+    /**
+     * Creates a uint128 from a big integer.
+     *
+     * @param value
+     * @return
+     */
+    public static Uint128 of(BigInteger value) {
+        return new Uint128().set(value);
+    }
+
+    /**
+     * Parses a uint128 from an unsigned big-endian byte array, of at most 16
+     * significant bytes.
+     *
+     * @param bytes
+     * @return
+     */
+    public static Uint128 fromBytes(byte[] bytes) {
+        Uint128 n = new Uint128();
+        for (int i = 0; i < bytes.length; i++) {
+            if (n.hi >>> 56 != 0) {
+                throw new ArithmeticException("uint128 overflow");
+            }
+            n.hi = (n.hi << 8) | (n.lo >>> 56);
+            n.lo = (n.lo << 8) | (bytes[i] & 0xff);
+        }
+        return n;
+    }
+
+    /**
+     * Sets the value to the given big integer.
+     *
+     * @param value
+     * @return this
+     */
+    public Uint128 set(BigInteger value) {
+        if (value.signum() < 0 || value.bitLength() > 128) {
+            throw new ArithmeticException("Out of uint128 range: " + value);
+        }
+        this.hi = value.shiftRight(64).longValue();
+        this.lo = value.longValue();
+        return this;
+    }
+
+    /**
+     * Sets the value to another uint128.
+     *
+     * @param other
+     * @return this
+     */
+    public Uint128 set(Uint128 other) {
+        this.hi = other.hi;
+        this.lo = other.lo;
+        return this;
+    }
+
+    /**
+     * Adds another uint128 to this one.
+     *
+     * @param other
+     * @return this
+     */
+    public Uint128 add(Uint128 other) {
+        long l = lo + other.lo;
+        long carry = Long.compareUnsigned(l, lo) < 0 ? 1 : 0;
+        long h = hi + other.hi;
+        if (Long.compareUnsigned(h, hi) < 0 || (h == -1L && carry == 1)) {
+            throw new ArithmeticException("uint128 overflow");
+        }
+        hi = h + carry;
+        lo = l;
+        return this;
+    }
+
+    /**
+     * Subtracts another uint128 from this one.
+     *
+     * @param other
+     * @return this
+     */
+    public Uint128 sub(Uint128 other) {
+        if (compareTo(other) < 0) {
+            throw new ArithmeticException("uint128 underflow");
+        }
+        long l = lo - other.lo;
+        long borrow = Long.compareUnsigned(lo, other.lo) < 0 ? 1 : 0;
+        hi = hi - other.hi - borrow;
+        lo = l;
+        return this;
+    }
+
+    /**
+     * Multiplies this uint128 by a non-negative long.
+     *
+     * @param value
+     * @return this
+     */
+    public Uint128 mul(long value) {
+        if (value < 0) {
+            throw new ArithmeticException("Negative value: " + value);
+        }
+
+        // (hi * 2^64 + lo) * value, where hi * value must fit in 64 bits
+        if (Math.multiplyHigh(hi, value) + ((hi >> 63) & value) != 0) {
+            throw new ArithmeticException("uint128 overflow");
+        }
+        long h = hi * value;
+        long loHi = Math.multiplyHigh(lo, value) + ((lo >> 63) & value); // unsigned high bits of lo * value
+        long sum = h + loHi;
+        if (Long.compareUnsigned(sum, h) < 0) {
+            throw new ArithmeticException("uint128 overflow");
+        }
+        hi = sum;
+        lo = lo * value;
+        return this;
+    }
+
+    /**
+     * Returns whether this is zero.
+     *
+     * @return
+     */
+    public boolean isZero() {
+        return hi == 0 && lo == 0;
+    }
+
+    /**
+     * Returns a copy of this uint128.
+     *
+     * @return
+     */
+    public Uint128 copy() {
+        return new Uint128(hi, lo);
+    }
+
+    @Override
+    public int compareTo(Uint128 other) {
+        int c = Long.compareUnsigned(hi, other.hi);
+        return c != 0 ? c : Long.compareUnsigned(lo, other.lo);
+    }
+
+    /**
+     * Returns the value as a big integer.
+     *
+     * @return
+     */
+    public BigInteger toBigInteger() {
+        if (hi == 0 && lo >= 0) {
+            return BigInteger.valueOf(lo);
+        }
+        return new BigInteger(1, toBytes());
+    }
+
+    /**
+     * Returns the negated value as a big integer, as passed to
+     * <code>addBalance</code> for debits.
+     *
+     * @return
+     */
+    public BigInteger toNegatedBigInteger() {
+        if (hi == 0 && lo >= 0) {
+            return BigInteger.valueOf(-lo);
+        }
+        return new BigInteger(-1, toBytes());
+    }
+
+    /**
+     * Returns the value as a 16-byte big-endian array.
+     *
+     * @return
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[BYTES];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (hi >>> (56 - 8 * i));
+            bytes[8 + i] = (byte) (lo >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the value, 16 bytes big-endian, at the given offset of a buffer.
+     * The position of the buffer is not changed.
+     *
+     * @param buffer
+     * @param offset
+     */
+    public void writeTo(ByteBuffer buffer, int offset) {
+        buffer.putLong(offset, hi);
+        buffer.putLong(offset + 8, lo);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Uint128)) {
+            return false;
+        }
+        Uint128 other = (Uint128) o;
+        return hi == other.hi && lo == other.lo;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(hi) * 31 + Long.hashCode(lo);
+    }
+
+    @Override
+    public String toString() {
+        return toBigInteger().toString();
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.vm.ExecutionResult.Code;
+import org.aion.zero.types.AionTransaction;
+
+import java.math.BigInteger;
+
+/**
+ * A transaction which went through {@link TransactionValidator}, along with
+ * the outcome of the validation and the fields parsed on the way.
+ *
+ * @author yulong
+ */
+public class ValidatedTransaction {
+
+    private AionTransaction tx;
+    private Code code;
+    private BigInteger nonce;
+    private Uint128 value;
+
+    /**
+     * Creates a validated transaction.
+     *
+     * @param tx
+     * @param code  SUCCESS if the transaction is valid, otherwise the reason it's rejected
+     * @param nonce the parsed nonce, or null if the transaction is invalid
+     * @param value the parsed value, or null if the transaction is invalid
+     */
+    public ValidatedTransaction(AionTransaction tx, Code code, BigInteger nonce, Uint128 value) {
+        this.tx = tx;
+        this.code = code;
+        this.nonce = nonce;
+        this.value = value;
+    }
+
+    /**
+     * Returns the transaction.
+     *
+     * @return
+     */
+    public AionTransaction getTransaction() {
+        return tx;
+    }
+
+    /**
+     * Returns the validation code.
+     *
+     * @return
+     */
+    public Code getCode() {
+        return code;
+    }
+
+    /**
+     * Returns whether the transaction passed validation.
+     *
+     * @return
+     */
+    public boolean isValid() {
+        return code == Code.SUCCESS;
+    }
+
+    /**
+     * Returns the nonce.
+     *
+     * @return
+     */
+    public BigInteger getNonce() {
+        return nonce;
+    }
+
+    /**
+     * Returns the value. It must not be modified.
+     *
+     * @return
+     */
+    public Uint128 getValue() {
+        return value;
+    }
+}
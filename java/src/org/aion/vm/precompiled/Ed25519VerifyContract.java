@@ -0,0 +1,77 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm.precompiled;
+
+import org.aion.crypto.ed25519.ECKeyEd25519;
+import org.aion.vm.ExecutionResult;
+import org.aion.vm.PrecompiledContracts;
+
+/**
+ * A stateless precompiled contract which verifies an ed25519 signature.
+ *
+ * @author yulong
+ */
+public class Ed25519VerifyContract extends PrecompiledContracts.PrecompiledContract {
+
+    public final static long COST = 3000L;
+
+    private static final int INPUT_LENGTH = 32 + 32 + 64;
+
+    /**
+     * Define the input data format as the following:
+     * <p>
+     * <pre>
+     *   {@code
+     *   [<32b - message> | <32b - public key> | <64b - signature>]
+     *   total: 32 + 32 + 64 = 128
+     *   }
+     * </pre>
+     * <p>
+     * The output is the public key if the signature of the message is valid,
+     * or 32 zero bytes otherwise.
+     */
+    @Override
+    public ExecutionResult execute(byte[] input, long nrg) {
+        if (nrg < COST) {
+            return new ExecutionResult(ExecutionResult.Code.OUT_OF_NRG, 0);
+        }
+
+        if (input.length != INPUT_LENGTH) {
+            return new ExecutionResult(ExecutionResult.Code.FAILURE, 0);
+        }
+
+        byte[] msg = new byte[32];
+        byte[] pubKey = new byte[32];
+        byte[] sig = new byte[64];
+        System.arraycopy(input, 0, msg, 0, 32);
+        System.arraycopy(input, 32, pubKey, 0, 32);
+        System.arraycopy(input, 64, sig, 0, 64);
+
+        boolean valid;
+        try {
+            valid = ECKeyEd25519.verify(msg, sig, pubKey);
+        } catch (Exception e) {
+            valid = false;
+        }
+
+        return new ExecutionResult(ExecutionResult.Code.SUCCESS, nrg - COST, valid ? pubKey : new byte[32]);
+    }
+}
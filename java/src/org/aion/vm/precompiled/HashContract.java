@@ -0,0 +1,72 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm.precompiled;
+
+import org.aion.vm.ExecutionResult;
+import org.aion.vm.PrecompiledContracts;
+
+import java.util.function.UnaryOperator;
+
+/**
+ * A stateless precompiled contract which returns the hash of its input. The
+ * cost is a base cost plus a cost per 32-byte word of input, rounded up.
+ *
+ * @author yulong
+ */
+public class HashContract extends PrecompiledContracts.PrecompiledContract {
+
+    private UnaryOperator<byte[]> hash;
+    private long baseCost;
+    private long wordCost;
+
+    /**
+     * Creates a hash contract.
+     *
+     * @param hash     the hash function
+     * @param baseCost
+     * @param wordCost
+     */
+    public HashContract(UnaryOperator<byte[]> hash, long baseCost, long wordCost) {
+        this.hash = hash;
+        this.baseCost = baseCost;
+        this.wordCost = wordCost;
+    }
+
+    /**
+     * Returns the cost of hashing the given number of bytes.
+     *
+     * @param length
+     * @return
+     */
+    public long cost(int length) {
+        return baseCost + wordCost * ((length + 31L) / 32);
+    }
+
+    @Override
+    public ExecutionResult execute(byte[] input, long nrg) {
+        long cost = cost(input.length);
+        if (nrg < cost) {
+            return new ExecutionResult(ExecutionResult.Code.OUT_OF_NRG, 0);
+        }
+
+        return new ExecutionResult(ExecutionResult.Code.SUCCESS, nrg - cost, hash.apply(input));
+    }
+}
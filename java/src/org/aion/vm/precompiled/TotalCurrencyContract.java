@@ -22,17 +22,15 @@ package org.aion.vm.precompiled;
 
 import org.aion.base.db.IRepositoryCache;
 import org.aion.base.type.Address;
-import org.aion.base.util.BIUtil;
 import org.aion.mcf.core.AccountState;
 import org.aion.crypto.ed25519.ECKeyEd25519;
 import org.aion.crypto.ed25519.Ed25519Signature;
 import org.aion.mcf.db.IBlockStoreBase;
 import org.aion.vm.ExecutionResult;
 import org.aion.vm.PrecompiledContracts;
+import org.aion.vm.Uint128;
 import org.aion.mcf.vm.types.DataWord;
 
-import java.math.BigInteger;
-
 /**
  * Responsible for maintaining the global state of contracts across
  * all implementations of AION. In it's first implementation this contract
@@ -157,28 +155,31 @@ public class TotalCurrencyContract extends PrecompiledContracts.StatefulPrecompi
 
         // payload processing
         DataWord totalCurr = this.track.getStorageValue(this.address, chainId);
-        BigInteger totalCurrBI = totalCurr == null ? BigInteger.ZERO : BIUtil.toBI(totalCurr.getData());
-        BigInteger value = BIUtil.toBI(amount);
+        Uint128 total = totalCurr == null ? new Uint128() : Uint128.of(totalCurr);
+        Uint128 value = Uint128.fromBytes(amount);
 
         if (signum != 0x0 && signum != 0x1) {
             return new ExecutionResult(ExecutionResult.Code.INTERNAL_ERROR, 0);
         }
 
-        BigInteger finalValue;
         if (signum == 0x0) {
             // addition
-            finalValue = totalCurrBI.add(value);
+            try {
+                total.add(value);
+            } catch (ArithmeticException e) {
+                return new ExecutionResult(ExecutionResult.Code.INTERNAL_ERROR, 0);
+            }
         } else {
             // subtraction
-            if (value.compareTo(totalCurrBI) > 0) {
+            if (value.compareTo(total) > 0) {
                 return new ExecutionResult(ExecutionResult.Code.INTERNAL_ERROR, 0);
             }
 
-            finalValue = totalCurrBI.subtract(value);
+            total.sub(value);
         }
 
         // store result and successful exit
-        this.track.addStorageRow(this.address, chainId, new DataWord(finalValue.toByteArray()));
+        this.track.addStorageRow(this.address, chainId, new DataWord(total.toBytes()));
         return new ExecutionResult(ExecutionResult.Code.SUCCESS, nrg - COST);
     }
 }
@@ -125,7 +125,11 @@ public class DummyRepository implements IRepositoryCache<AccountState, DataWord,
 
     @Override
     public Map<DataWord, DataWord> getStorage(Address address, Collection<DataWord> keys) {
-        throw new RuntimeException("Not supported");
+        Map<DataWord, DataWord> map = new HashMap<>();
+        for (DataWord key : keys) {
+            map.put(key, getStorageValue(address, key));
+        }
+        return map;
     }
 
     @Override
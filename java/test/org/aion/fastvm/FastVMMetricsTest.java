@@ -0,0 +1,97 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.fastvm;
+
+import org.aion.base.type.Address;
+import org.aion.base.util.Hex;
+import org.aion.fastvm.FastVMMetrics.CallbackKind;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.vm.ExecutionContext;
+import org.aion.vm.ExecutionResult;
+import org.aion.vm.TransactionResult;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FastVMMetricsTest {
+
+    private Address address = Address.wrap(RandomUtils.nextBytes(32));
+    private Address caller = Address.wrap(RandomUtils.nextBytes(32));
+
+    private ExecutionResult run(byte[] code, DummyRepository repo) {
+        ExecutionContext ctx = new ExecutionContext(new byte[32], address, caller, caller, DataWord.ONE, 100_000L,
+                DataWord.ZERO, new byte[0], 0, ExecutionContext.CALL, 0, caller, 1L, 0L, 5_000_000L, DataWord.ONE,
+                new TransactionResult());
+        return new FastVM().run(code, ctx, repo);
+    }
+
+    @Test
+    public void testExecutionsCounted() {
+        // PUSH1 1, SLOAD, POP, and something unique, so that it's compiled
+        byte[] code = Hex.decode("6001545060" + Hex.toHexString(RandomUtils.nextBytes(1)) + "5000");
+        DummyRepository repo = new DummyRepository();
+        repo.addContract(address, code);
+
+        FastVMMetrics before = FastVM.getMetrics();
+        FastVM.setCallbackMetrics(true);
+        try {
+            run(code, repo);
+            run(code, repo);
+        } finally {
+            FastVM.setCallbackMetrics(false);
+        }
+        FastVMMetrics delta = FastVM.getMetrics().minus(before);
+
+        assertTrue(delta.getExecutions() >= 2);
+        assertTrue(delta.getCodeMapHits() >= 1);
+        assertTrue(delta.getPhaseTimeNanos(FastVMMetrics.Phase.EXECUTION) > 0);
+        assertTrue(delta.getCallbackCount(CallbackKind.GET_STORAGE) >= 2);
+        assertTrue(delta.getCallbackLatencyNanos(CallbackKind.GET_STORAGE, 99) > 0);
+        assertTrue(FastVM.getMetrics().getCompilations() >= 1);
+    }
+
+    @Test
+    public void testLatencyPercentiles() {
+        long[] jit = new long[FastVMMetrics.JIT_METRICS];
+        long[] callbacks = new long[FastVMMetrics.CALLBACK_METRICS_SIZE];
+        int offset = CallbackKind.GET_BALANCE.ordinal() * (2 + FastVMMetrics.LATENCY_BUCKETS);
+        callbacks[offset] = 100;
+        callbacks[offset + 1] = 100 * 1000;
+        callbacks[offset + 2 + 9] = 90; // [512, 1024) ns
+        callbacks[offset + 2 + 12] = 10; // [4096, 8192) ns
+        FastVMMetrics metrics = new FastVMMetrics(jit, callbacks);
+
+        assertEquals(100, metrics.getCallbackCount(CallbackKind.GET_BALANCE));
+        assertEquals(1024, metrics.getCallbackLatencyNanos(CallbackKind.GET_BALANCE, 50));
+        assertEquals(1024, metrics.getCallbackLatencyNanos(CallbackKind.GET_BALANCE, 90));
+        assertEquals(8192, metrics.getCallbackLatencyNanos(CallbackKind.GET_BALANCE, 99));
+        assertEquals(0, metrics.getCallbackLatencyNanos(CallbackKind.LOG, 99));
+
+        // counters are subtracted, gauges aren't
+        jit[13] = 4096;
+        FastVMMetrics later = new FastVMMetrics(jit.clone(), callbacks.clone());
+        FastVMMetrics delta = later.minus(metrics);
+        assertEquals(0, delta.getCallbackCount(CallbackKind.GET_BALANCE));
+        assertEquals(4096, delta.getCodeMemory());
+    }
+}
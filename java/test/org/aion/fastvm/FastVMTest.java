@@ -35,6 +35,8 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -95,6 +97,63 @@ public class FastVMTest {
         assertEquals(16, result.getOutput().length);
     }
 
+    @Test
+    public void testRunBatch() {
+        ExecutionContext ctx = new ExecutionContext(txHash, address, origin, caller, nrgPrice, nrgLimit, callValue,
+                callData, depth, kind, flags, blockCoinbase, blockNumber, blockTimestamp, blockNrgLimit,
+                blockDifficulty, txResult);
+        FastVM vm = new FastVM();
+
+        byte[] code = Hex.decode("6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF60020160E052601060E0F3");
+        List<ExecutionResult> results = vm.runBatch(Arrays.asList(code, code, code), Arrays.asList(ctx, ctx, ctx),
+                new DummyRepository());
+
+        assertEquals(3, results.size());
+        for (ExecutionResult result : results) {
+            assertEquals(Code.SUCCESS, result.getCode());
+            assertEquals(19985, result.getNrgLeft());
+            assertEquals(16, result.getOutput().length);
+        }
+    }
+
+    @Test
+    public void testRunWithCodeHash() {
+        ExecutionContext ctx = new ExecutionContext(txHash, address, origin, caller, nrgPrice, nrgLimit, callValue,
+                callData, depth, kind, flags, blockCoinbase, blockNumber, blockTimestamp, blockNrgLimit,
+                blockDifficulty, txResult);
+        FastVM vm = new FastVM();
+
+        byte[] code = Hex.decode("6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF60020160E052601060E0F3");
+        byte[] codeHash = FastVM.deployed(address, code);
+        assertSame(codeHash, FastVM.codeHash(address, code));
+        assertArrayEquals(codeHash, FastVM.codeHash(address, code.clone()));
+        assertFalse(Arrays.equals(codeHash, FastVM.codeHash(address, Hex.decode("00"))));
+
+        // the second run takes the code from the code store
+        for (int i = 0; i < 2; i++) {
+            ExecutionResult result = vm.run(code, codeHash, ctx, new DummyRepository());
+            assertEquals(Code.SUCCESS, result.getCode());
+            assertEquals(19985, result.getNrgLeft());
+            assertEquals(16, result.getOutput().length);
+        }
+    }
+
+    @Test
+    public void testLargeOutput() {
+        ExecutionContext ctx = new ExecutionContext(txHash, address, origin, caller, nrgPrice, nrgLimit, callValue,
+                callData, depth, kind, flags, blockCoinbase, blockNumber, blockTimestamp, blockNrgLimit,
+                blockDifficulty, txResult);
+        FastVM vm = new FastVM();
+
+        // return 2048 bytes of memory, larger than the pooled result buffer
+        byte[] code = Hex.decode("6108006000F3");
+        ExecutionResult result = vm.run(code, ctx, new DummyRepository());
+        System.out.println(result);
+
+        assertEquals(Code.SUCCESS, result.getCode());
+        assertEquals(2048, result.getOutput().length);
+    }
+
     @Test
     public void testGetCodeByAddress1() {
         ExecutionContext ctx = new ExecutionContext(txHash, address, origin, caller, nrgPrice, nrgLimit, callValue,
@@ -153,6 +212,27 @@ public class FastVMTest {
         assertEquals("00000000000000000000000000000004", Hex.toHexString(result.getOutput()));
     }
 
+    @Test
+    public void testGetCodeSizeAndCode() {
+        ExecutionContext ctx = new ExecutionContext(txHash, address, origin, caller, nrgPrice, nrgLimit, callValue,
+                callData, depth, kind, flags, blockCoinbase, blockNumber, blockTimestamp, blockNrgLimit,
+                blockDifficulty, txResult);
+        FastVM vm = new FastVM();
+
+        // EXTCODESIZE, then EXTCODECOPY and EXTCODESIZE again, of the same account
+        String other = "6F111111111111111111111111111111116F11111111111111111111111111111111";
+        byte[] code = Hex.decode(other + "3B50" + "6020600060E0" + other + "3C" + other + "3B61010052" + "603060E0F3");
+        DummyRepository repo = new DummyRepository();
+        repo.addContract(Address.wrap(Hex.decode("1111111111111111111111111111111111111111111111111111111111111111")), Hex.decode("11223344"));
+
+        ExecutionResult result = vm.run(code, ctx, repo);
+        System.out.println(result);
+
+        assertEquals(Code.SUCCESS, result.getCode());
+        assertEquals("1122334400000000000000000000000000000000000000000000000000000000"
+                + "00000000000000000000000000000004", Hex.toHexString(result.getOutput()));
+    }
+
     @Test
     public void testBalance() {
         ExecutionContext ctx = new ExecutionContext(txHash, address, origin, caller, nrgPrice, nrgLimit, callValue,
@@ -201,6 +281,17 @@ public class FastVMTest {
         assertEquals("00000000000000000000000000000003", Hex.toHexString(result.getOutput()));
     }
 
+    @Test
+    public void testCallInterpretedCallee() throws IOException {
+        // the callee is cold, so the call goes through Java and is interpreted
+        FastVM.setInterpreterThreshold(1000);
+        try {
+            testCall();
+        } finally {
+            FastVM.setInterpreterThreshold(0);
+        }
+    }
+
     @Test
     public void testCreate() throws IOException {
         byte[] contract = ContractUtils.getContractBody("Create.sol", "Create");
@@ -318,6 +409,31 @@ public class FastVMTest {
         assertEquals(0, result.getNrgLeft());
     }
 
+    @Test
+    public void testStorageCache() {
+        String code = "6005600155" /* SSTORE(1, 0x05) */
+                + "6007600155" /* SSTORE(1, 0x07) */
+                + "600154" /* SLOAD(1) */
+                + "60E052601060E0F3" /* RETURN */;
+        nrgLimit = 100_000L;
+
+        ExecutionContext ctx = new ExecutionContext(txHash, address, origin, caller, nrgPrice, nrgLimit, callValue,
+                callData, depth, kind, flags, blockCoinbase, blockNumber, blockTimestamp, blockNrgLimit,
+                blockDifficulty, txResult);
+        DummyRepository repo = new DummyRepository();
+        repo.addStorageRow(address, new DataWord(2), new DataWord(3));
+
+        FastVM vm = new FastVM();
+        ExecutionResult result = vm.run(Hex.decode(code), ctx, repo);
+        System.out.println(result);
+        assertEquals(Code.SUCCESS, result.getCode());
+        assertEquals("00000000000000000000000000000007", Hex.toHexString(result.getOutput()));
+
+        // the last write is passed on to the repository when the execution ends
+        assertEquals(new DataWord(7), repo.getStorageValue(address, new DataWord(1)));
+        assertEquals(new DataWord(3), repo.getStorageValue(address, new DataWord(2)));
+    }
+
     @Test
     public void testLOG0Loop() throws Exception {
         String code = "5b" + "632fffffff6000a0" + "600056";
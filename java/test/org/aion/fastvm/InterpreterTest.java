@@ -0,0 +1,262 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.fastvm;
+
+import org.aion.base.type.Address;
+import org.aion.base.util.Hex;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.vm.ExecutionContext;
+import org.aion.vm.ExecutionResult;
+import org.aion.vm.ExecutionResult.Code;
+import org.aion.vm.TransactionResult;
+import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.BitSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that the interpreter produces the same results as the jit.
+ */
+public class InterpreterTest {
+
+    private byte[] txHash = RandomUtils.nextBytes(32);
+    private Address origin = Address.wrap(RandomUtils.nextBytes(32));
+    private Address caller = origin;
+    private Address address = Address.wrap(RandomUtils.nextBytes(32));
+
+    private Address blockCoinbase = Address.wrap(RandomUtils.nextBytes(32));
+    private long blockNumber = 1;
+    private long blockTimestamp = System.currentTimeMillis() / 1000;
+    private long blockNrgLimit = 5000000;
+    private DataWord blockDifficulty = new DataWord(0x100000000L);
+
+    private DataWord nrgPrice;
+    private long nrgLimit;
+    private DataWord callValue;
+    private byte[] callData;
+
+    private int depth = 0;
+    private int kind = ExecutionContext.CALL;
+    private int flags = 0;
+
+    private Address other = Address.wrap(Hex.decode("1111111111111111111111111111111111111111111111111111111111111111"));
+
+    @Before
+    public void setup() {
+        nrgPrice = DataWord.ONE;
+        nrgLimit = 20000;
+        callValue = new DataWord(0x1234);
+        callData = Hex.decode("00112233445566778899aabbccddeeff0011223344");
+    }
+
+    @After
+    public void teardown() {
+        FastVM.setInterpreterThreshold(0);
+    }
+
+    @Test
+    public void testArithmetic() {
+        compare("6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF60020160E052601060E0F3"); // ADD
+        compare("6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF0260E052601060E0F3"); // MUL
+        compare("6003600160000303600A0460E052601060E0F3"); // SUB, DIV
+        compare("60036000190560E052601060E0F3"); // SDIV
+        compare("6003600019600A03070660E052601060E0F3"); // SMOD, MOD
+        compare("600760030A60E052601060E0F3"); // EXP
+        compare("6F0100000000000000000000000000000060020A60E052601060E0F3"); // EXP
+        compare("60FF60000B60E052601060E0F3"); // SIGNEXTEND
+        compare("600A6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF0960E052601060E0F3"); // MULMOD
+        compare("600A6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF0860E052601060E0F3"); // ADDMOD
+    }
+
+    @Test
+    public void testComparisonAndBitwise() {
+        compare("6001600210600212601360E052601060E0F3");
+        compare("60016000190313600012156000141760E052601060E0F3");
+        compare("6F112233445566778899AABBCCDDEEFF0060051A60E052601060E0F3"); // BYTE
+        compare("6F112233445566778899AABBCCDDEEFF0060201A60E052601060E0F3"); // BYTE, out of range
+        compare("60F0600F16600F18196003171960E052601060E0F3");
+    }
+
+    @Test
+    public void testSha3() {
+        compare("60AB600053601060002060105260005260206000F3");
+    }
+
+    @Test
+    public void testEnvironment() {
+        compare("30600052601052" + "60206000F3"); // ADDRESS
+        compare("33600052601052" + "60206000F3"); // CALLER
+        compare("32600052601052" + "60206000F3"); // ORIGIN
+        compare("41600052601052" + "60206000F3"); // COINBASE
+        compare("3460E052601060E0F3"); // CALLVALUE
+        compare("4360E052601060E0F3"); // NUMBER
+        compare("4260E052601060E0F3"); // TIMESTAMP
+        compare("4560E052601060E0F3"); // GASLIMIT
+        compare("4460E052601060E0F3"); // DIFFICULTY
+        compare("3860E052601060E0F3"); // CODESIZE
+        compare("600158585A60E052601060E0F3"); // PC, GAS
+    }
+
+    @Test
+    public void testCallData() {
+        compare("60043560E052601060E0F3");
+        compare("60143560E052601060E0F3");
+        compare("3660E052601060E0F3");
+        compare("6020600460003760206000F3");
+        compare("6020600060003960206000F3"); // CODECOPY
+    }
+
+    @Test
+    public void testExternalAccount() {
+        compare("6F111111111111111111111111111111116F111111111111111111111111111111113160E052601060E0F3");
+        compare("6F111111111111111111111111111111116F111111111111111111111111111111113B60E052601060E0F3");
+        compare("6020600060E06F111111111111111111111111111111116F111111111111111111111111111111113C602060E0F3");
+    }
+
+    @Test
+    public void testMemory() {
+        compare("6108006000F3");
+        compare("60FF60645359" + "60E052601060E0F3"); // MSTORE8, MSIZE
+        compare("60AA60005260005160105260206000F3");
+    }
+
+    @Test
+    public void testStorage() {
+        compare("600560015560015460E052601060E0F3");
+        compare("600060015560015460E052601060E0F3");
+    }
+
+    @Test
+    public void testJumps() {
+        compare("60005B600101806064116002576000" + "5260106000F3");
+        compare("600356"); // bad jump destination
+        compare("6000600357"); // not taken, destination not checked
+        compare("6001600A57005B600160E052601060E0F3");
+    }
+
+    @Test
+    public void testLogs() {
+        compare("60FF6000526001600260036004601060" + "00A200");
+    }
+
+    @Test
+    public void testFailures() {
+        compare("5B600056"); // runs out of energy
+        compare("6001FE"); // invalid instruction
+        compare("01"); // stack underflow
+        compare("60AA600052" + "60106000FD"); // revert
+        compare("6001600052630100000060E052601060E0F3"); // memory offset too large
+    }
+
+    @Test
+    public void testAnalyze() {
+        assertNull(Interpreter.analyze(Hex.decode("6000600060006000600060006000F1")));
+
+        // unreachable bytes after a terminating instruction are ignored
+        assertNotNull(Interpreter.analyze(Hex.decode("6001FEF1")));
+        assertNull(Interpreter.analyze(Hex.decode("6001FE5BF1")));
+
+        // JUMPDEST inside push data isn't a jump destination
+        BitSet jumpdests = Interpreter.analyze(Hex.decode("605B5B")).getJumpdests();
+        assertFalse(jumpdests.get(1));
+        assertEquals(true, jumpdests.get(2));
+
+        // blocks start at JUMPDEST, and after JUMPI and GAS
+        Interpreter.Analysis analysis = Interpreter.analyze(Hex.decode("6001600157" + "5A50" + "5B5400"));
+        assertArrayEquals(new int[]{0, 5, 6, 7}, analysis.getBlocks());
+        assertArrayEquals(new long[]{3, 1, 1, 1001}, analysis.getCosts());
+    }
+
+    @Test
+    public void testBlockCharging() {
+        // the static cost of a block is charged on entry, before the log
+        nrgLimit = 1000;
+        compare("60FF600052" + "60106000A0" + "60015450" + "00");
+
+        // GAS doesn't include the instructions after it
+        nrgLimit = 20000;
+        compare("5A60E052601060E0F3");
+    }
+
+    @Test
+    public void testTiering() {
+        byte[] code = Hex.decode("600560015560015460E052601060E0F3");
+        FastVM.setInterpreterThreshold(2);
+
+        ExecutionResult expected = null;
+        for (int i = 0; i < 4; i++) {
+            ExecutionResult result = new FastVM().run(code, newContext(), newRepository());
+            if (expected == null) {
+                expected = result;
+            }
+            assertEquals(Code.SUCCESS, result.getCode());
+            assertEquals(expected.getNrgLeft(), result.getNrgLeft());
+            assertEquals(Hex.toHexString(expected.getOutput()), Hex.toHexString(result.getOutput()));
+        }
+    }
+
+    private void compare(String hex) {
+        byte[] code = Hex.decode(hex);
+
+        ExecutionContext ctx1 = newContext();
+        DummyRepository repo1 = newRepository();
+        ExecutionResult jit = new FastVM().run(code, ctx1, repo1);
+
+        ExecutionContext ctx2 = newContext();
+        DummyRepository repo2 = newRepository();
+        Callback.push(Pair.of(ctx2, repo2));
+        ExecutionResult interpreted;
+        try {
+            interpreted = new Interpreter(code, Interpreter.analyze(code), ctx2, repo2).run();
+        } finally {
+            Callback.pop();
+        }
+
+        assertEquals(hex, jit.getCode(), interpreted.getCode());
+        assertEquals(hex, jit.getNrgLeft(), interpreted.getNrgLeft());
+        assertEquals(hex, Hex.toHexString(jit.getOutput()), Hex.toHexString(interpreted.getOutput()));
+        assertEquals(hex, ctx1.result().getLogs().size(), ctx2.result().getLogs().size());
+        assertEquals(hex, repo1.getStorageValue(address, new DataWord(1)), repo2.getStorageValue(address, new DataWord(1)));
+    }
+
+    private ExecutionContext newContext() {
+        return new ExecutionContext(txHash, address, origin, caller, nrgPrice, nrgLimit, callValue, callData, depth,
+                kind, flags, blockCoinbase, blockNumber, blockTimestamp, blockNrgLimit, blockDifficulty,
+                new TransactionResult());
+    }
+
+    private DummyRepository newRepository() {
+        DummyRepository repo = new DummyRepository();
+        repo.addContract(other, Hex.decode("11223344"));
+        repo.addBalance(other, BigInteger.valueOf(0x34));
+        return repo;
+    }
+}
@@ -35,11 +35,16 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class MultiThreadTest {
@@ -114,6 +119,40 @@ public class MultiThreadTest {
         System.out.println("testRun(): " + (t2 - t1) / repeat / 1000 + " μs/call");
     }
 
+    @Test
+    public void testConcurrentRuns() throws InterruptedException, ExecutionException {
+        byte[] code = generateContract(0x7fffffff);
+        byte[] data = ByteUtil.merge(Hex.decode("8256cff3"), new DataWord(64).getData());
+
+        ExecutionResult expected = execute(code, data);
+        assertEquals(Code.SUCCESS, expected.getCode());
+
+        // the same code on many threads at once
+        int repeat = 2000;
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        List<Future<ExecutionResult>> results = new ArrayList<>();
+        for (int i = 0; i < repeat; i++) {
+            results.add(es.submit(() -> execute(code, data)));
+        }
+        for (Future<ExecutionResult> f : results) {
+            ExecutionResult result = f.get();
+            assertEquals(Code.SUCCESS, result.getCode());
+            assertEquals(expected.getNrgLeft(), result.getNrgLeft());
+            assertArrayEquals(expected.getOutput(), result.getOutput());
+        }
+
+        es.shutdown();
+        es.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private ExecutionResult execute(byte[] code, byte[] data) {
+        ExecutionContext ctx = new ExecutionContext(txHash, address, origin, caller, nrgPrice, nrgLimit, callValue,
+                data, depth, ExecutionContext.CALL, flags, blockCoinbase, blockNumber, blockTimestamp, blockNrgLimit,
+                blockDifficulty, new TransactionResult());
+
+        return new FastVM().run(code, ctx, new DummyRepository());
+    }
+
     private byte[] generateContract(int baseSum) {
         try {
             String code = Hex.toHexString(ContractUtils.getContractBody("Simple.sol", "Simple"));
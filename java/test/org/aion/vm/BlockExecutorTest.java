@@ -0,0 +1,195 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.db.IRepositoryCache;
+import org.aion.base.type.Address;
+import org.aion.base.util.Hex;
+import org.aion.fastvm.TestUtils;
+import org.aion.mcf.core.AccountState;
+import org.aion.mcf.db.IBlockStoreBase;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.impl.blockchain.AionTxExecSummary;
+import org.aion.zero.types.AionTransaction;
+import org.aion.zero.types.IAionBlock;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockExecutorTest {
+
+    // PUSH1 0, SLOAD, PUSH1 1, ADD, PUSH1 0, SSTORE, STOP
+    private static final byte[] COUNTER = Hex.decode("60005460010160005500");
+    // PUSH1 0, SLOAD, POP, STOP
+    private static final byte[] READER = Hex.decode("6000545000");
+    // JUMPDEST, PUSH1 0, JUMP
+    private static final byte[] LOOP = Hex.decode("5B600056");
+
+    private ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    private IAionBlock block = TestUtils.createDummyBlock();
+
+    private Address a = Address.wrap(RandomUtils.nextBytes(32));
+    private Address b = Address.wrap(RandomUtils.nextBytes(32));
+    private Address c = Address.wrap(RandomUtils.nextBytes(32));
+    private Address d = Address.wrap(RandomUtils.nextBytes(32));
+    private Address counter = Address.wrap(RandomUtils.nextBytes(32));
+    private Address reader = Address.wrap(RandomUtils.nextBytes(32));
+    private Address loop = Address.wrap(RandomUtils.nextBytes(32));
+
+    private Map<Address, Long> nonces = new HashMap<>();
+
+    @After
+    public void teardown() {
+        executor.shutdown();
+    }
+
+    private CachingRepository createRepository() {
+        CachingRepository repo = new CachingRepository();
+        for (Address addr : Arrays.asList(a, b, c, d)) {
+            repo.addBalance(addr, BigInteger.valueOf(1_000_000_000L));
+        }
+        repo.saveCode(counter, COUNTER);
+        repo.addStorageRow(counter, DataWord.ZERO, new DataWord(5));
+        repo.saveCode(reader, READER);
+        repo.addStorageRow(reader, DataWord.ZERO, new DataWord(7));
+        repo.saveCode(loop, LOOP);
+        return repo;
+    }
+
+    private AionTransaction createTx(Address from, Address to, long value) {
+        return createTx(from, to, value, 100_000L);
+    }
+
+    private AionTransaction createTx(Address from, Address to, long value, long nrgLimit) {
+        long nonce = nonces.merge(from, 1L, Long::sum) - 1;
+        return new AionTransaction(new DataWord(nonce).getData(), from, to, new DataWord(value).getData(),
+                new byte[0], nrgLimit, 1L);
+    }
+
+    private List<AionTransaction> createBlock() {
+        List<AionTransaction> txs = new ArrayList<>();
+        txs.add(createTx(a, counter, 0)); // writes counter storage
+        txs.add(createTx(b, counter, 0)); // conflicts on counter storage
+        txs.add(createTx(c, reader, 0)); // only reads storage, independent
+        txs.add(createTx(a, b, 1000)); // conflicts on a's and b's accounts
+        txs.add(createTx(b, c, 500)); // conflicts on b's account
+        txs.add(createTx(c, reader, 10)); // pays into a contract
+        txs.add(createTx(d, reader, 0)); // only reads storage of the contract paid
+        txs.add(createTx(d, a, 1)); // conflicts on a's account
+        return txs;
+    }
+
+    @Test
+    public void testIdenticalToSerialExecution() {
+        List<AionTransaction> txs = createBlock();
+
+        CachingRepository serialRepo = createRepository();
+        IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> serialTrack = serialRepo.startTracking();
+        List<AionTxExecSummary> serial = new ArrayList<>();
+        for (AionTransaction tx : txs) {
+            serial.add(new TransactionExecutor(tx, block, serialTrack).execute());
+        }
+        serialTrack.flush();
+
+        CachingRepository parallelRepo = createRepository();
+        IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> parallelTrack = parallelRepo.startTracking();
+        BlockExecutor blockExecutor = new BlockExecutor(executor);
+        List<AionTxExecSummary> parallel = blockExecutor.execute(txs, block, parallelTrack);
+        parallelTrack.flush();
+
+        assertEquals(serial.size(), parallel.size());
+        for (int i = 0; i < serial.size(); i++) {
+            assertFalse(serial.get(i).isRejected());
+            assertEquals(serial.get(i).isRejected(), parallel.get(i).isRejected());
+            assertEquals(serial.get(i).isFailed(), parallel.get(i).isFailed());
+            assertEquals(serial.get(i).getNrgUsed(), parallel.get(i).getNrgUsed());
+        }
+        assertTrue(blockExecutor.getNumReExecuted() > 0);
+        assertTrue(blockExecutor.getNumReExecuted() < txs.size());
+
+        for (Address addr : Arrays.asList(a, b, c, d, counter, reader, block.getCoinbase())) {
+            assertEquals(serialRepo.getBalance(addr), parallelRepo.getBalance(addr));
+            assertEquals(serialRepo.getNonce(addr), parallelRepo.getNonce(addr));
+        }
+        assertEquals(new DataWord(7), parallelRepo.getStorageValue(counter, DataWord.ZERO));
+        assertEquals(serialRepo.getStorageValue(reader, DataWord.ZERO),
+                parallelRepo.getStorageValue(reader, DataWord.ZERO));
+        assertEquals(BigInteger.TEN, parallelRepo.getBalance(reader));
+    }
+
+    @Test
+    public void testFeesOfAllTransactionsPaid() {
+        List<AionTransaction> txs = new ArrayList<>();
+        for (Address from : Arrays.asList(a, b, c, d)) {
+            txs.add(createTx(from, reader, 0));
+        }
+
+        CachingRepository repo = createRepository();
+        IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> track = repo.startTracking();
+        BlockExecutor blockExecutor = new BlockExecutor(executor);
+        List<AionTxExecSummary> summaries = blockExecutor.execute(txs, block, track);
+        track.flush();
+
+        // read-only transactions never conflict, fees included
+        assertEquals(0, blockExecutor.getNumReExecuted());
+
+        BigInteger fees = BigInteger.ZERO;
+        for (AionTxExecSummary summary : summaries) {
+            fees = fees.add(summary.getFee());
+        }
+        assertTrue(fees.signum() > 0);
+        assertEquals(fees, repo.getBalance(block.getCoinbase()));
+    }
+
+    @Test
+    public void testRejectedReExecution() {
+        List<AionTransaction> txs = new ArrayList<>();
+        txs.add(createTx(a, loop, 0, 4_000_000L)); // uses all its nrg
+        txs.add(createTx(b, c, 1000, 2_000_000L)); // fits the block only speculatively
+
+        CachingRepository repo = createRepository();
+        IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> track = repo.startTracking();
+        BlockExecutor blockExecutor = new BlockExecutor(executor);
+        List<AionTxExecSummary> summaries = blockExecutor.execute(txs, block, track);
+        track.flush();
+
+        assertEquals(1, blockExecutor.getNumReExecuted());
+        assertFalse(summaries.get(0).isRejected());
+        assertTrue(summaries.get(1).isRejected());
+        assertEquals(4_000_000L, txs.get(0).getNrgConsume());
+        assertEquals(0, txs.get(1).getNrgConsume());
+        assertEquals(BigInteger.valueOf(1_000_000_000L), repo.getBalance(c));
+    }
+}
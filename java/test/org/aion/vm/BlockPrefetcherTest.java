@@ -0,0 +1,125 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.base.util.Hex;
+import org.aion.fastvm.DummyRepository;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.types.AionTransaction;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockPrefetcherTest {
+
+    private ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    private Address from = address();
+    private Address to = address();
+
+    private static Address address() {
+        byte[] bytes = RandomUtils.nextBytes(32);
+        bytes[0] = (byte) 0xA0;
+        return Address.wrap(bytes);
+    }
+
+    @After
+    public void teardown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testAddressesInCallData() {
+        Address arg = address();
+        byte[] data = new byte[4 + 16 + 32];
+        System.arraycopy(arg.toBytes(), 0, data, 4 + 16, 32);
+
+        assertEquals(Collections.singletonList(arg), BlockPrefetcher.addressesIn(data));
+        assertTrue(BlockPrefetcher.addressesIn(new byte[4 + 16]).isEmpty());
+    }
+
+    @Test
+    public void testRecordBounded() {
+        BlockPrefetcher prefetcher = new BlockPrefetcher(executor, 1, 1, null);
+
+        ReadWriteSet rwSet = new ReadWriteSet();
+        for (int i = 0; i < BlockPrefetcher.MAX_KEYS_PER_CONTRACT + 10; i++) {
+            rwSet.readStorage(to, new DataWord(i));
+        }
+        prefetcher.record(rwSet);
+        assertEquals(BlockPrefetcher.MAX_KEYS_PER_CONTRACT, prefetcher.getPredictedKeys(to).size());
+
+        // only one contract is remembered
+        ReadWriteSet other = new ReadWriteSet();
+        other.writeStorage(from, DataWord.ONE);
+        prefetcher.record(other);
+        assertTrue(prefetcher.getPredictedKeys(to).isEmpty());
+        assertEquals(Collections.singleton(DataWord.ONE), prefetcher.getPredictedKeys(from));
+    }
+
+    @Test
+    public void testPrefetch() {
+        Map<Address, Collection<DataWord>> storageReads = new HashMap<>();
+        DummyRepository repo = new DummyRepository() {
+            @Override
+            public synchronized Map<DataWord, DataWord> getStorage(Address address, Collection<DataWord> keys) {
+                storageReads.put(address, keys);
+                return super.getStorage(address, keys);
+            }
+        };
+        Address arg = address();
+        repo.createAccount(from);
+        repo.createAccount(arg);
+        repo.addContract(to, Hex.decode("00"));
+        repo.createAccount(to);
+
+        BlockPrefetcher prefetcher = new BlockPrefetcher(executor, 1, 16, null);
+        ReadWriteSet rwSet = new ReadWriteSet();
+        rwSet.readStorage(to, DataWord.ONE);
+        prefetcher.record(rwSet);
+
+        byte[] data = new byte[4 + 32];
+        System.arraycopy(arg.toBytes(), 0, data, 4, 32);
+        List<AionTransaction> txs = new ArrayList<>();
+        txs.add(new AionTransaction(DataWord.ZERO.getData(), from, to, DataWord.ZERO.getData(), data, 100_000L, 1L));
+        txs.add(new AionTransaction(DataWord.ONE.getData(), from, address(), DataWord.ZERO.getData(), new byte[0],
+                100_000L, 1L));
+
+        // the second recipient doesn't exist
+        assertEquals(3, prefetcher.prefetch(txs, repo));
+        assertEquals(Collections.singleton(to), storageReads.keySet());
+        assertEquals(Arrays.asList(DataWord.ONE), new ArrayList<>(storageReads.get(to)));
+    }
+}
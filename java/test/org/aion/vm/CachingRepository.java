@@ -0,0 +1,309 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.db.IContractDetails;
+import org.aion.base.db.IRepository;
+import org.aion.base.db.IRepositoryCache;
+import org.aion.base.type.Address;
+import org.aion.base.util.ByteUtil;
+import org.aion.mcf.core.AccountState;
+import org.aion.mcf.db.IBlockStoreBase;
+import org.aion.mcf.vm.types.DataWord;
+
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A repository which behaves like the kernel's repository cache: a track
+ * keeps a copy of every account it loads, reads or writes, and writes all of
+ * them back on flush. Reads don't modify the parent, so tracks can be started
+ * and read from multiple threads.
+ */
+public class CachingRepository implements IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> {
+
+    private CachingRepository parent;
+    private Map<Address, Account> accounts = new ConcurrentHashMap<>();
+
+    public CachingRepository() {
+    }
+
+    private CachingRepository(CachingRepository parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Returns the account, loading a copy of it from the parent.
+     */
+    private Account load(Address addr) {
+        return accounts.computeIfAbsent(addr, a -> parent == null ? new Account() : parent.copyOf(a));
+    }
+
+    private Account copyOf(Address addr) {
+        Account acc = accounts.get(addr);
+        if (acc == null) {
+            return parent == null ? new Account() : parent.copyOf(addr);
+        }
+
+        Account copy = new Account();
+        copy.exists = acc.exists;
+        copy.nonce = acc.nonce;
+        copy.balance = acc.balance;
+        copy.code = acc.code;
+        return copy;
+    }
+
+    private DataWord storageOf(Address addr, DataWord key) {
+        Account acc = accounts.get(addr);
+        if (acc != null) {
+            DataWord value = acc.storage.get(key);
+            if (value != null || acc.wiped) {
+                return value == null ? DataWord.ZERO : value;
+            }
+        }
+        return parent == null ? DataWord.ZERO : parent.storageOf(addr, key);
+    }
+
+    @Override
+    public AccountState createAccount(Address addr) {
+        Account acc = new Account();
+        acc.exists = true;
+        acc.wiped = true;
+        accounts.put(addr, acc);
+        return new AccountState();
+    }
+
+    @Override
+    public boolean hasAccountState(Address addr) {
+        return load(addr).exists;
+    }
+
+    @Override
+    public AccountState getAccountState(Address addr) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteAccount(Address addr) {
+        Account acc = new Account();
+        acc.wiped = true;
+        accounts.put(addr, acc);
+    }
+
+    @Override
+    public BigInteger incrementNonce(Address addr) {
+        Account acc = load(addr);
+        acc.exists = true;
+        acc.nonce = acc.nonce.add(BigInteger.ONE);
+        return acc.nonce;
+    }
+
+    @Override
+    public BigInteger setNonce(Address addr, BigInteger nonce) {
+        Account acc = load(addr);
+        acc.exists = true;
+        acc.nonce = nonce;
+        return nonce;
+    }
+
+    @Override
+    public BigInteger getNonce(Address addr) {
+        return load(addr).nonce;
+    }
+
+    @Override
+    public IContractDetails<DataWord> getContractDetails(Address addr) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean hasContractDetails(Address addr) {
+        return load(addr).code.length > 0;
+    }
+
+    @Override
+    public void saveCode(Address addr, byte[] code) {
+        Account acc = load(addr);
+        acc.exists = true;
+        acc.code = code;
+    }
+
+    @Override
+    public byte[] getCode(Address addr) {
+        return load(addr).code;
+    }
+
+    @Override
+    public Map<DataWord, DataWord> getStorage(Address addr, Collection<DataWord> keys) {
+        Map<DataWord, DataWord> storage = new HashMap<>();
+        for (DataWord key : keys) {
+            storage.put(key, getStorageValue(addr, key));
+        }
+        return storage;
+    }
+
+    @Override
+    public int getStorageSize(Address addr) {
+        return getStorageKeys(addr).size();
+    }
+
+    @Override
+    public Set<DataWord> getStorageKeys(Address addr) {
+        Map<DataWord, DataWord> storage = new HashMap<>();
+        collectStorage(addr, storage);
+        storage.values().removeIf(DataWord::isZero);
+        return storage.keySet();
+    }
+
+    private void collectStorage(Address addr, Map<DataWord, DataWord> storage) {
+        Account acc = accounts.get(addr);
+        if ((acc == null || !acc.wiped) && parent != null) {
+            parent.collectStorage(addr, storage);
+        }
+        if (acc != null) {
+            storage.putAll(acc.storage);
+        }
+    }
+
+    @Override
+    public void addStorageRow(Address addr, DataWord key, DataWord value) {
+        Account acc = load(addr);
+        acc.exists = true;
+        acc.storage.put(key, value);
+    }
+
+    @Override
+    public DataWord getStorageValue(Address addr, DataWord key) {
+        // like the kernel, reading storage loads the account and caches the entry
+        Account acc = load(addr);
+        DataWord value = acc.storage.get(key);
+        if (value == null) {
+            value = acc.wiped || parent == null ? DataWord.ZERO : parent.storageOf(addr, key);
+            acc.storage.put(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public BigInteger getBalance(Address addr) {
+        return load(addr).balance;
+    }
+
+    @Override
+    public BigInteger addBalance(Address addr, BigInteger value) {
+        Account acc = load(addr);
+        acc.exists = true;
+        acc.balance = acc.balance.add(value);
+        return acc.balance;
+    }
+
+    @Override
+    public IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> startTracking() {
+        return new CachingRepository(this);
+    }
+
+    /**
+     * Writes every cached account, modified or not, into the parent.
+     */
+    @Override
+    public void flush() {
+        if (parent == null) {
+            return;
+        }
+
+        for (Map.Entry<Address, Account> e : accounts.entrySet()) {
+            Account acc = e.getValue();
+            Account target = acc.wiped ? new Account() : parent.load(e.getKey());
+            target.exists = acc.exists;
+            target.wiped |= acc.wiped;
+            target.nonce = acc.nonce;
+            target.balance = acc.balance;
+            target.code = acc.code;
+            target.storage.putAll(acc.storage);
+            parent.accounts.put(e.getKey(), target);
+        }
+        accounts.clear();
+    }
+
+    @Override
+    public void rollback() {
+        accounts.clear();
+    }
+
+    @Override
+    public void syncToRoot(byte[] root) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isValidRoot(byte[] root) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void updateBatch(Map<Address, AccountState> accountStates,
+                            Map<Address, IContractDetails<DataWord>> contractDetails) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] getRoot() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void loadAccountState(Address addr, Map<Address, AccountState> cacheAccounts,
+                                 Map<Address, IContractDetails<DataWord>> cacheDetails) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public IRepository<AccountState, DataWord, IBlockStoreBase<?, ?>> getSnapshotTo(byte[] root) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public IBlockStoreBase<?, ?> getBlockStore() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static class Account {
+        boolean exists;
+        boolean wiped;
+        BigInteger nonce = BigInteger.ZERO;
+        BigInteger balance = BigInteger.ZERO;
+        byte[] code = ByteUtil.EMPTY_BYTE_ARRAY;
+        Map<DataWord, DataWord> storage = new ConcurrentHashMap<>();
+    }
+}
@@ -62,11 +62,14 @@ public class ExecutionContextTest {
         String encoded = Hex.toHexString(ctx.toBytes());
         String expected = "111111111111111111111111111111111111111111111111111111111111111122222222222222222222222222222222222222222222222222222222222222223333333333333333333333333333333333333333333333333333333333333333"
                 + "00000000000000000000000000000004" + "0000000000000005000000000000000000000000000000060000000107"
-                + "00000008000000090000000a"
-                + "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb000000000000000c000000000000000d000000000000000e0000000000000000000000000000000f";
+                + "00000008000000090000000a";
 
         System.out.println(expected);
         System.out.println(encoded);
         assertEquals(expected, encoded);
+
+        String block = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb000000000000000c000000000000000d000000000000000e0000000000000000000000000000000f";
+        assertEquals(block, Hex.toHexString(ctx.block().toBytes()));
+        assertEquals(BlockContext.ENCODED_SIZE, ctx.block().toBytes().length);
     }
 }
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.types.AionInternalTx;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InternalTxTraceTest {
+
+    private byte[] txHash = RandomUtils.nextBytes(32);
+    private Address addr1 = Address.wrap(RandomUtils.nextBytes(32));
+    private Address addr2 = Address.wrap(RandomUtils.nextBytes(32));
+
+    @Test
+    public void testLazyBuild() {
+        InternalTxTrace trace = new InternalTxTrace();
+        for (int i = 0; i < 20; i++) {
+            trace.add(txHash, 1, i, BigInteger.valueOf(i), addr1, addr2, DataWord.ONE, new byte[]{(byte) i}, "call");
+        }
+
+        List<AionInternalTx> txs = trace.asList();
+        assertEquals(20, txs.size());
+        assertSame(txs.get(3), trace.get(3));
+        assertFalse(txs.get(3).isRejected());
+    }
+
+    @Test
+    public void testReject() {
+        InternalTxTrace trace = new InternalTxTrace();
+        trace.add(txHash, 1, 0, BigInteger.ZERO, addr1, addr2, DataWord.ONE, new byte[0], "call");
+        trace.add(txHash, 1, 1, BigInteger.ONE, addr1, null, DataWord.ZERO, new byte[0], "create");
+
+        // rejected both before and after being built
+        AionInternalTx first = trace.get(0);
+        trace.rejectAll();
+        assertTrue(first.isRejected());
+        assertTrue(trace.get(1).isRejected());
+    }
+
+    @Test
+    public void testMerge() {
+        TransactionResult a = new TransactionResult();
+        a.getInternalTxTrace().add(txHash, 1, 0, BigInteger.ZERO, addr1, addr2, DataWord.ONE, new byte[0], "call");
+
+        TransactionResult b = new TransactionResult();
+        b.getInternalTxTrace().add(txHash, 1, 0, BigInteger.ONE, addr2, addr1, DataWord.ONE, new byte[0], "call");
+        b.rejectInternalTransactions();
+
+        a.merge(b);
+        assertEquals(2, a.getInternalTransactions().size());
+        assertFalse(a.getInternalTransactions().get(0).isRejected());
+        assertTrue(a.getInternalTransactions().get(1).isRejected());
+    }
+}
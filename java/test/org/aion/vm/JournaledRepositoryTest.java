@@ -0,0 +1,187 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.db.IRepositoryCache;
+import org.aion.base.type.Address;
+import org.aion.fastvm.DummyRepository;
+import org.aion.mcf.core.AccountState;
+import org.aion.mcf.vm.types.DataWord;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JournaledRepositoryTest {
+
+    private Address addr1 = Address.wrap(RandomUtils.nextBytes(32));
+    private Address addr2 = Address.wrap(RandomUtils.nextBytes(32));
+
+    private DummyRepository base = new DummyRepository();
+
+    @Test
+    public void testFrames() {
+        base.addBalance(addr1, BigInteger.valueOf(100));
+        JournaledRepository repo = new JournaledRepository(base);
+
+        IRepositoryCache frame1 = repo.startTracking();
+        frame1.addBalance(addr1, BigInteger.valueOf(-10));
+        frame1.addBalance(addr2, BigInteger.valueOf(10));
+
+        IRepositoryCache frame2 = frame1.startTracking();
+        frame2.addBalance(addr2, BigInteger.valueOf(5));
+        frame2.addStorageRow(addr2, DataWord.ONE, DataWord.ONE);
+        frame2.incrementNonce(addr1);
+        assertEquals(BigInteger.valueOf(15), frame1.getBalance(addr2));
+        frame2.rollback();
+
+        assertEquals(BigInteger.valueOf(10), frame1.getBalance(addr2));
+        assertEquals(BigInteger.ZERO, frame1.getNonce(addr1));
+        assertEquals(DataWord.ZERO, frame1.getStorageValue(addr2, DataWord.ONE));
+        frame1.flush();
+
+        // nothing reaches the underlying repository before the overlay is flushed
+        assertEquals(BigInteger.valueOf(100), base.getBalance(addr1));
+        assertEquals(BigInteger.ZERO, base.getBalance(addr2));
+
+        repo.flush();
+        assertEquals(0, repo.getJournalSize());
+        assertEquals(BigInteger.valueOf(90), base.getBalance(addr1));
+        assertEquals(BigInteger.valueOf(10), base.getBalance(addr2));
+    }
+
+    @Test
+    public void testCommittedFrameRevertedByParent() {
+        JournaledRepository repo = new JournaledRepository(base);
+
+        IRepositoryCache frame1 = repo.startTracking();
+        IRepositoryCache frame2 = frame1.startTracking();
+        frame2.saveCode(addr1, new byte[]{1, 2, 3});
+        frame2.addStorageRow(addr1, DataWord.ONE, DataWord.ONE);
+        frame2.flush();
+        assertArrayEquals(new byte[]{1, 2, 3}, frame1.getCode(addr1));
+        assertTrue(frame1.hasAccountState(addr1));
+
+        frame1.rollback();
+        assertEquals(0, repo.getJournalSize());
+        assertFalse(repo.hasAccountState(addr1));
+        assertEquals(0, repo.getCode(addr1).length);
+        assertEquals(DataWord.ZERO, repo.getStorageValue(addr1, DataWord.ONE));
+
+        repo.flush();
+        assertFalse(base.hasAccountState(addr1));
+    }
+
+    @Test
+    public void testDeleteAccount() {
+        base.addBalance(addr1, BigInteger.TEN);
+        base.addStorageRow(addr1, DataWord.ONE, DataWord.ONE);
+        JournaledRepository repo = new JournaledRepository(base);
+
+        IRepositoryCache frame = repo.startTracking();
+        frame.addStorageRow(addr1, DataWord.ZERO, DataWord.ONE);
+        frame.deleteAccount(addr1);
+        assertFalse(frame.hasAccountState(addr1));
+        assertEquals(BigInteger.ZERO, frame.getBalance(addr1));
+        assertNull(frame.getStorageValue(addr1, DataWord.ONE));
+        assertNull(frame.getStorageValue(addr1, DataWord.ZERO));
+
+        frame.rollback();
+        assertTrue(repo.hasAccountState(addr1));
+        assertEquals(BigInteger.TEN, repo.getBalance(addr1));
+        assertEquals(DataWord.ONE, repo.getStorageValue(addr1, DataWord.ONE));
+
+        repo.deleteAccount(addr1);
+        repo.flush();
+        assertFalse(base.hasAccountState(addr1));
+    }
+
+    @Test
+    public void testRollbackOverlay() {
+        JournaledRepository repo = new JournaledRepository(base);
+        repo.createAccount(addr1);
+        repo.addBalance(addr1, BigInteger.ONE);
+        repo.rollback();
+
+        assertEquals(0, repo.getJournalSize());
+        assertFalse(repo.hasAccountState(addr1));
+        repo.flush();
+        assertFalse(base.hasAccountState(addr1));
+    }
+
+    @Test
+    public void testWholeAccountReadsOfPendingAccount() {
+        CachingRepository base = new CachingRepository();
+        base.saveCode(addr1, new byte[]{1});
+        base.addStorageRow(addr1, DataWord.ZERO, DataWord.ONE);
+        base.addStorageRow(addr1, DataWord.ONE, DataWord.ONE);
+        JournaledRepository repo = new JournaledRepository(base);
+
+        IRepositoryCache frame = repo.startTracking();
+        frame.addStorageRow(addr1, DataWord.ONE, DataWord.ZERO);
+        frame.addStorageRow(addr1, new DataWord(2), DataWord.ONE);
+        frame.saveCode(addr2, new byte[]{2});
+        assertEquals(new HashSet<>(Arrays.asList(DataWord.ZERO, new DataWord(2))), frame.getStorageKeys(addr1));
+        assertEquals(2, frame.getStorageSize(addr1));
+        assertTrue(frame.hasContractDetails(addr2));
+
+        // the reads leave the underlying repository as it was
+        assertEquals(new HashSet<>(Arrays.asList(DataWord.ZERO, DataWord.ONE)), base.getStorageKeys(addr1));
+        assertFalse(base.hasContractDetails(addr2));
+
+        frame.deleteAccount(addr1);
+        assertEquals(0, frame.getStorageSize(addr1));
+        frame.rollback();
+        assertEquals(2, repo.getStorageSize(addr1));
+    }
+
+    @Test
+    public void testUpdateBatch() {
+        base.addBalance(addr1, BigInteger.valueOf(100));
+        JournaledRepository repo = new JournaledRepository(base);
+
+        Map<Address, AccountState> states = new HashMap<>();
+        states.put(addr1, new AccountState(BigInteger.ONE, BigInteger.TEN));
+        states.put(addr2, new AccountState(BigInteger.ZERO, BigInteger.ONE));
+
+        IRepositoryCache frame = repo.startTracking();
+        frame.updateBatch(states, new HashMap<>());
+        assertEquals(BigInteger.ONE, frame.getNonce(addr1));
+        assertEquals(BigInteger.TEN, frame.getBalance(addr1));
+        assertTrue(frame.hasAccountState(addr2));
+        assertEquals(BigInteger.ONE, frame.getBalance(addr2));
+
+        frame.rollback();
+        assertEquals(BigInteger.ZERO, repo.getNonce(addr1));
+        assertEquals(BigInteger.valueOf(100), repo.getBalance(addr1));
+        assertFalse(repo.hasAccountState(addr2));
+    }
+}
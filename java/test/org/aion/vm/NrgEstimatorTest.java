@@ -0,0 +1,111 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.base.util.Hex;
+import org.aion.fastvm.DummyRepository;
+import org.aion.fastvm.TestUtils;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.types.AionTransaction;
+import org.aion.zero.types.IAionBlock;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NrgEstimatorTest {
+
+    private ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    private Address from = Address.wrap(RandomUtils.nextBytes(32));
+    private Address to = Address.wrap(RandomUtils.nextBytes(32));
+
+    private IAionBlock block = TestUtils.createDummyBlock();
+    private DummyRepository repo = new DummyRepository();
+
+    @Before
+    public void setup() {
+        // the dummy repository creates accounts on read, which isn't thread-safe
+        repo.createAccount(from);
+        repo.createAccount(to);
+    }
+
+    @After
+    public void teardown() {
+        executor.shutdown();
+    }
+
+    private AionTransaction createCall(long nrg) {
+        return new AionTransaction(DataWord.ZERO.getData(), from, to, DataWord.ZERO.getData(), new byte[0], nrg, 1L);
+    }
+
+    private boolean succeeds(long nrg) {
+        TransactionExecutor exec = new TransactionExecutor(createCall(nrg), block, new JournaledRepository(repo), true,
+                block.getNrgLimit());
+        return !exec.execute().isFailed();
+    }
+
+    @Test
+    public void testPoints() {
+        NrgEstimator estimator = new NrgEstimator(executor, 4);
+        assertArrayEquals(new long[]{101, 125, 150, 175}, estimator.points(100, 200, false));
+        assertArrayEquals(new long[]{101, 102}, estimator.points(100, 103, false));
+
+        estimator = new NrgEstimator(executor, 1);
+        assertArrayEquals(new long[]{101}, estimator.points(100, 200, true));
+        assertArrayEquals(new long[]{150}, estimator.points(100, 200, false));
+    }
+
+    @Test
+    public void testEstimate() {
+        // a loop of 100 iterations: PUSH1 100, JUMPDEST, PUSH1 1, SWAP1, SUB, DUP1, PUSH1 2, JUMPI, STOP
+        repo.addContract(to, Hex.decode("6064" + "5b" + "600190" + "03" + "80" + "6002" + "57" + "00"));
+
+        for (int probes : new int[]{1, 4}) {
+            long nrg = new NrgEstimator(executor, probes).estimate(createCall(0), block, repo);
+            assertTrue(nrg > 21000);
+            assertTrue(succeeds(nrg));
+            assertFalse(succeeds(nrg - 1));
+        }
+    }
+
+    @Test
+    public void testFailure() {
+        // INVALID
+        repo.addContract(to, Hex.decode("fe"));
+
+        assertEquals(-1, new NrgEstimator(executor, 4).estimate(createCall(0), block, repo));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidProbes() {
+        new NrgEstimator(executor, 0);
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.base.util.Hex;
+import org.aion.fastvm.DummyRepository;
+import org.aion.fastvm.TestUtils;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.zero.impl.blockchain.AionTxExecSummary;
+import org.aion.zero.types.AionTransaction;
+import org.aion.zero.types.IAionBlock;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReadOnlyExecutorTest {
+
+    private Address from = Address.wrap(RandomUtils.nextBytes(32));
+    private Address to = Address.wrap(RandomUtils.nextBytes(32));
+
+    private IAionBlock block = TestUtils.createDummyBlock();
+    private DummyRepository repo = new DummyRepository();
+
+    private ReadOnlyExecutor executor = new ReadOnlyExecutor(4, 1000);
+
+    @After
+    public void teardown() {
+        executor.shutdown();
+    }
+
+    private AionTransaction createCall(long value) {
+        return new AionTransaction(DataWord.ZERO.getData(), from, to, new DataWord(value).getData(), new byte[0],
+                100_000L, 1L);
+    }
+
+    @Test
+    public void testCall() {
+        // PUSH1 1, PUSH1 0, MSTORE, PUSH1 16, PUSH1 0, RETURN
+        repo.addContract(to, Hex.decode("600160005260106000f3"));
+
+        AionTxExecSummary summary = ReadOnlyExecutor.executeNow(createCall(0), block, repo);
+        assertFalse(summary.isFailed());
+        assertFalse(summary.isRejected());
+        assertArrayEquals(new DataWord(1).getData(), summary.getResult());
+    }
+
+    @Test
+    public void testStorageWriteFails() {
+        // PUSH1 1, PUSH1 0, SSTORE, STOP
+        repo.addContract(to, Hex.decode("600160005500"));
+
+        AionTxExecSummary summary = ReadOnlyExecutor.executeNow(createCall(0), block, repo);
+        assertTrue(summary.isFailed());
+        assertEquals(DataWord.ZERO, repo.getStorageValue(to, DataWord.ZERO));
+    }
+
+    @Test
+    public void testValueTransferRejected() {
+        repo.addContract(to, Hex.decode("00"));
+
+        AionTxExecSummary summary = ReadOnlyExecutor.executeNow(createCall(1), block, repo);
+        assertTrue(summary.isRejected());
+    }
+
+    @Test
+    public void testConcurrentCalls() {
+        repo.addContract(to, Hex.decode("600160005260106000f3"));
+        // the dummy repository creates accounts on read, which isn't thread-safe
+        repo.createAccount(from);
+        repo.createAccount(to);
+
+        List<CompletableFuture<AionTxExecSummary>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(executor.execute(createCall(0), block, repo));
+        }
+        for (CompletableFuture<AionTxExecSummary> f : futures) {
+            assertArrayEquals(new DataWord(1).getData(), f.join().getResult());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.db.IRepositoryCache;
+import org.aion.base.type.Address;
+import org.aion.fastvm.DummyRepository;
+import org.aion.mcf.core.AccountState;
+import org.aion.mcf.db.IBlockStoreBase;
+import org.aion.mcf.vm.types.DataWord;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReadWriteSetTest {
+
+    private Address addr1 = Address.wrap(RandomUtils.nextBytes(32));
+    private Address addr2 = Address.wrap(RandomUtils.nextBytes(32));
+
+    @Test
+    public void testAccountConflict() {
+        ReadWriteSet a = new ReadWriteSet();
+        a.readAccount(addr1);
+
+        ReadWriteSet b = new ReadWriteSet();
+        b.writeAccount(addr2);
+        assertFalse(a.readsAnyWriteOf(b));
+
+        b.writeAccount(addr1);
+        assertTrue(a.readsAnyWriteOf(b));
+        assertFalse(b.readsAnyWriteOf(a));
+    }
+
+    @Test
+    public void testStorageConflict() {
+        ReadWriteSet a = new ReadWriteSet();
+        a.readStorage(addr1, new DataWord(1));
+
+        ReadWriteSet b = new ReadWriteSet();
+        b.writeStorage(addr1, new DataWord(2));
+        assertFalse(a.readsAnyWriteOf(b));
+
+        b.writeStorage(addr1, new DataWord(1));
+        assertTrue(a.readsAnyWriteOf(b));
+    }
+
+    @Test
+    public void testStorageWipeConflict() {
+        ReadWriteSet a = new ReadWriteSet();
+        a.readStorage(addr1, new DataWord(1));
+
+        ReadWriteSet b = new ReadWriteSet();
+        b.writeAllStorage(addr1);
+        assertTrue(a.readsAnyWriteOf(b));
+    }
+
+    @Test
+    public void testMergeWrites() {
+        ReadWriteSet committed = new ReadWriteSet();
+        ReadWriteSet a = new ReadWriteSet();
+        a.writeStorage(addr1, new DataWord(1));
+        committed.mergeWrites(a);
+
+        ReadWriteSet b = new ReadWriteSet();
+        b.readStorage(addr1, new DataWord(1));
+        assertTrue(b.readsAnyWriteOf(committed));
+    }
+
+    @Test
+    public void testRecordingRepository() {
+        DummyRepository repo = new DummyRepository();
+        ReadWriteSet rw = new ReadWriteSet();
+        RecordingRepository track = new RecordingRepository(repo, rw, null);
+
+        track.getBalance(addr1);
+        track.addStorageRow(addr2, new DataWord(3), new DataWord(4));
+
+        IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> nested = track.startTracking();
+        nested.getStorageValue(addr2, new DataWord(5));
+
+        assertTrue(rw.getAccountReads().contains(addr1));
+        assertEquals(1, rw.getStorageWrites().size());
+        assertEquals(1, rw.getStorageReads().size());
+    }
+
+    @Test
+    public void testDeferredCredit() {
+        DummyRepository repo = new DummyRepository();
+        ReadWriteSet rw = new ReadWriteSet();
+        RecordingRepository track = new RecordingRepository(repo, rw, addr1);
+
+        IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> nested = track.startTracking();
+        nested.addBalance(addr1, BigInteger.TEN);
+        nested.flush();
+        assertEquals(BigInteger.TEN, track.getDeferredDelta());
+
+        nested = track.startTracking();
+        nested.addBalance(addr1, BigInteger.ONE);
+        nested.rollback();
+        assertEquals(BigInteger.TEN, track.getDeferredDelta());
+
+        // the credit is not applied to the underlying repository and not a read
+        assertEquals(BigInteger.ZERO, repo.getBalance(addr1));
+        assertFalse(rw.getAccountReads().contains(addr1));
+        assertTrue(rw.getAccountWrites().contains(addr1));
+    }
+}
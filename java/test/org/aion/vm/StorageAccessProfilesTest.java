@@ -0,0 +1,174 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.base.util.Hex;
+import org.aion.fastvm.FastVM;
+import org.aion.mcf.vm.types.DataWord;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StorageAccessProfilesTest {
+
+    private static final byte[] SELECTOR = Hex.decode("a9059cbb");
+
+    private Address to = Address.wrap(RandomUtils.nextBytes(32));
+    private Address caller = Address.wrap(RandomUtils.nextBytes(32));
+    private byte[] code = Hex.decode("600160005500");
+
+    private ExecutionContext context(Address address, Address caller, byte[] callData) {
+        return new ExecutionContext(new byte[32], address, caller, caller, DataWord.ONE, 1_000_000L, DataWord.ZERO,
+                callData, 0, ExecutionContext.CALL, 0, caller, 1L, 0L, 5_000_000L, DataWord.ONE,
+                new TransactionResult());
+    }
+
+    private byte[] transfer(Address recipient) {
+        return ArrayUtils.addAll(SELECTOR, ArrayUtils.addAll(recipient.toBytes(), new DataWord(100).getData()));
+    }
+
+    private void learn(StorageAccessProfiles profiles) {
+        Address recipient = Address.wrap(RandomUtils.nextBytes(32));
+        ExecutionContext ctx = context(to, caller, transfer(recipient));
+        profiles.begin(ctx, FastVM.codeHash(to, code));
+        profiles.record(ctx, DataWord.ONE);
+        profiles.record(ctx, StorageAccessProfiles.derive(caller.toBytes(), 2));
+        profiles.record(ctx, StorageAccessProfiles.derive(recipient.toBytes(), 2));
+        profiles.end(ctx);
+    }
+
+    @Test
+    public void testPredict() {
+        StorageAccessProfiles profiles = new StorageAccessProfiles();
+        learn(profiles);
+
+        // another sender, to another recipient
+        Address sender = Address.wrap(RandomUtils.nextBytes(32));
+        Address recipient = Address.wrap(RandomUtils.nextBytes(32));
+        Set<DataWord> keys = profiles.predict(FastVM.codeHash(to, code), transfer(recipient), sender);
+
+        assertEquals(3, keys.size());
+        assertTrue(keys.contains(DataWord.ONE));
+        assertTrue(keys.contains(StorageAccessProfiles.derive(sender.toBytes(), 2)));
+        assertTrue(keys.contains(StorageAccessProfiles.derive(recipient.toBytes(), 2)));
+
+        // other selectors aren't profiled
+        assertTrue(profiles.predict(FastVM.codeHash(to, code), new byte[4], sender).isEmpty());
+    }
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        StorageAccessProfiles profiles = new StorageAccessProfiles();
+        learn(profiles);
+
+        Path file = Files.createTempFile("profiles", ".bin");
+        try {
+            profiles.save(file);
+
+            StorageAccessProfiles loaded = new StorageAccessProfiles();
+            loaded.load(file);
+            assertEquals(1, loaded.size());
+
+            byte[] callData = transfer(Address.wrap(RandomUtils.nextBytes(32)));
+            assertEquals(profiles.predict(FastVM.codeHash(to, code), callData, caller),
+                    loaded.predict(FastVM.codeHash(to, code), callData, caller));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testLoadInvalid() throws IOException {
+        int[][] headers = {
+                {-1},                      // negative number of contracts
+                {1, Integer.MAX_VALUE},    // code hash length
+                {1, 32},                   // truncated code hash
+        };
+        for (int[] header : headers) {
+            Path file = Files.createTempFile("profiles", ".bin");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+                out.writeInt(0x41505246);
+                out.writeInt(1);
+                for (int i : header) {
+                    out.writeInt(i);
+                }
+            }
+
+            try {
+                new StorageAccessProfiles().load(file);
+                fail();
+            } catch (IOException e) {
+                // expected
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void testBounded() {
+        StorageAccessProfiles profiles = new StorageAccessProfiles(2);
+        for (int i = 0; i < 10; i++) {
+            Address address = Address.wrap(RandomUtils.nextBytes(32));
+            byte[] code = new byte[]{0x60, (byte) i, 0x00};
+            ExecutionContext ctx = context(address, caller, SELECTOR);
+            profiles.begin(ctx, FastVM.codeHash(address, code));
+            profiles.record(ctx, DataWord.ONE);
+            profiles.end(ctx);
+        }
+        assertTrue(profiles.size() <= 2);
+
+        // fixed keys are bounded per selector
+        ExecutionContext ctx = context(to, caller, SELECTOR);
+        profiles.begin(ctx, FastVM.codeHash(to, code));
+        for (int i = 0; i < 100; i++) {
+            profiles.record(ctx, new DataWord(1000 + i));
+        }
+        profiles.end(ctx);
+        assertEquals(StorageAccessProfiles.MAX_KEYS,
+                profiles.predict(FastVM.codeHash(to, code), SELECTOR, caller).size());
+    }
+
+    @Test
+    public void testEndedFrameNotRecorded() {
+        StorageAccessProfiles profiles = new StorageAccessProfiles();
+        ExecutionContext ctx = context(to, caller, SELECTOR);
+        profiles.begin(ctx, FastVM.codeHash(to, code));
+        profiles.record(ctx, DataWord.ONE);
+        profiles.end(ctx);
+
+        profiles.record(ctx, new DataWord(2));
+        Set<DataWord> keys = profiles.predict(FastVM.codeHash(to, code), SELECTOR, caller);
+        assertEquals(1, keys.size());
+        assertTrue(keys.contains(DataWord.ONE));
+    }
+}
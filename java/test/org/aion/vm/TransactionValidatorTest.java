@@ -0,0 +1,108 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.aion.base.type.Address;
+import org.aion.crypto.ECKey;
+import org.aion.crypto.ECKeyFac;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.vm.ExecutionResult.Code;
+import org.aion.zero.types.AionTransaction;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionValidatorTest {
+
+    private ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    private ECKey key = ECKeyFac.inst().create();
+    private Address from = Address.wrap(key.getAddress());
+    private Address to = Address.wrap(RandomUtils.nextBytes(32));
+
+    @After
+    public void teardown() {
+        executor.shutdown();
+    }
+
+    private AionTransaction createTransaction(long nonce, long nrg, boolean sign) {
+        AionTransaction tx = new AionTransaction(new DataWord(nonce).getData(), from, to,
+                new DataWord(100L).getData(), new byte[0], nrg, 1L);
+        if (sign) {
+            tx.sign(key);
+        }
+        return tx;
+    }
+
+    @Test
+    public void testValid() {
+        ValidatedTransaction vtx = TransactionValidator.validate(createTransaction(7, 100_000L, true), 1L);
+        assertTrue(vtx.isValid());
+        assertEquals(BigInteger.valueOf(7), vtx.getNonce());
+        assertEquals(Uint128.of(100), vtx.getValue());
+    }
+
+    @Test
+    public void testUnsigned() {
+        ValidatedTransaction vtx = TransactionValidator.validate(createTransaction(0, 100_000L, false), 1L);
+        assertFalse(vtx.isValid());
+        assertEquals(Code.INVALID_TRANSACTION, vtx.getCode());
+        assertNull(vtx.getNonce());
+    }
+
+    @Test
+    public void testBelowIntrinsicCost() {
+        ValidatedTransaction vtx = TransactionValidator.validate(createTransaction(0, 1L, true), 1L);
+        assertEquals(Code.INVALID_NRG_LIMIT, vtx.getCode());
+    }
+
+    @Test
+    public void testBatches() {
+        List<AionTransaction> txs = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            txs.add(createTransaction(i, 100_000L, i % 7 != 3));
+        }
+
+        List<ValidatedTransaction> vtxs = new TransactionValidator(executor, 8).validate(txs, 1L);
+        assertEquals(txs.size(), vtxs.size());
+        for (int i = 0; i < txs.size(); i++) {
+            assertSame(txs.get(i), vtxs.get(i).getTransaction());
+            assertEquals(i % 7 != 3, vtxs.get(i).isValid());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBatchSize() {
+        new TransactionValidator(executor, 0);
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm;
+
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class Uint128Test {
+
+    private static final BigInteger MAX = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+    private static BigInteger random() {
+        return new BigInteger(1, RandomUtils.nextBytes(RandomUtils.nextInt(0, 17)));
+    }
+
+    @Test
+    public void testConversions() {
+        for (int i = 0; i < 1000; i++) {
+            BigInteger bi = random();
+            Uint128 n = Uint128.of(bi);
+            assertEquals(bi, n.toBigInteger());
+            assertEquals(bi.negate(), n.toNegatedBigInteger());
+            assertEquals(n, Uint128.fromBytes(n.toBytes()));
+            assertEquals(n, Uint128.fromBytes(bi.toByteArray()));
+
+            ByteBuffer buffer = ByteBuffer.allocate(Uint128.BYTES);
+            n.writeTo(buffer, 0);
+            assertArrayEquals(n.toBytes(), buffer.array());
+        }
+        assertSame(BigInteger.ZERO, new Uint128().toBigInteger());
+    }
+
+    @Test
+    public void testArithmetic() {
+        for (int i = 0; i < 1000; i++) {
+            BigInteger a = random();
+            BigInteger b = random();
+            long l = RandomUtils.nextLong(0, Long.MAX_VALUE);
+
+            BigInteger sum = a.add(b);
+            if (sum.compareTo(MAX) <= 0) {
+                assertEquals(sum, Uint128.of(a).add(Uint128.of(b)).toBigInteger());
+            }
+
+            BigInteger product = a.multiply(BigInteger.valueOf(l));
+            if (product.compareTo(MAX) <= 0) {
+                assertEquals(product, Uint128.of(a).mul(l).toBigInteger());
+            }
+
+            BigInteger max = a.max(b);
+            BigInteger min = a.min(b);
+            assertEquals(max.subtract(min), Uint128.of(max).sub(Uint128.of(min)).toBigInteger());
+            assertEquals(a.compareTo(b), Integer.signum(Uint128.of(a).compareTo(Uint128.of(b))));
+        }
+    }
+
+    @Test
+    public void testCarry() {
+        Uint128 n = Uint128.of(BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE));
+        n.add(Uint128.of(1));
+        assertEquals(BigInteger.ONE.shiftLeft(64), n.toBigInteger());
+        n.sub(Uint128.of(1));
+        assertEquals(BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE), n.toBigInteger());
+        assertTrue(Uint128.of(MAX).sub(Uint128.of(MAX)).isZero());
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testAddOverflow() {
+        Uint128.of(MAX).add(Uint128.of(1));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testSubUnderflow() {
+        Uint128.of(1).sub(Uint128.of(2));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testMulOverflow() {
+        Uint128.of(BigInteger.ONE.shiftLeft(127)).mul(2);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testOutOfRange() {
+        Uint128.of(MAX.add(BigInteger.ONE));
+    }
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ *
+ * Contributors:
+ *     Aion foundation.
+ ******************************************************************************/
+package org.aion.vm.precompiled;
+
+import org.aion.base.type.Address;
+import org.aion.crypto.ECKey;
+import org.aion.crypto.ECKeyFac;
+import org.aion.crypto.HashUtil;
+import org.aion.crypto.ed25519.Ed25519Signature;
+import org.aion.fastvm.DummyRepository;
+import org.aion.vm.ExecutionResult;
+import org.aion.vm.PrecompiledContracts;
+import org.aion.vm.PrecompiledContracts.PrecompiledContract;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CryptoContractsTest {
+
+    private static final long LATEST = Long.MAX_VALUE;
+
+    private DummyRepository repo = new DummyRepository();
+
+    @Test
+    public void testRegistry() {
+        PrecompiledContract c1 = PrecompiledContracts.getPrecompiledContract(PrecompiledContracts.sha256Address, LATEST, repo, null);
+        PrecompiledContract c2 = PrecompiledContracts.getPrecompiledContract(PrecompiledContracts.sha256Address, LATEST, repo, null);
+        assertSame(c1, c2);
+
+        assertTrue(PrecompiledContracts.getPrecompiledContract(PrecompiledContracts.totalCurrencyAddress, LATEST, repo,
+                null) instanceof TotalCurrencyContract);
+        assertFalse(PrecompiledContracts.isPrecompiled(
+                Address.wrap("0000000000000000000000000000000000000000000000000000000000000300"), LATEST));
+        assertEquals(-1, PrecompiledContracts.index(
+                Address.wrap("0000000000000000000000000000000000000000000000000000000000000400")));
+        assertEquals(-1, PrecompiledContracts.index(
+                Address.wrap("0100000000000000000000000000000000000000000000000000000000000010")));
+    }
+
+    @Test
+    public void testForkBlock() {
+        long fork = PrecompiledContracts.CRYPTO_FORK_BLOCK;
+        assertNull(PrecompiledContracts.getPrecompiledContract(PrecompiledContracts.sha256Address, fork - 1, repo,
+                null));
+        assertNull(PrecompiledContracts.getStatelessContract(PrecompiledContracts.ed25519VerifyAddress, fork - 1));
+        assertFalse(PrecompiledContracts.isPrecompiled(PrecompiledContracts.blake2bAddress, fork - 1));
+        assertTrue(PrecompiledContracts.isPrecompiled(PrecompiledContracts.blake2bAddress, fork));
+
+        // the total currency contract has been there since genesis, and has state
+        assertTrue(PrecompiledContracts.isPrecompiled(PrecompiledContracts.totalCurrencyAddress, 0));
+        assertNull(PrecompiledContracts.getStatelessContract(PrecompiledContracts.totalCurrencyAddress, LATEST));
+        assertSame(PrecompiledContracts.getPrecompiledContract(PrecompiledContracts.keccak256Address, fork, repo, null),
+                PrecompiledContracts.getStatelessContract(PrecompiledContracts.keccak256Address, fork));
+    }
+
+    @Test
+    public void testHashes() {
+        byte[] input = RandomUtils.nextBytes(100);
+
+        ExecutionResult res = PrecompiledContracts.getPrecompiledContract(PrecompiledContracts.blake2bAddress, LATEST, repo, null)
+                .execute(input, 1000L);
+        assertEquals(ExecutionResult.Code.SUCCESS, res.getCode());
+        assertArrayEquals(HashUtil.h256(input), res.getOutput());
+        assertEquals(1000L - 60 - 12 * 4, res.getNrgLeft());
+
+        res = PrecompiledContracts.getPrecompiledContract(PrecompiledContracts.sha256Address, LATEST, repo, null)
+                .execute(input, 1000L);
+        assertArrayEquals(HashUtil.sha256(input), res.getOutput());
+
+        res = PrecompiledContracts.getPrecompiledContract(PrecompiledContracts.keccak256Address, LATEST, repo, null)
+                .execute(input, 1000L);
+        assertArrayEquals(HashUtil.keccak256(input), res.getOutput());
+        assertEquals(1000L - 30 - 6 * 4, res.getNrgLeft());
+
+        res = PrecompiledContracts.getPrecompiledContract(PrecompiledContracts.keccak256Address, LATEST, repo, null)
+                .execute(input, 50L);
+        assertEquals(ExecutionResult.Code.OUT_OF_NRG, res.getCode());
+    }
+
+    @Test
+    public void testEd25519Verify() {
+        ECKey k = ECKeyFac.inst().create();
+        byte[] msg = RandomUtils.nextBytes(32);
+        Ed25519Signature sig = Ed25519Signature.fromBytes(k.sign(msg).toBytes());
+
+        byte[] input = ByteBuffer.allocate(128).put(msg).put(sig.getPubkey(null)).put(sig.getSignature()).array();
+        ExecutionResult res = new Ed25519VerifyContract().execute(input, Ed25519VerifyContract.COST);
+        assertEquals(ExecutionResult.Code.SUCCESS, res.getCode());
+        assertEquals(0L, res.getNrgLeft());
+        assertArrayEquals(sig.getPubkey(null), res.getOutput());
+
+        // tampered message
+        input[0] ^= 1;
+        res = new Ed25519VerifyContract().execute(input, Ed25519VerifyContract.COST);
+        assertEquals(ExecutionResult.Code.SUCCESS, res.getCode());
+        assertArrayEquals(new byte[32], res.getOutput());
+
+        res = new Ed25519VerifyContract().execute(new byte[127], Ed25519VerifyContract.COST);
+        assertEquals(ExecutionResult.Code.FAILURE, res.getCode());
+    }
+}
@@ -1,6 +1,13 @@
 #include <cstdlib>
 #include <cstring>
 #include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <list>
+#include <memory>
+#include <mutex>
+#include <unordered_map>
+#include <vector>
 
 #include "org_aion_fastvm_FastVM.h"
 #include "evmjit.h"
@@ -13,29 +20,416 @@ void keccak(uint8_t const *_data, uint64_t _size, uint8_t *o_hash);
 }
 }
 
-// cb_env is updated every JNI call, as it's thread-specific
-JNIEnv *cb_env;
-
 // global references
 jclass cb_cls;
 jmethodID cb_get_block_hash;
 jmethodID cb_get_code;
+jmethodID cb_get_code_size;
 jmethodID cb_get_balance;
 jmethodID cb_exists;
 jmethodID cb_get_storage;
-jmethodID cb_put_storage;
+jmethodID cb_put_storage_batch;
 jmethodID cb_selfdestruct;
 jmethodID cb_log;
 jmethodID cb_call;
+jmethodID cb_begin_call;
+jmethodID cb_end_call;
+jmethodID cb_call_stateless;
+
+/*
+ * Metrics of the callbacks: the number of JNI round trips of each kind, their
+ * total time, and a histogram of their latencies, where bucket i counts the
+ * round trips which took [2^i, 2^(i+1)) ns. Times include whatever the Java
+ * side does, e.g. nested executions for call and beginCall. Only collected
+ * when enabled, as it costs two clock reads per callback. The order of the
+ * kinds and the layout must match FastVMMetrics.
+ */
+enum callback_kind {
+    CB_EXISTS,
+    CB_GET_BALANCE,
+    CB_GET_CODE,
+    CB_GET_CODE_SIZE,
+    CB_GET_STORAGE,
+    CB_PUT_STORAGE_BATCH,
+    CB_GET_BLOCK_HASH,
+    CB_SELFDESTRUCT,
+    CB_LOG,
+    CB_CALL,
+    CB_BEGIN_CALL,
+    CB_END_CALL,
+    CB_KINDS
+};
+
+#define LATENCY_BUCKETS 32
+#define CALLBACK_METRICS_SIZE (2 + LATENCY_BUCKETS) // count, nanos, buckets
+
+struct callback_stats {
+    atomic<uint64_t> count;
+    atomic<uint64_t> nanos;
+    atomic<uint64_t> buckets[LATENCY_BUCKETS];
+};
+
+static callback_stats cb_stats[CB_KINDS];
+static atomic<bool> cb_metrics_enabled(false);
+
+/**
+ * Times a callback, from its construction to the end of its scope.
+ */
+struct callback_timer {
+    callback_kind kind;
+    bool enabled;
+    chrono::steady_clock::time_point start;
+
+    explicit callback_timer(callback_kind k) : kind(k), enabled(cb_metrics_enabled.load(memory_order_relaxed))
+    {
+        if (enabled) {
+            start = chrono::steady_clock::now();
+        }
+    }
+
+    ~callback_timer()
+    {
+        if (!enabled) {
+            return;
+        }
+        uint64_t ns = chrono::duration_cast<chrono::nanoseconds>(chrono::steady_clock::now() - start).count();
+        int bucket = ns == 0 ? 0 : min(63 - __builtin_clzll(ns), LATENCY_BUCKETS - 1);
+
+        callback_stats &st = cb_stats[kind];
+        st.count.fetch_add(1, memory_order_relaxed);
+        st.nanos.fetch_add(ns, memory_order_relaxed);
+        st.buckets[bucket].fetch_add(1, memory_order_relaxed);
+    }
+};
+
+/*
+ * Layout of the callback mailbox, a direct buffer shared with the Java side
+ * (see Callback). Fixed-size arguments and results of callbacks are exchanged
+ * through it instead of allocating Java arrays on every call.
+ */
+#define MAILBOX_ADDRESS   0   // 32 bytes
+#define MAILBOX_ADDRESS2  32  // 32 bytes
+#define MAILBOX_KEY       64  // 16 bytes
+#define MAILBOX_VALUE     80  // 16 bytes
+#define MAILBOX_HASH      96  // 32 bytes
+#define MAILBOX_TOPICS    128 // 4 x 32 bytes
+#define MAILBOX_SIZE      256
+
+// the mailbox registered by the current thread
+thread_local uint8_t *mailbox = nullptr;
+
+// the block fields of the transaction context, set by the current thread
+thread_local struct evm_tx_context block_ctx;
 
-// do you need a stack for recursive call?
-struct evm_message msg;
-struct evm_tx_context ctx;
+#define BLOCK_CONTEXT_SIZE (32 + 8 + 8 + 8 + 16)
+
+/**
+ * FNV-1a hash of the given bytes.
+ */
+static inline size_t fnv1a(const uint8_t *bytes, size_t size)
+{
+    uint64_t h = 14695981039346656037ULL;
+    for (size_t i = 0; i < size; i++) {
+        h = (h ^ bytes[i]) * 1099511628211ULL;
+    }
+    return (size_t)h;
+}
+
+/**
+ * An account, identified by its address.
+ */
+struct address_key {
+    uint8_t bytes[sizeof(evm_address)];
+
+    bool operator==(const address_key &other) const
+    {
+        return memcmp(bytes, other.bytes, sizeof(bytes)) == 0;
+    }
+};
+
+struct address_key_hash {
+    size_t operator()(const address_key &k) const
+    {
+        return fnv1a(k.bytes, sizeof(k.bytes));
+    }
+};
+
+/**
+ * The code of an account. The size is known as soon as the account has been
+ * looked up; the code itself is only fetched when it's first copied.
+ */
+struct code_entry {
+    size_t size;
+    uint8_t *code; // nullptr until fetched
+};
+
+/**
+ * The code of the accounts looked up by the executions of a transaction,
+ * shared by all nested executions on the same thread. Code can only change
+ * by a CREATE, or be rolled back by a failed call, in which cases the cache
+ * is cleared.
+ */
+struct code_cache {
+    unordered_map<address_key, code_entry, address_key_hash> entries;
+
+    ~code_cache()
+    {
+        clear();
+    }
+
+    void clear()
+    {
+        for (auto &e : entries) {
+            free(e.second.code);
+        }
+        entries.clear();
+    }
+};
+
+// the code cache of the outermost execution on the current thread
+thread_local code_cache *thread_codes = nullptr;
+
+// the code returned for accounts without code
+static const uint8_t empty_code[1] = { 0 };
+
+/**
+ * A code, identified by its hash.
+ */
+struct hash_key {
+    uint8_t bytes[sizeof(evm_hash)];
+
+    bool operator==(const hash_key &other) const
+    {
+        return memcmp(bytes, other.bytes, sizeof(bytes)) == 0;
+    }
+};
+
+struct hash_key_hash {
+    size_t operator()(const hash_key &k) const
+    {
+        // the key is a hash already
+        size_t h;
+        memcpy(&h, k.bytes, sizeof(h));
+        return h;
+    }
+};
+
+/**
+ * A contract code, kept off the Java heap.
+ */
+struct code_blob {
+    hash_key hash;
+    uint8_t *data;
+    size_t size;
+
+    ~code_blob()
+    {
+        free(data);
+    }
+};
+
+/**
+ * Contract code by hash, shared by all executions. The code is copied out of
+ * the Java array once, when it's first executed, rather than pinned on every
+ * execution. Least recently used code is dropped when the store is full;
+ * executions hold a reference to the code they run, so it stays valid until
+ * they finish.
+ */
+class code_store {
+public:
+    /**
+     * Returns the code of the given hash, or nullptr if it's not stored.
+     */
+    shared_ptr<code_blob> get(const hash_key &hash)
+    {
+        lock_guard<mutex> lock(x_store);
+
+        auto it = m_index.find(hash);
+        if (it == m_index.end()) {
+            return nullptr;
+        }
+        m_lru.splice(m_lru.begin(), m_lru, it->second);
+        return *it->second;
+    }
+
+    /**
+     * Stores the given code, and returns it, or nullptr if it doesn't fit.
+     */
+    shared_ptr<code_blob> put(const hash_key &hash, JNIEnv *env, jbyteArray code)
+    {
+        size_t size = env->GetArrayLength(code);
+        if (size == 0 || size > m_capacity) {
+            return nullptr;
+        }
+
+        shared_ptr<code_blob> blob(new code_blob());
+        blob->hash = hash;
+        blob->size = size;
+        blob->data = (uint8_t *)malloc(size);
+        env->GetByteArrayRegion(code, 0, size, (jbyte *)blob->data);
+
+        lock_guard<mutex> lock(x_store);
+
+        auto it = m_index.find(hash);
+        if (it != m_index.end()) {
+            return *it->second; // stored concurrently
+        }
+        while (m_size + size > m_capacity && !m_lru.empty()) {
+            m_size -= m_lru.back()->size;
+            m_index.erase(m_lru.back()->hash);
+            m_lru.pop_back();
+        }
+        m_lru.push_front(blob);
+        m_index[hash] = m_lru.begin();
+        m_size += size;
+        return blob;
+    }
+
+    /**
+     * Sets the capacity, in bytes. Zero disables the store.
+     */
+    void set_capacity(size_t capacity)
+    {
+        lock_guard<mutex> lock(x_store);
+
+        m_capacity = capacity;
+        while (m_size > m_capacity) {
+            m_size -= m_lru.back()->size;
+            m_index.erase(m_lru.back()->hash);
+            m_lru.pop_back();
+        }
+    }
+
+private:
+    mutex x_store;
+    list<shared_ptr<code_blob>> m_lru;
+    unordered_map<hash_key, list<shared_ptr<code_blob>>::iterator, hash_key_hash> m_index;
+    size_t m_size = 0;
+    size_t m_capacity = 64 * 1024 * 1024;
+};
+
+static code_store store;
+
+/**
+ * The code of an execution, taken from the code store, or pinned from the
+ * Java array.
+ */
+struct exec_code {
+    shared_ptr<code_blob> blob;
+    jbyte *pinned;
+    const uint8_t *data;
+    size_t size;
+};
+
+/**
+ * Gets the given code, from the code store if its hash is given.
+ */
+static void acquire_code(JNIEnv *env, jbyteArray code, const hash_key *hash, struct exec_code *c)
+{
+    c->pinned = nullptr;
+    if (hash) {
+        c->blob = store.get(*hash);
+        if (!c->blob) {
+            c->blob = store.put(*hash, env, code);
+        }
+    }
+
+    if (c->blob) {
+        c->data = c->blob->data;
+        c->size = c->blob->size;
+    } else {
+        c->pinned = env->GetByteArrayElements(code, NULL);
+        c->data = (const uint8_t *)c->pinned;
+        c->size = env->GetArrayLength(code);
+    }
+}
+
+/**
+ * Releases the code of an execution.
+ */
+static void release_code(JNIEnv *env, jbyteArray code, struct exec_code *c)
+{
+    if (c->pinned) {
+        env->ReleaseByteArrayElements(code, c->pinned, JNI_ABORT);
+    }
+    c->blob.reset();
+}
+
+/**
+ * A storage slot, identified by the account address and the key.
+ */
+struct storage_key {
+    uint8_t bytes[sizeof(evm_address) + sizeof(evm_word)];
+
+    bool operator==(const storage_key &other) const
+    {
+        return memcmp(bytes, other.bytes, sizeof(bytes)) == 0;
+    }
+};
+
+struct storage_key_hash {
+    size_t operator()(const storage_key &k) const
+    {
+        return fnv1a(k.bytes, sizeof(k.bytes));
+    }
+};
+
+/**
+ * The cached value of a storage slot, and whether it's been written but not
+ * yet passed on to the repository.
+ */
+struct storage_value {
+    struct evm_word value;
+    bool dirty;
+};
+
+typedef unordered_map<storage_key, storage_value, storage_key_hash> storage_cache;
+
+// the number of addresses reserved for precompiled contracts
+#define PRECOMPILED_RANGE 0x400
+
+/*
+ * The first block in which a stateless precompiled contract is available at
+ * each reserved address, INT64_MAX if there's none. Set once at startup, see
+ * PrecompiledContracts.getStatelessActivations.
+ */
+static int64_t stateless_from[PRECOMPILED_RANGE];
+
+// size of a record of the storage batch: address, key and value
+#define STORAGE_RECORD_SIZE (sizeof(evm_address) + sizeof(evm_word) + sizeof(evm_word))
+
+/**
+ * Host execution context, one per FastVM.run invocation. It's passed to the VM
+ * as the evm_context and handed back to every callback, so that concurrent
+ * executions on different threads, and nested executions on the same thread,
+ * don't share any state.
+ */
+struct host_context {
+    struct evm_context base; // must be the first member
+    JNIEnv *env;             // the env of the thread which owns this execution
+    struct evm_message msg;
+    struct evm_tx_context tx_ctx;
+    code_cache *codes;       // the code of the accounts looked up
+    uint8_t *mailbox;        // the mailbox of the owning thread
+    storage_cache *storage;  // the storage slots accessed, created on first use
+    size_t dirty_slots;      // the number of dirty slots in the storage cache
+    struct evm_instance *instance;
+    evm_revision revision;
+};
+
+/**
+ * Returns the host context of the given evm context.
+ */
+static inline struct host_context *host(struct evm_context *context)
+{
+    return reinterpret_cast<struct host_context *>(context);
+}
 
 /* forward declaration */
-void parse_context(JNIEnv *env, jbyte *b);
-jbyteArray encode_message(JNIEnv *env, const struct evm_message *msg);
+void parse_context(struct host_context *hc, jbyte *b);
+void parse_block_context(struct evm_tx_context *ctx, jbyte *b);
 jbyteArray encode_message(JNIEnv *env, const struct evm_message *msg);
+void write_result(jbyte *buf, const struct evm_result *result);
 jbyteArray encode_result(JNIEnv *env, const struct evm_result *result);
 void parse_result(struct evm_result *result, jbyte *p);
 
@@ -63,13 +457,11 @@ void release_result(const struct evm_result *result)
 int account_exists(struct evm_context* context,
                    const struct evm_address* address)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
+    struct host_context *hc = host(context);
 
-    jboolean exists = cb_env->CallStaticBooleanMethod(cb_cls, cb_exists, addr);
-
-    cb_env->DeleteLocalRef(addr);
-    return exists;
+    memcpy(hc->mailbox + MAILBOX_ADDRESS, address->bytes, sizeof(evm_address));
+    callback_timer t(CB_EXISTS);
+    return hc->env->CallStaticBooleanMethod(cb_cls, cb_exists);
 }
 
 /**
@@ -79,96 +471,193 @@ void get_balance(struct evm_word* result,
                  struct evm_context* context,
                  const struct evm_address* address)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-
-    jbyteArray balance = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_balance, addr);
+    struct host_context *hc = host(context);
 
-    jbyte *balance_ptr = cb_env->GetByteArrayElements(balance, NULL);
-    memcpy(result->bytes, balance_ptr, sizeof(evm_word));
-    cb_env->ReleaseByteArrayElements(balance, balance_ptr, JNI_ABORT);
-
-    cb_env->DeleteLocalRef(balance);
-    cb_env->DeleteLocalRef(addr);
+    memcpy(hc->mailbox + MAILBOX_ADDRESS, address->bytes, sizeof(evm_address));
+    {
+        callback_timer t(CB_GET_BALANCE);
+        hc->env->CallStaticVoidMethod(cb_cls, cb_get_balance);
+    }
+    memcpy(result->bytes, hc->mailbox + MAILBOX_VALUE, sizeof(evm_word));
 }
 
 
 /**
  * evm_get_code_fn
+ *
+ * The size of the code is enough for EXTCODESIZE, so the code is only
+ * copied over from Java when it's requested. The returned code is owned by
+ * the code cache and is consumed immediately.
  */
 size_t get_code(const uint8_t** result_code,
                 struct evm_context* context,
                 const struct evm_address* address)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-
-    // code_buf are consumed immediately and only used for once.
-    static uint8_t *code_buf = nullptr;
-    if (code_buf) {
-        free(code_buf);
-        code_buf = nullptr;
+    struct host_context *hc = host(context);
+    JNIEnv *env = hc->env;
+
+    address_key k;
+    memcpy(k.bytes, address->bytes, sizeof(evm_address));
+
+    auto it = hc->codes->entries.find(k);
+    if (it != hc->codes->entries.end()) {
+        code_entry &e = it->second;
+        if (!result_code) {
+            return e.size;
+        }
+        if (e.size == 0 || e.code) {
+            *result_code = e.size == 0 ? empty_code : e.code;
+            return e.size;
+        }
     }
 
-    jbyteArray code = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_code, addr);
-    jsize code_size = cb_env->GetArrayLength(code);
+    memcpy(hc->mailbox + MAILBOX_ADDRESS, address->bytes, sizeof(evm_address));
+    if (!result_code) {
+        callback_timer t(CB_GET_CODE_SIZE);
+        jint code_size = env->CallStaticIntMethod(cb_cls, cb_get_code_size);
 
-    if (result_code) {
-        jbyte *code_ptr = cb_env->GetByteArrayElements(code, NULL);
-        code_buf = alloc_and_copy(code_ptr, code_size);
-        cb_env->ReleaseByteArrayElements(code, code_ptr, JNI_ABORT);
+        code_entry &e = hc->codes->entries[k];
+        e.size = code_size;
+        e.code = nullptr;
+        return code_size;
+    }
 
-        *result_code = code_buf;
+    callback_timer t(CB_GET_CODE);
+    jbyteArray code = (jbyteArray)env->CallStaticObjectMethod(cb_cls, cb_get_code);
+    jsize code_size = env->GetArrayLength(code);
+
+    code_entry &e = hc->codes->entries[k];
+    free(e.code);
+    e.size = code_size;
+    e.code = nullptr;
+    if (code_size > 0) {
+        e.code = (uint8_t *)malloc(code_size);
+        env->GetByteArrayRegion(code, 0, code_size, (jbyte *)e.code);
     }
+    *result_code = code_size > 0 ? e.code : empty_code;
 
-    cb_env->DeleteLocalRef(code);
-    cb_env->DeleteLocalRef(addr);
+    env->DeleteLocalRef(code);
     return code_size;
 }
 
+/**
+ * Returns the storage cache entry of the given slot, or nullptr if it has
+ * not been accessed by this execution yet.
+ */
+static storage_value *find_storage(struct host_context *hc, const storage_key &k)
+{
+    if (!hc->storage) {
+        return nullptr;
+    }
+    storage_cache::iterator it = hc->storage->find(k);
+    return it == hc->storage->end() ? nullptr : &it->second;
+}
+
+/**
+ * Creates a storage cache entry for the given slot.
+ */
+static storage_value *put_storage(struct host_context *hc, const storage_key &k)
+{
+    if (!hc->storage) {
+        hc->storage = new storage_cache();
+    }
+    storage_value &v = (*hc->storage)[k];
+    return &v;
+}
+
+/**
+ * Writes all dirty storage slots back to the repository, in a single
+ * callback.
+ */
+static void flush_storage(struct host_context *hc)
+{
+    if (hc->dirty_slots == 0) {
+        return;
+    }
+
+    JNIEnv *env = hc->env;
+    jsize size = hc->dirty_slots * STORAGE_RECORD_SIZE;
+    jbyteArray batch = env->NewByteArray(size);
+    jbyte *p = env->GetByteArrayElements(batch, NULL);
+
+    unsigned offset = 0;
+    for (storage_cache::iterator it = hc->storage->begin(); it != hc->storage->end(); ++it) {
+        if (it->second.dirty) {
+            memcpy(p + offset, it->first.bytes, sizeof(it->first.bytes)); offset += sizeof(it->first.bytes); // address, key
+            memcpy(p + offset, it->second.value.bytes, sizeof(evm_word)); offset += sizeof(evm_word); // value
+            it->second.dirty = false;
+        }
+    }
+    hc->dirty_slots = 0;
+
+    env->ReleaseByteArrayElements(batch, p, 0);
+    {
+        callback_timer t(CB_PUT_STORAGE_BATCH);
+        env->CallStaticVoidMethod(cb_cls, cb_put_storage_batch, batch);
+    }
+    env->DeleteLocalRef(batch);
+}
+
 /**
  * evm_get_storage_fn
+ *
+ * Slots are read from the repository once per execution; later reads, and
+ * reads of written slots, are served from the storage cache.
  */
 void get_storage(struct evm_word* result,
                  struct evm_context* context,
                  const struct evm_address* address,
                  const struct evm_word* key)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-    jbyteArray k = cb_env->NewByteArray(sizeof(evm_word));
-    cb_env->SetByteArrayRegion(k, 0, sizeof(evm_word), (const jbyte *)key->bytes);
-    jbyteArray v = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_storage, addr, k);
-
-    jbyte *v_ptr = cb_env->GetByteArrayElements(v, NULL);
-    memcpy(result->bytes, v_ptr, sizeof(evm_word));
-    cb_env->ReleaseByteArrayElements(v, v_ptr, JNI_ABORT);
-
-    cb_env->DeleteLocalRef(addr);
-    cb_env->DeleteLocalRef(k);
-    cb_env->DeleteLocalRef(v);
+    struct host_context *hc = host(context);
+
+    storage_key k;
+    memcpy(k.bytes, address->bytes, sizeof(evm_address));
+    memcpy(k.bytes + sizeof(evm_address), key->bytes, sizeof(evm_word));
+
+    storage_value *v = find_storage(hc, k);
+    if (!v) {
+        memcpy(hc->mailbox + MAILBOX_ADDRESS, address->bytes, sizeof(evm_address));
+        memcpy(hc->mailbox + MAILBOX_KEY, key->bytes, sizeof(evm_word));
+        {
+            callback_timer t(CB_GET_STORAGE);
+            hc->env->CallStaticVoidMethod(cb_cls, cb_get_storage);
+        }
+
+        v = put_storage(hc, k);
+        memcpy(v->value.bytes, hc->mailbox + MAILBOX_VALUE, sizeof(evm_word));
+        v->dirty = false;
+    }
+    memcpy(result->bytes, v->value.bytes, sizeof(evm_word));
 }
 
 /**
  * evm_set_storage_fn
+ *
+ * Writes go to the storage cache, and reach the repository when it's
+ * flushed: before a call and at the end of the execution.
  */
 void set_storage(struct evm_context* context,
                  const struct evm_address* address,
                  const struct evm_word* key,
                  const struct evm_word* value)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-    jbyteArray k = cb_env->NewByteArray(sizeof(evm_word));
-    cb_env->SetByteArrayRegion(k, 0, sizeof(evm_word), (const jbyte *)key->bytes);
-    jbyteArray v = cb_env->NewByteArray(sizeof(evm_word));
-    cb_env->SetByteArrayRegion(v, 0, sizeof(evm_word), (const jbyte *)value->bytes);
+    struct host_context *hc = host(context);
 
-    cb_env->CallStaticVoidMethod(cb_cls, cb_put_storage, addr, k, v);
+    storage_key k;
+    memcpy(k.bytes, address->bytes, sizeof(evm_address));
+    memcpy(k.bytes + sizeof(evm_address), key->bytes, sizeof(evm_word));
 
-    cb_env->DeleteLocalRef(addr);
-    cb_env->DeleteLocalRef(k);
-    cb_env->DeleteLocalRef(v);
+    storage_value *v = find_storage(hc, k);
+    if (!v) {
+        v = put_storage(hc, k);
+        v->dirty = false;
+    }
+    memcpy(v->value.bytes, value->bytes, sizeof(evm_word));
+    if (!v->dirty) {
+        v->dirty = true;
+        hc->dirty_slots++;
+    }
 }
 
 /**
@@ -177,7 +666,7 @@ void set_storage(struct evm_context* context,
 void get_tx_context(struct evm_tx_context* result,
                     struct evm_context* context)
 {
-    memcpy(result, &ctx, sizeof(evm_tx_context));
+    memcpy(result, &host(context)->tx_ctx, sizeof(evm_tx_context));
 }
 
 /**
@@ -187,13 +676,13 @@ void get_block_hash(struct evm_hash* result,
                     struct evm_context* context,
                     int64_t number)
 {
-    jbyteArray block_hash = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_block_hash, number);
+    struct host_context *hc = host(context);
 
-    jbyte *block_hash_ptr = cb_env->GetByteArrayElements(block_hash, NULL);
-    memcpy(result->bytes, block_hash_ptr, sizeof(evm_hash));
-    cb_env->ReleaseByteArrayElements(block_hash, block_hash_ptr, JNI_ABORT);
-
-    cb_env->DeleteLocalRef(block_hash);
+    {
+        callback_timer t(CB_GET_BLOCK_HASH);
+        hc->env->CallStaticVoidMethod(cb_cls, cb_get_block_hash, number);
+    }
+    memcpy(result->bytes, hc->mailbox + MAILBOX_HASH, sizeof(evm_hash));
 }
 
 /**
@@ -203,15 +692,12 @@ void selfdestruct(struct evm_context* context,
                   const struct evm_address* address,
                   const struct evm_address* beneficiary)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-    jbyteArray bene = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(bene, 0, sizeof(evm_address), (const jbyte *)beneficiary->bytes);
-
-    cb_env->CallStaticVoidMethod(cb_cls, cb_selfdestruct, addr, bene);
+    struct host_context *hc = host(context);
 
-    cb_env->DeleteLocalRef(addr);
-    cb_env->DeleteLocalRef(bene);
+    memcpy(hc->mailbox + MAILBOX_ADDRESS, address->bytes, sizeof(evm_address));
+    memcpy(hc->mailbox + MAILBOX_ADDRESS2, beneficiary->bytes, sizeof(evm_address));
+    callback_timer t(CB_SELFDESTRUCT);
+    hc->env->CallStaticVoidMethod(cb_cls, cb_selfdestruct);
 }
 
 /**
@@ -224,36 +710,191 @@ void log(struct evm_context* context,
          const struct evm_word topics[],
          size_t topics_count)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-    jbyteArray t = cb_env->NewByteArray(sizeof(evm_word) * topics_count);
-    cb_env->SetByteArrayRegion(t, 0, sizeof(evm_word) * topics_count, (const jbyte *)topics[0].bytes);
-    jbyteArray d = cb_env->NewByteArray(data_size);
-    cb_env->SetByteArrayRegion(d, 0, data_size, (const jbyte *)data);
+    struct host_context *hc = host(context);
+    JNIEnv *env = hc->env;
+
+    memcpy(hc->mailbox + MAILBOX_ADDRESS, address->bytes, sizeof(evm_address));
+    memcpy(hc->mailbox + MAILBOX_TOPICS, topics, sizeof(evm_word) * topics_count);
+    jbyteArray d = env->NewByteArray(data_size);
+    env->SetByteArrayRegion(d, 0, data_size, (const jbyte *)data);
+
+    // each 32-byte topic takes two words
+    {
+        callback_timer t(CB_LOG);
+        env->CallStaticVoidMethod(cb_cls, cb_log, (jint)(topics_count * sizeof(evm_word) / 32), d);
+    }
 
-    cb_env->CallStaticVoidMethod(cb_cls, cb_log, addr, t, d);
+    env->DeleteLocalRef(d);
+}
 
-    cb_env->DeleteLocalRef(addr);
-    cb_env->DeleteLocalRef(t);
-    cb_env->DeleteLocalRef(d);
+/**
+ * Returns the index of the given address in the range reserved for
+ * precompiled contracts (see PrecompiledContracts), which are executed in
+ * Java, or -1 if it's not in the range.
+ */
+static int reserved_index(const struct evm_address *address)
+{
+    const size_t n = sizeof(evm_address);
+    for (size_t i = 0; i < n - 2; i++) {
+        if (address->bytes[i]) {
+            return -1;
+        }
+    }
+    int index = (address->bytes[n - 2] << 8) | address->bytes[n - 1];
+    return index < PRECOMPILED_RANGE ? index : -1;
+}
+
+/**
+ * Calls a stateless precompiled contract through Callback.callStateless,
+ * which needs neither the encoded message nor a track. Returns false if
+ * there's no such contract at the address, and the call must take the full
+ * path.
+ */
+static bool call_stateless(struct evm_result *result, struct host_context *hc, const struct evm_message *msg)
+{
+    JNIEnv *env = hc->env;
+
+    memcpy(hc->mailbox + MAILBOX_ADDRESS, msg->address.bytes, sizeof(evm_address));
+    jbyteArray input = env->NewByteArray(msg->input_size);
+    env->SetByteArrayRegion(input, 0, msg->input_size, (const jbyte *)msg->input);
+
+    jbyteArray r;
+    {
+        callback_timer t(CB_CALL);
+        r = (jbyteArray)env->CallStaticObjectMethod(cb_cls, cb_call_stateless, input, (jlong)msg->gas,
+                                                    (jint)msg->depth);
+    }
+    env->DeleteLocalRef(input);
+    if (!r) {
+        return false;
+    }
+
+    jbyte *r_ptr = env->GetByteArrayElements(r, NULL);
+    parse_result(result, r_ptr);
+    env->ReleaseByteArrayElements(r, r_ptr, JNI_ABORT);
+    env->DeleteLocalRef(r);
+    return true;
+}
+
+static bool is_zero(const struct evm_word *word)
+{
+    for (size_t i = 0; i < sizeof(word->bytes); i++) {
+        if (word->bytes[i]) {
+            return false;
+        }
+    }
+    return true;
+}
+
+/**
+ * Executes a nested call in native code, on behalf of the calling execution.
+ * The state changes of the call were already prepared by Callback.beginCall,
+ * which returned the code and left the code hash in the mailbox.
+ */
+static void execute_nested(struct evm_result *result, struct host_context *parent, const struct evm_message *msg,
+                           jbyteArray code)
+{
+    JNIEnv *env = parent->env;
+
+    struct host_context hc;
+    memset(&hc, 0, sizeof(hc));
+    hc.base.fn_table = parent->base.fn_table;
+    hc.env = env;
+    hc.mailbox = parent->mailbox;
+    hc.storage = nullptr;
+    hc.dirty_slots = 0;
+    hc.codes = parent->codes;
+    hc.instance = parent->instance;
+    hc.revision = parent->revision;
+    hc.msg = *msg;
+    hc.tx_ctx = parent->tx_ctx;
+
+    if (env->GetArrayLength(code) == 0) {
+        memset(result, 0, sizeof(*result));
+        result->status_code = EVM_SUCCESS;
+        result->gas_left = msg->gas;
+        return;
+    }
+
+    hash_key k;
+    memcpy(k.bytes, parent->mailbox + MAILBOX_HASH, sizeof(evm_hash));
+    memcpy(hc.msg.code_hash.bytes, k.bytes, sizeof(evm_hash));
+
+    struct exec_code c;
+    acquire_code(env, code, &k, &c);
+    *result = hc.instance->execute(hc.instance, &hc.base, hc.revision, &hc.msg, c.data, c.size);
+    release_code(env, code, &c);
+
+    flush_storage(&hc);
+    delete hc.storage;
 }
 
 /**
  * evm_call_fn
+ *
+ * Calls to contracts whose code is compiled anyway are executed natively,
+ * with Callback.beginCall and Callback.endCall doing the state bookkeeping.
+ * Calls without value to stateless precompiled contracts only run the
+ * contract. Anything else, such as CREATE, stateful precompiled contracts
+ * and code which is still interpreted, goes through Callback.call; calls into
+ * the precompiled range do so without asking Callback.beginCall first.
  */
 void call(struct evm_result* result,
           struct evm_context* context,
           const struct evm_message* msg)
 {
-    jbyteArray m = encode_message(cb_env, msg);
+    struct host_context *hc = host(context);
+    JNIEnv *env = hc->env;
+
+    // nothing is written, so storage needn't be flushed first
+    int index = reserved_index(&msg->address);
+    bool reserved = index >= 0;
+    if (reserved && msg->kind != EVM_CREATE && is_zero(&msg->value)
+        && hc->tx_ctx.block_number >= stateless_from[index] && call_stateless(result, hc, msg)) {
+        return;
+    }
 
-    jbyteArray r = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_call, m);
-    jbyte *r_ptr = cb_env->GetByteArrayElements(r, NULL);
-    parse_result(result, r_ptr);
-    cb_env->ReleaseByteArrayElements(r, r_ptr, JNI_ABORT);
+    // the callee sees all writes so far, and may change any slot, including
+    // those of this account
+    flush_storage(hc);
+
+    jbyteArray m = encode_message(env, msg);
+
+    jbyteArray code = NULL;
+    if (msg->kind != EVM_CREATE && !reserved) {
+        callback_timer t(CB_BEGIN_CALL);
+        code = (jbyteArray)env->CallStaticObjectMethod(cb_cls, cb_begin_call, m);
+    }
+
+    if (code) {
+        execute_nested(result, hc, msg, code);
+        {
+            callback_timer t(CB_END_CALL);
+            env->CallStaticVoidMethod(cb_cls, cb_end_call, (jboolean)(result->status_code == EVM_SUCCESS));
+        }
+        env->DeleteLocalRef(code);
+    } else {
+        jbyteArray r;
+        {
+            callback_timer t(CB_CALL);
+            r = (jbyteArray)env->CallStaticObjectMethod(cb_cls, cb_call, m);
+        }
+        jbyte *r_ptr = env->GetByteArrayElements(r, NULL);
+        parse_result(result, r_ptr);
+        env->ReleaseByteArrayElements(r, r_ptr, JNI_ABORT);
+        env->DeleteLocalRef(r);
+    }
+
+    env->DeleteLocalRef(m);
+
+    if (hc->storage) {
+        hc->storage->clear();
+    }
 
-    cb_env->DeleteLocalRef(m);
-    cb_env->DeleteLocalRef(r);
+    // a CREATE adds code, and a failed call rolls back any code it created
+    if (msg->kind == EVM_CREATE || result->status_code != EVM_SUCCESS) {
+        hc->codes->clear();
+    }
 }
 
 /**
@@ -297,10 +938,15 @@ void write_long(jbyte *b, uint64_t num) {
 }
 
 /**
- * Parse the JNI execution context
+ * Parse the JNI execution context. The block fields are taken from the
+ * block context of the current thread.
  */
-void parse_context(JNIEnv *env, jbyte *b)
+void parse_context(struct host_context *hc, jbyte *b)
 {
+    struct evm_message &msg = hc->msg;
+    struct evm_tx_context &ctx = hc->tx_ctx;
+    ctx = block_ctx;
+
     unsigned address_len = 32;
     unsigned offset = 0;
     memcpy(msg.address.bytes, b + offset, address_len); offset += address_len; // address
@@ -317,12 +963,20 @@ void parse_context(JNIEnv *env, jbyte *b)
     msg.depth = read_int(b + offset); offset += 4; // depth
     msg.kind = static_cast<evm_call_kind>(read_int(b + offset)); offset += 4; // kind
     msg.flags = read_int(b + offset); offset += 4; // flags
+}
 
-    memcpy(ctx.block_coinbase.bytes, b + offset, address_len); offset += address_len; // block coinbase
-    ctx.block_number = read_long(b + offset); offset += 8; // block number
-    ctx.block_timestamp = read_long(b + offset); offset += 8; // block timestamp
-    ctx.block_gas_limit = read_long(b + offset); offset += 8; // block gas limit
-    memcpy(ctx.block_difficulty.bytes, b + offset, 16); offset += 16; // call value
+/**
+ * Parse the JNI block context
+ */
+void parse_block_context(struct evm_tx_context *ctx, jbyte *b)
+{
+    unsigned address_len = 32;
+    unsigned offset = 0;
+    memcpy(ctx->block_coinbase.bytes, b + offset, address_len); offset += address_len; // block coinbase
+    ctx->block_number = read_long(b + offset); offset += 8; // block number
+    ctx->block_timestamp = read_long(b + offset); offset += 8; // block timestamp
+    ctx->block_gas_limit = read_long(b + offset); offset += 8; // block gas limit
+    memcpy(ctx->block_difficulty.bytes, b + offset, 16); offset += 16; // block difficulty
 }
 
 /**
@@ -369,18 +1023,25 @@ void parse_result(struct evm_result *result, jbyte *p)
 }
 
 /**
- * Encodes execution result.
+ * Writes execution result into the given buffer.
  */
-jbyteArray encode_result(JNIEnv *env, const struct evm_result *result)
+void write_result(jbyte *buf, const struct evm_result *result)
 {
-    unsigned size = 4 + 8 + 4 + result->output_size;
-    jbyte *buf = (jbyte *)malloc(size);
-
     unsigned offset = 0;
     write_int(buf + offset, result->status_code); offset += 4; // code
     write_long(buf + offset, result->gas_left); offset += 8; // gas left
     write_int(buf + offset, result->output_size); offset += 4; // output size
     memcpy(buf + offset, result->output_data, result->output_size); offset += result->output_size; // output
+}
+
+/**
+ * Encodes execution result.
+ */
+jbyteArray encode_result(JNIEnv *env, const struct evm_result *result)
+{
+    unsigned size = 4 + 8 + 4 + result->output_size;
+    jbyte *buf = (jbyte *)malloc(size);
+    write_result(buf, result);
 
     jbyteArray ret = env->NewByteArray(size);
     env->SetByteArrayRegion(ret, 0, size, buf);
@@ -402,74 +1063,203 @@ static const struct evm_context_fn_table ctx_fn_table = {
     log
 };
 
-struct evm_context vm_context = { &ctx_fn_table };
-
 JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_init
   (JNIEnv *env, jclass cls)
 {
-    cb_env = env;
-
     jclass cb_cls_local = env->FindClass("org/aion/fastvm/Callback");
     cb_cls = (jclass) env->NewGlobalRef(cb_cls_local);
 
-    cb_get_block_hash = env->GetStaticMethodID(cb_cls, "getBlockHash", "(J)[B");
-    cb_get_code = env->GetStaticMethodID(cb_cls, "getCode", "([B)[B");
-    cb_get_balance = env->GetStaticMethodID(cb_cls, "getBalance", "([B)[B");
-    cb_exists = env->GetStaticMethodID(cb_cls, "exists", "([B)Z");
-    cb_get_storage = env->GetStaticMethodID(cb_cls, "getStorage", "([B[B)[B");
-    cb_put_storage = env->GetStaticMethodID(cb_cls, "putStorage", "([B[B[B)V");
-    cb_selfdestruct = env->GetStaticMethodID(cb_cls, "selfDestruct", "([B[B)V");
-    cb_log = env->GetStaticMethodID(cb_cls, "log", "([B[B[B)V");
+    cb_get_block_hash = env->GetStaticMethodID(cb_cls, "getBlockHash", "(J)V");
+    cb_get_code = env->GetStaticMethodID(cb_cls, "getCode", "()[B");
+    cb_get_code_size = env->GetStaticMethodID(cb_cls, "getCodeSize", "()I");
+    cb_get_balance = env->GetStaticMethodID(cb_cls, "getBalance", "()V");
+    cb_exists = env->GetStaticMethodID(cb_cls, "exists", "()Z");
+    cb_get_storage = env->GetStaticMethodID(cb_cls, "getStorage", "()V");
+    cb_put_storage_batch = env->GetStaticMethodID(cb_cls, "putStorageBatch", "([B)V");
+    cb_selfdestruct = env->GetStaticMethodID(cb_cls, "selfDestruct", "()V");
+    cb_log = env->GetStaticMethodID(cb_cls, "log", "(I[B)V");
     cb_call = env->GetStaticMethodID(cb_cls, "call", "([B)[B");
+    cb_begin_call = env->GetStaticMethodID(cb_cls, "beginCall", "([B)[B");
+    cb_call_stateless = env->GetStaticMethodID(cb_cls, "callStateless", "([BJI)[B");
+    cb_end_call = env->GetStaticMethodID(cb_cls, "endCall", "(Z)V");
 
     env->DeleteLocalRef(cb_cls_local);
 }
 
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setStatelessContracts
+  (JNIEnv *env, jclass cls, jlongArray from_blocks)
+{
+    jsize n = env->GetArrayLength(from_blocks);
+    jlong *blocks = env->GetLongArrayElements(from_blocks, NULL);
+    for (int i = 0; i < PRECOMPILED_RANGE; i++) {
+        stateless_from[i] = i < n ? (int64_t)blocks[i] : INT64_MAX;
+    }
+    env->ReleaseLongArrayElements(from_blocks, blocks, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setMailbox
+  (JNIEnv *env, jclass cls, jobject buffer)
+{
+    if (env->GetDirectBufferCapacity(buffer) >= MAILBOX_SIZE) {
+        mailbox = (uint8_t *)env->GetDirectBufferAddress(buffer);
+    }
+}
+
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setBlockContext
+  (JNIEnv *env, jclass cls, jbyteArray block)
+{
+    jbyte buf[BLOCK_CONTEXT_SIZE];
+    if (env->GetArrayLength(block) == BLOCK_CONTEXT_SIZE) {
+        env->GetByteArrayRegion(block, 0, BLOCK_CONTEXT_SIZE, buf);
+        parse_block_context(&block_ctx, buf);
+    }
+}
+
 JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_create
   (JNIEnv *env, jclass cls)
 {
-    cb_env = env;
-
-    struct evm_instance *instance = evmjit_create();;
+    // the jit returns the same instance every time, which is never destroyed
+    struct evm_instance *instance = evmjit_create();
     return (jlong)instance;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
-  (JNIEnv *env, jclass cls, jlong instance, jbyteArray code, jbyteArray context, jint revision)
+JNIEXPORT jboolean JNICALL Java_org_aion_fastvm_FastVM_setOption
+  (JNIEnv *env, jclass cls, jlong instance, jstring name, jstring value)
+{
+    struct evm_instance *inst = (struct evm_instance *)instance;
+    const char *name_ptr = env->GetStringUTFChars(name, NULL);
+    const char *value_ptr = env->GetStringUTFChars(value, NULL);
+
+    int ret = inst->set_option(inst, name_ptr, value_ptr);
+
+    env->ReleaseStringUTFChars(name, name_ptr);
+    env->ReleaseStringUTFChars(value, value_ptr);
+    return ret ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setCodeStoreSize
+  (JNIEnv *env, jclass cls, jlong size)
+{
+    store.set_capacity(size > 0 ? (size_t)size : 0);
+}
+
+JNIEXPORT jboolean JNICALL Java_org_aion_fastvm_FastVM_isJitCompiled
+  (JNIEnv *env, jclass cls, jbyteArray code_hash, jint revision, jint flags)
+{
+    if (env->GetArrayLength(code_hash) != sizeof(evm_hash)) {
+        return JNI_FALSE;
+    }
+
+    struct evm_hash hash;
+    env->GetByteArrayRegion(code_hash, 0, sizeof(evm_hash), (jbyte *)hash.bytes);
+    return evmjit_is_compiled(&hash, (enum evm_revision)revision, (uint32_t)flags) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setCallbackMetrics
+  (JNIEnv *env, jclass cls, jboolean enabled)
+{
+    cb_metrics_enabled.store(enabled == JNI_TRUE, memory_order_relaxed);
+}
+
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_getJitMetrics
+  (JNIEnv *env, jclass cls, jlongArray out)
+{
+    jsize capacity = env->GetArrayLength(out);
+    vector<uint64_t> values(capacity);
+    size_t n = evmjit_get_metrics(values.data(), values.size());
+
+    env->SetLongArrayRegion(out, 0, (jsize)min(n, values.size()), (const jlong *)values.data());
+    return (jint)n;
+}
+
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_getCallbackMetrics
+  (JNIEnv *env, jclass cls, jlongArray out)
 {
-    cb_env = env;
+    jsize capacity = env->GetArrayLength(out);
+    vector<uint64_t> values(CB_KINDS * CALLBACK_METRICS_SIZE);
+
+    size_t offset = 0;
+    for (int i = 0; i < CB_KINDS; i++) {
+        const callback_stats &st = cb_stats[i];
+        values[offset++] = st.count.load(memory_order_relaxed);
+        values[offset++] = st.nanos.load(memory_order_relaxed);
+        for (int j = 0; j < LATENCY_BUCKETS; j++) {
+            values[offset++] = st.buckets[j].load(memory_order_relaxed);
+        }
+    }
+
+    env->SetLongArrayRegion(out, 0, (jsize)min(values.size(), (size_t)capacity), (const jlong *)values.data());
+    return (jint)values.size();
+}
 
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
+  (JNIEnv *env, jclass cls, jlong instance, jbyteArray code, jbyteArray code_hash, jobject context,
+   jobject result_buf, jint revision, jint flags)
+{
     struct evm_instance *inst = (struct evm_instance *)instance;
-    jbyte *code_ptr = (jbyte *)env->GetByteArrayElements(code, NULL);
-    jsize code_size = env->GetArrayLength(code);
 
-    // parse execution context and compute code hash
-    jbyte *context_ptr = (jbyte *)env->GetByteArrayElements(context, NULL);
-    parse_context(env, context_ptr);
-    dev::evmjit::keccak((const uint8_t*) code_ptr, code_size, msg.code_hash.bytes);
+    // set up the host context of this execution
+    struct host_context hc;
+    memset(&hc, 0, sizeof(hc));
+    hc.base.fn_table = &ctx_fn_table;
+    hc.env = env;
+    hc.mailbox = mailbox;
+    hc.storage = nullptr;
+    hc.dirty_slots = 0;
+
+    // the outermost execution of the thread owns the code cache
+    bool owns_codes = !thread_codes;
+    if (owns_codes) {
+        thread_codes = new code_cache();
+    }
+    hc.codes = thread_codes;
+    hc.instance = inst;
+    hc.revision = static_cast<evm_revision>(revision);
+
+    // parse execution context
+    jbyte *context_ptr = (jbyte *)env->GetDirectBufferAddress(context);
+    parse_context(&hc, context_ptr);
+    hc.msg.flags |= flags;
+
+    // take the code from the code store if its hash is given; otherwise pin
+    // the Java array, and compute the code hash
+    hash_key k;
+    bool has_hash = code_hash && env->GetArrayLength(code_hash) == sizeof(evm_hash);
+    if (has_hash) {
+        env->GetByteArrayRegion(code_hash, 0, sizeof(evm_hash), (jbyte *)k.bytes);
+        memcpy(hc.msg.code_hash.bytes, k.bytes, sizeof(evm_hash));
+    }
+    struct exec_code c;
+    acquire_code(env, code, has_hash ? &k : nullptr, &c);
+    if (!has_hash) {
+        dev::evmjit::keccak(c.data, c.size, hc.msg.code_hash.bytes);
+    }
 
     // execute
-    struct evm_result result = inst->execute(inst, &vm_context, static_cast<evm_revision>(revision), &msg,
-            (uint8_t *)code_ptr, code_size);
+    struct evm_result result = inst->execute(inst, &hc.base, hc.revision, &hc.msg, c.data, c.size);
 
-    // encode execution result
-    jbyteArray ret = encode_result(env, &result);
+    // pass on the storage writes; the caller rolls them back if the execution failed
+    flush_storage(&hc);
+
+    // encode execution result, into the result buffer if it fits
+    jbyteArray ret = NULL;
+    if (4 + 8 + 4 + result.output_size <= (size_t)env->GetDirectBufferCapacity(result_buf)) {
+        write_result((jbyte *)env->GetDirectBufferAddress(result_buf), &result);
+    } else {
+        ret = encode_result(env, &result);
+    }
 
     // release
     if (result.release) {
         result.release(&result);
     }
 
-    env->ReleaseByteArrayElements(context, context_ptr, JNI_ABORT);
-    env->ReleaseByteArrayElements(code, code_ptr, 0 );
-    return ret;
-}
-
-JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_destroy
-  (JNIEnv *env, jclass cls, jlong handler)
-{
-    cb_env = env;
+    if (owns_codes) {
+        delete thread_codes;
+        thread_codes = nullptr;
+    }
+    delete hc.storage;
 
-    struct evm_instance *instance = (struct evm_instance *)handler;
-    instance->destroy(instance);
+    release_code(env, code, &c);
+    return ret;
 }
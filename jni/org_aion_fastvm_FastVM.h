@@ -15,6 +15,30 @@ extern "C" {
 JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_init
   (JNIEnv *, jclass);
 
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    setStatelessContracts
+ * Signature: ([J)V
+ */
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setStatelessContracts
+  (JNIEnv *, jclass, jlongArray);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    setMailbox
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setMailbox
+  (JNIEnv *, jclass, jobject);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    setBlockContext
+ * Signature: ([B)V
+ */
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setBlockContext
+  (JNIEnv *, jclass, jbyteArray);
+
 /*
  * Class:     org_aion_fastvm_FastVM
  * Method:    create
@@ -25,20 +49,60 @@ JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_create
 
 /*
  * Class:     org_aion_fastvm_FastVM
- * Method:    run
- * Signature: (J[B[BI)[B
+ * Method:    setOption
+ * Signature: (JLjava/lang/String;Ljava/lang/String;)Z
  */
-JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
-  (JNIEnv *, jclass, jlong, jbyteArray, jbyteArray, jint);
+JNIEXPORT jboolean JNICALL Java_org_aion_fastvm_FastVM_setOption
+  (JNIEnv *, jclass, jlong, jstring, jstring);
 
 /*
  * Class:     org_aion_fastvm_FastVM
- * Method:    destroy
+ * Method:    setCodeStoreSize
  * Signature: (J)V
  */
-JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_destroy
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setCodeStoreSize
   (JNIEnv *, jclass, jlong);
 
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    isJitCompiled
+ * Signature: ([BII)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_aion_fastvm_FastVM_isJitCompiled
+  (JNIEnv *, jclass, jbyteArray, jint, jint);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    setCallbackMetrics
+ * Signature: (Z)V
+ */
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setCallbackMetrics
+  (JNIEnv *, jclass, jboolean);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    getJitMetrics
+ * Signature: ([J)I
+ */
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_getJitMetrics
+  (JNIEnv *, jclass, jlongArray);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    getCallbackMetrics
+ * Signature: ([J)I
+ */
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_getCallbackMetrics
+  (JNIEnv *, jclass, jlongArray);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    run
+ * Signature: (J[B[BLjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;II)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
+  (JNIEnv *, jclass, jlong, jbyteArray, jbyteArray, jobject, jobject, jint, jint);
+
 #ifdef __cplusplus
 }
 #endif
@@ -1,15 +1,19 @@
 #include "Cache.h"
 
+#include <algorithm>
+#include <atomic>
+#include <cstring>
+#include <memory>
 #include <mutex>
+#include <unordered_map>
 
 #include "preprocessor/llvm_includes_start.h"
 #include <llvm/IR/Module.h>
 #include <llvm/IR/LLVMContext.h>
 #include <llvm/IR/Instructions.h>
-#include <llvm/ExecutionEngine/ExecutionEngine.h>
 #include <llvm/Support/Path.h>
 #include <llvm/Support/FileSystem.h>
-#include <llvm/Support/raw_os_ostream.h>
+#include <llvm/Support/raw_ostream.h>
 #include "preprocessor/llvm_includes_end.h"
 
 #include "ExecStats.h"
@@ -27,25 +31,169 @@ namespace
 	/// cached code must be invalidated.
 	const auto c_internalABIVersion = 4;
 
+	/// Pack file layout: a sequence of records, each made of a header, the
+	/// code identifier and the object. The identifier and the object start
+	/// at 16-byte boundaries, so objects can be parsed in place.
+	const uint32_t c_recordMagic = 0x4f4d5645; // "EVMO"
+	const size_t c_headerSize = 16;
+	const size_t c_alignment = 16;
+
+	struct RecordHeader
+	{
+		uint32_t magic;
+		uint32_t idSize;
+		uint32_t objectSize;
+		uint32_t reserved;
+	};
+	static_assert(sizeof(RecordHeader) == c_headerSize, "RecordHeader is not packed");
+
+	struct Record
+	{
+		uint64_t offset;
+		uint32_t size;
+	};
+
+	size_t align(size_t _offset)
+	{
+		return (_offset + c_alignment - 1) / c_alignment * c_alignment;
+	}
+
 	using Guard = std::lock_guard<std::mutex>;
+
+	/// Guards the index and the mappings. Lookups only hold it briefly.
 	std::mutex x_cacheMutex;
-	CacheMode g_mode;
-	std::unique_ptr<llvm::MemoryBuffer> g_lastObject;
+	/// Serializes appends to the pack file.
+	std::mutex x_writeMutex;
+
+	std::atomic<CacheMode> g_mode{CacheMode::off};
 	JITListener* g_listener;
+	std::string g_dir = "cache";
+
+	std::unordered_map<std::string, Record> g_index;
+	std::vector<std::string> g_ids;
+
+	/// The latest mapping of the pack file. Objects handed out share the
+	/// mapping they point into, so a superseded mapping is released once the
+	/// objects in it are loaded.
+	std::shared_ptr<llvm::MemoryBuffer> g_mapping;
+
+	std::unique_ptr<llvm::raw_fd_ostream> g_packFile;
+	uint64_t g_packEnd = 0;
 
 	std::string getVersionedCacheDir()
 	{
-		llvm::SmallString<256> path;
-		llvm::sys::path::append(path, "cache", std::to_string(c_internalABIVersion));
+		llvm::SmallString<256> path{g_dir};
+		llvm::sys::path::append(path, std::to_string(c_internalABIVersion));
+		return path.str();
+	}
+
+	std::string getPackPath()
+	{
+		llvm::SmallString<256> path{getVersionedCacheDir()};
+		llvm::sys::path::append(path, "objects.pack");
 		return path.str();
 	}
 
+	/// Maps the pack file. Must be called with x_cacheMutex held.
+	bool mapPack()
+	{
+		auto r = llvm::MemoryBuffer::getFile(getPackPath(), -1, false);
+		if (!r)
+		{
+			if (r.getError() != std::make_error_code(std::errc::no_such_file_or_directory))
+				DLOG(cache) << r.getError().message(); // TODO: Add warning log
+			return false;
+		}
+		g_mapping = std::move(r.get());
+		return true;
+	}
+
+	/// Maps the pack file and indexes its records. Returns the end of the last
+	/// complete record. Must be called with x_cacheMutex held.
+	uint64_t loadPack()
+	{
+		g_index.clear();
+		g_ids.clear();
+		if (!mapPack())
+			return 0;
+
+		auto data = g_mapping->getBufferStart();
+		auto size = g_mapping->getBufferSize();
+		uint64_t offset = 0;
+		while (offset + c_headerSize <= size)
+		{
+			RecordHeader header;
+			std::memcpy(&header, data + offset, c_headerSize);
+			if (header.magic != c_recordMagic)
+				break;
+
+			auto idOffset = offset + c_headerSize;
+			auto objectOffset = align(idOffset + header.idSize);
+			auto end = objectOffset + header.objectSize;
+			if (end > size)
+				break; // truncated record
+
+			std::string id{data + idOffset, header.idSize};
+			if (g_index.emplace(id, Record{objectOffset, header.objectSize}).second)
+				g_ids.push_back(std::move(id));
+			offset = align(end);
+		}
+		DLOG(cache) << g_ids.size() << " objects in pack\n";
+		return std::min<uint64_t>(offset, size);
+	}
+
+	/// An object in a mapping of the pack file, which keeps the mapping alive
+	/// while the object is loaded.
+	class PackObject: public llvm::MemoryBuffer
+	{
+	public:
+		PackObject(std::shared_ptr<llvm::MemoryBuffer> _mapping, llvm::StringRef _object, std::string _id):
+			m_mapping(std::move(_mapping)), m_id(std::move(_id))
+		{
+			init(_object.begin(), _object.end(), false);
+		}
+
+		llvm::StringRef getBufferIdentifier() const override { return m_id; }
+		BufferKind getBufferKind() const override { return MemoryBuffer_MMap; }
+
+	private:
+		std::shared_ptr<llvm::MemoryBuffer> m_mapping;
+		std::string m_id;
+	};
+
+	/// Opens the pack file for appending, dropping a truncated tail left by
+	/// an interrupted write. Must be called with both mutexes held.
+	void openPack(uint64_t _validEnd)
+	{
+		g_packFile.reset();
+
+		auto cacheDir = getVersionedCacheDir();
+		if (auto err = llvm::sys::fs::create_directories(cacheDir))
+		{
+			DLOG(cache) << "Cannot create cache dir " << cacheDir << " (error: " << err.message() << "\n";
+			return;
+		}
+
+		int fd;
+		if (auto err = llvm::sys::fs::openFileForWrite(getPackPath(), fd, llvm::sys::fs::F_Append))
+		{
+			DLOG(cache) << "Cannot open cache pack (error: " << err.message() << "\n";
+			return;
+		}
+
+		if (auto err = llvm::sys::fs::resize_file(fd, _validEnd))
+			DLOG(cache) << "Cannot truncate cache pack (error: " << err.message() << "\n";
+
+		g_packEnd = _validEnd;
+		g_packFile = llvm::make_unique<llvm::raw_fd_ostream>(fd, true);
+	}
 }
 
 ObjectCache* Cache::init(CacheMode _mode, JITListener* _listener)
 {
 	DLOG(cache) << "Cache dir: " << getVersionedCacheDir() << "\n";
 
+	Guard w{x_writeMutex};
 	Guard g{x_cacheMutex};
 
 	g_mode = _mode;
@@ -53,60 +201,61 @@ ObjectCache* Cache::init(CacheMode _mode, JITListener* _listener)
 
 	if (g_mode == CacheMode::clear)
 	{
-		Cache::clear();
+		g_packFile.reset();
+		g_mapping.reset();
+		llvm::sys::fs::remove(getPackPath());
+		g_index.clear();
+		g_ids.clear();
 		g_mode = CacheMode::off;
 	}
 
-	if (g_mode != CacheMode::off)
+	if (g_mode == CacheMode::off)
 	{
-		static ObjectCache objectCache;
-		return &objectCache;
+		g_packFile.reset();
+		return nullptr;
 	}
-	return nullptr;
+
+	auto validEnd = loadPack();
+	if (g_mode == CacheMode::on || g_mode == CacheMode::write || g_mode == CacheMode::preload)
+		openPack(validEnd);
+	else
+		g_packFile.reset();
+
+	static ObjectCache objectCache;
+	return &objectCache;
 }
 
-void Cache::clear()
+void Cache::setDirectory(std::string const& _dir)
 {
 	Guard g{x_cacheMutex};
-
-	auto cachePath = getVersionedCacheDir();
-	std::error_code err;
-	for (auto it = llvm::sys::fs::directory_iterator{cachePath, err}; it != decltype(it){}; it.increment(err))
-		llvm::sys::fs::remove(it->path());
+	g_dir = _dir;
 }
 
-void Cache::preload(llvm::ExecutionEngine& _ee, std::unordered_map<std::string, uint64_t>& _funcCache,
-                    llvm::LLVMContext& _llvmContext)
+void Cache::clear()
 {
+	Guard w{x_writeMutex};
 	Guard g{x_cacheMutex};
 
-	// Disable listener
-	auto listener = g_listener;
-	g_listener = nullptr;
+	g_packFile.reset();
+	g_mapping.reset();
+	g_index.clear();
+	g_ids.clear();
 
 	auto cachePath = getVersionedCacheDir();
 	std::error_code err;
 	for (auto it = llvm::sys::fs::directory_iterator{cachePath, err}; it != decltype(it){}; it.increment(err))
-	{
-		auto name = it->path().substr(cachePath.size() + 1);
-		if (auto module = getObject(name, _llvmContext))
-		{
-			DLOG(cache) << "Preload: " << name << "\n";
-			_ee.addModule(std::move(module));
-			auto addr = _ee.getFunctionAddress(name);
-			assert(addr);
-			_funcCache[std::move(name)] = addr;
-		}
-	}
-
-	g_listener = listener;
+		llvm::sys::fs::remove(it->path());
 }
 
-std::unique_ptr<llvm::Module> Cache::getObject(std::string const& id, llvm::LLVMContext& _llvmContext)
+std::vector<std::string> Cache::ids()
 {
 	Guard g{x_cacheMutex};
+	return g_ids;
+}
 
-	if (g_mode != CacheMode::on && g_mode != CacheMode::read)
+std::unique_ptr<llvm::Module> Cache::getObject(std::string const& id, llvm::LLVMContext& _llvmContext)
+{
+	if (g_mode != CacheMode::on && g_mode != CacheMode::read && g_mode != CacheMode::preload)
 		return nullptr;
 
 	// TODO: Disabled because is not thread-safe.
@@ -115,22 +264,16 @@ std::unique_ptr<llvm::Module> Cache::getObject(std::string const& id, llvm::LLVM
 
 	DLOG(cache) << id << ": search\n";
 
-	// if (!CHECK(!g_lastObject))
-	// disable the original assert as it will fail if we only compile but not execute.
-	if (!g_lastObject)
-		g_lastObject = nullptr;
-
-	llvm::SmallString<256> cachePath{getVersionedCacheDir()};
-	llvm::sys::path::append(cachePath, id);
-
-	if (auto r = llvm::MemoryBuffer::getFile(cachePath, -1, false))
-		g_lastObject = llvm::MemoryBuffer::getMemBufferCopy(r.get()->getBuffer());
-	else if (r.getError() != std::make_error_code(std::errc::no_such_file_or_directory))
-		DLOG(cache) << r.getError().message(); // TODO: Add warning log
+	bool found;
+	{
+		Guard g{x_cacheMutex};
+		found = g_index.count(id) != 0;
+	}
 
-	if (g_lastObject)  // if object found create fake module
+	if (found)  // if object found create fake module
 	{
 		DLOG(cache) << id << ": found\n";
+		JITMetrics::instance().add(JITMetric::CacheLoads, 1);
 		auto module = llvm::make_unique<llvm::Module>(id, _llvmContext);
 		auto mainFuncType = llvm::FunctionType::get(llvm::Type::getVoidTy(_llvmContext), {}, false);
 		auto mainFunc = llvm::Function::Create(mainFuncType, llvm::Function::ExternalLinkage, id, module.get());
@@ -145,10 +288,8 @@ std::unique_ptr<llvm::Module> Cache::getObject(std::string const& id, llvm::LLVM
 
 void ObjectCache::notifyObjectCompiled(llvm::Module const* _module, llvm::MemoryBufferRef _object)
 {
-	Guard g{x_cacheMutex};
-
 	// Only in "on" and "write" mode
-	if (g_mode != CacheMode::on && g_mode != CacheMode::write)
+	if (g_mode != CacheMode::on && g_mode != CacheMode::write && g_mode != CacheMode::preload)
 		return;
 
 	// TODO: Disabled because is not thread-safe.
@@ -156,27 +297,68 @@ void ObjectCache::notifyObjectCompiled(llvm::Module const* _module, llvm::Memory
 		// g_listener->stateChanged(ExecState::CacheWrite);
 
 	auto&& id = _module->getModuleIdentifier();
-	llvm::SmallString<256> cachePath{getVersionedCacheDir()};
-	if (auto err = llvm::sys::fs::create_directories(cachePath))
+	auto object = _object.getBuffer();
+
+	Guard w{x_writeMutex};
+	if (!g_packFile)
+		return;
+	{
+		Guard g{x_cacheMutex};
+		if (g_index.count(id))
+			return;
+	}
+
+	DLOG(cache) << id << ": write\n";
+	RecordHeader header{c_recordMagic, static_cast<uint32_t>(id.size()), static_cast<uint32_t>(object.size()), 0};
+	auto objectOffset = align(g_packEnd + c_headerSize + id.size());
+	auto end = objectOffset + object.size();
+
+	static const char zeros[c_alignment] = {};
+	auto& out = *g_packFile;
+	out.write(reinterpret_cast<char const*>(&header), c_headerSize);
+	out << id;
+	out.write(zeros, objectOffset - (g_packEnd + c_headerSize + id.size()));
+	out << object;
+	out.write(zeros, align(end) - end);
+	out.flush();
+	if (out.has_error())
 	{
-		DLOG(cache) << "Cannot create cache dir " << cachePath.str().str() << " (error: " << err.message() << "\n";
+		DLOG(cache) << "Cannot write cache pack\n";
+		out.clear_error();
+		g_packFile.reset();
 		return;
 	}
 
-	llvm::sys::path::append(cachePath, id);
+	g_packEnd = align(end);
+	JITMetrics::instance().add(JITMetric::CacheWrites, 1);
+	JITMetrics::instance().add(JITMetric::CacheWriteBytes, object.size());
 
-	DLOG(cache) << id << ": write\n";
-	std::error_code error;
-	llvm::raw_fd_ostream cacheFile(cachePath, error, llvm::sys::fs::F_None);
-	cacheFile << _object.getBuffer();
+	Guard g{x_cacheMutex};
+	if (g_index.emplace(id, Record{objectOffset, static_cast<uint32_t>(object.size())}).second)
+		g_ids.push_back(id);
 }
 
 std::unique_ptr<llvm::MemoryBuffer> ObjectCache::getObject(llvm::Module const* _module)
 {
+	auto&& id = _module->getModuleIdentifier();
+	DLOG(cache) << id << ": use\n";
+
 	Guard g{x_cacheMutex};
+	auto it = g_index.find(id);
+	if (it == g_index.end())
+		return nullptr;
+
+	// Objects appended after the file was mapped need a new mapping, which
+	// replaces the current one; the objects appended meanwhile share it.
+	auto& record = it->second;
+	if (!g_mapping || record.offset + record.size > g_mapping->getBufferSize())
+	{
+		if (!mapPack() || record.offset + record.size > g_mapping->getBufferSize())
+			return nullptr;
+	}
 
-	DLOG(cache) << _module->getModuleIdentifier() << ": use\n";
-	return std::move(g_lastObject);
+	auto data = g_mapping->getBufferStart() + record.offset;
+	return llvm::make_unique<PackObject>(g_mapping, llvm::StringRef{data, record.size}, id);
 }
 
 }
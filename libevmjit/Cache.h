@@ -1,18 +1,14 @@
 #pragma once
 
 #include <memory>
-#include <unordered_map>
+#include <string>
+#include <vector>
 
 #include "preprocessor/llvm_includes_start.h"
 #include <llvm/ExecutionEngine/ObjectCache.h>
 #include <llvm/IR/LLVMContext.h>
 #include "preprocessor/llvm_includes_end.h"
 
-namespace llvm
-{
-	class ExecutionEngine;
-}
-
 namespace dev
 {
 namespace evmjit
@@ -29,6 +25,10 @@ enum class CacheMode
 	preload
 };
 
+/// Compiled objects are kept in a single pack file, as a sequence of records
+/// keyed by code identifier (code hash, revision and flags). The file is
+/// memory-mapped, and objects are handed to the engine straight from the
+/// mapping, without copies.
 class ObjectCache : public llvm::ObjectCache
 {
 public:
@@ -37,8 +37,8 @@ public:
 
 	/// getObjectCopy - Returns a pointer to a newly allocated MemoryBuffer that
 	/// contains the object which corresponds with Module M, or 0 if an object is
-	/// not available. The caller owns both the MemoryBuffer returned by this
-	/// and the memory it references.
+	/// not available. The caller owns the MemoryBuffer returned by this, but
+	/// not the memory it references, which stays mapped.
 	virtual std::unique_ptr<llvm::MemoryBuffer> getObject(llvm::Module const* _module) final override;
 };
 
@@ -49,12 +49,14 @@ public:
 	static ObjectCache* init(CacheMode _mode, JITListener* _listener);
 	static std::unique_ptr<llvm::Module> getObject(std::string const& id, llvm::LLVMContext& _llvmContext);
 
+	/// Sets the directory of the cache storage. Takes effect on the next init.
+	static void setDirectory(std::string const& _dir);
+
 	/// Clears cache storage
 	static void clear();
 
-	/// Loads all available cached objects to ExecutionEngine
-	static void preload(llvm::ExecutionEngine& _ee, std::unordered_map<std::string, uint64_t>& _funcCache,
-						llvm::LLVMContext& _llvmContext);
+	/// Returns the identifiers of all cached objects, oldest first.
+	static std::vector<std::string> ids();
 };
 
 }
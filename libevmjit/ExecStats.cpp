@@ -75,6 +75,42 @@ char const* getExecStateName(ExecState _state)
 }
 }
 
+JITMetrics& JITMetrics::instance()
+{
+	static JITMetrics s_instance;
+	return s_instance;
+}
+
+void JITMetrics::max(JITMetric _m, uint64_t _v)
+{
+	auto& value = m_values[(int)_m];
+	auto current = value.load(std::memory_order_relaxed);
+	while (current < _v && !value.compare_exchange_weak(current, _v, std::memory_order_relaxed))
+		;
+}
+
+void JITMetrics::addCompilation(ExecStats const& _stats, bool _failed)
+{
+	using namespace std::chrono;
+	auto ns = [&_stats](ExecState _s) { return (uint64_t)duration_cast<nanoseconds>(_stats.time[(int)_s]).count(); };
+
+	auto total = ns(ExecState::CacheLoad) + ns(ExecState::Compilation) + ns(ExecState::Optimization) + ns(ExecState::CodeGen);
+	add(_failed ? JITMetric::CompileFailures : JITMetric::Compilations, 1);
+	add(JITMetric::CompileTime, total);
+	max(JITMetric::CompileTimeMax, total);
+	add(JITMetric::CacheLoadTime, ns(ExecState::CacheLoad));
+	add(JITMetric::CompilationTime, ns(ExecState::Compilation));
+	add(JITMetric::OptimizationTime, ns(ExecState::Optimization));
+	add(JITMetric::CodeGenTime, ns(ExecState::CodeGen));
+}
+
+size_t JITMetrics::get(uint64_t* _out, size_t _count) const
+{
+	for (size_t i = 0; i < _count && i < (size_t)JITMetric::Count; ++i)
+		_out[i] = m_values[i].load(std::memory_order_relaxed);
+	return (size_t)JITMetric::Count;
+}
+
 StatsCollector::~StatsCollector()
 {
 	if (stats.empty())
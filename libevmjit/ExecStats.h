@@ -1,5 +1,7 @@
 #pragma once
 
+#include <atomic>
+#include <cstdint>
 #include <memory>
 #include <vector>
 #include <string>
@@ -64,5 +66,51 @@ public:
 	~StatsCollector();
 };
 
+/// Process-wide counters of the JIT, exposed through evmjit_get_metrics.
+/// Times are in nanoseconds. The order is part of the interface, and must
+/// match the Java side (FastVMMetrics).
+enum class JITMetric
+{
+	Compilations,       ///< codes compiled or loaded from the object cache
+	CompileFailures,
+	CompileTime,        ///< total time of the compilations
+	CompileTimeMax,
+	CacheLoadTime,      ///< time of the object cache lookups
+	CompilationTime,    ///< time of generating LLVM IR
+	OptimizationTime,
+	CodeGenTime,        ///< time of generating machine code
+	CodeMapHits,        ///< executions of codes already compiled
+	CodeMapMisses,
+	CacheLoads,         ///< objects found in the object cache
+	CacheWrites,        ///< objects written to the object cache
+	CacheWriteBytes,
+	CodeMemory,         ///< machine code of the loaded codes, in bytes
+	CodeMemoryTotal,    ///< machine code allocated so far, in bytes
+	CodesUnloaded,
+	EnginesReleased,    ///< execution engines destroyed after their code was unloaded
+	Executions,         ///< outermost executions
+	ExecutionTime,      ///< time of the outermost executions, callbacks and nested calls included
+	Count
+};
+
+class JITMetrics
+{
+public:
+	static JITMetrics& instance();
+
+	void add(JITMetric _m, uint64_t _v) { m_values[(int)_m].fetch_add(_v, std::memory_order_relaxed); }
+	void set(JITMetric _m, uint64_t _v) { m_values[(int)_m].store(_v, std::memory_order_relaxed); }
+	void max(JITMetric _m, uint64_t _v);
+
+	/// Adds the phase times of a compilation.
+	void addCompilation(ExecStats const& _stats, bool _failed);
+
+	/// Copies up to _count values into _out, returns the number of metrics.
+	size_t get(uint64_t* _out, size_t _count) const;
+
+private:
+	std::atomic<uint64_t> m_values[(int)JITMetric::Count] = {};
+};
+
 }
 }
@@ -2,6 +2,14 @@
 
 #include <cstddef>
 #include <mutex>
+#include <atomic>
+#include <condition_variable>
+#include <algorithm>
+#include <map>
+#include <memory>
+#include <thread>
+#include <unordered_map>
+#include <vector>
 
 #include "preprocessor/llvm_includes_start.h"
 #include <llvm/IR/Module.h>
@@ -45,13 +53,47 @@ namespace
 {
 using ExecFunc = ReturnCode(*)(ExecutionContext*);
 
+class JITImpl;
+
+/// Machine code of a compiled code. Every code lives in an execution engine
+/// of its own, so that it can be unloaded on its own. Executions hold a
+/// reference, so the code is never unloaded while it's running.
+struct CompiledCode
+{
+	JITImpl* jit = nullptr;
+	std::unique_ptr<llvm::ExecutionEngine> engine;
+	ExecFunc func = nullptr;
+	size_t memorySize = 0;
+
+	~CompiledCode();
+};
+
+struct CompileTask;
+using CompileQueue = std::multimap<size_t, std::shared_ptr<CompileTask>>;
+
+/// A pending compilation of a code. Duplicate requests for the same code
+/// share the task.
+struct CompileTask
+{
+	std::string codeId;
+	evm_revision rev = EVM_AION;
+	bool staticCall = false;
+	std::vector<byte> code;
+
+	bool queued = false;
+	CompileQueue::iterator queuePos;
+
+	bool started = false;
+	bool done = false;
+	std::shared_ptr<CompiledCode> compiled;
+};
+
 struct CodeMapEntry
 {
-    ExecFunc func = nullptr;
+    std::shared_ptr<CompiledCode> compiled;
     size_t hits = 0;
-
-    CodeMapEntry() = default;
-    explicit CodeMapEntry(ExecFunc func) : func(func) {}
+    uint64_t lastUsed = 0;
+    std::shared_ptr<CompileTask> task;
 };
 
 char toChar(evm_revision rev)
@@ -123,10 +165,34 @@ class SymbolResolver;
 
 class JITImpl: public evm_instance
 {
-	std::unique_ptr<llvm::ExecutionEngine> m_engine;
-	SymbolResolver const* m_memoryMgr = nullptr;
+	llvm::ObjectCache* m_objectCache = nullptr;
+
+	/// Engines of unloaded codes. Destroying an engine touches the LLVM
+	/// context, so they're destroyed by the next compilation, under x_engine.
+	std::mutex x_retired;
+	std::vector<std::unique_ptr<llvm::ExecutionEngine>> m_retiredEngines;
+
 	mutable std::mutex x_codeMap;
 	std::unordered_map<std::string, CodeMapEntry> m_codeMap;
+	uint64_t m_codeMapClock = 0;
+
+	/// Machine code size of the compiled codes, and the budget above which
+	/// the least used ones are unloaded. Guarded by x_codeMap.
+	size_t m_codeCacheSize = 0;
+	size_t m_codeCacheCapacity = 1000 * 1024 * 1024;
+
+	/// Serializes compilations, as the LLVM context is not thread-safe.
+	std::mutex x_engine;
+
+	/// Codes waiting for the compile workers, hottest last. Guarded by
+	/// x_codeMap, as are the tasks.
+	CompileQueue m_compileQueue;
+	size_t m_compileQueueCapacity = 256;
+	std::condition_variable m_queueCond;
+	std::condition_variable m_compiledCond;
+	std::vector<std::thread> m_compileWorkers;
+	std::atomic<bool> m_hasCompileWorkers{false};
+	bool m_stopWorkers = false;
 
 	static llvm::LLVMContext& getLLVMContext()
 	{
@@ -136,7 +202,26 @@ class JITImpl: public evm_instance
 		return llvmContext;
 	}
 
-	void resetEngine();
+	/// Creates an execution engine, with a memory manager of its own, owning
+	/// the given module.
+	std::unique_ptr<llvm::ExecutionEngine> createEngine(std::unique_ptr<llvm::Module> _module, SymbolResolver*& o_memoryMgr);
+
+	/// Loads the module into a new engine and resolves its entry point.
+	/// Must be called with x_engine held.
+	std::shared_ptr<CompiledCode> load(std::unique_ptr<llvm::Module> _module, std::string const& _codeIdentifier);
+
+	std::shared_ptr<CompiledCode> compile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize, std::string const& _codeIdentifier);
+
+	/// Publishes the outcome of a compile task and wakes up its waiters.
+	void finishCompile(std::shared_ptr<CompileTask> const& _task, std::shared_ptr<CompiledCode> const& _compiled);
+
+	/// Unloads the least frequently used codes, least recently used first
+	/// among equals, until the cache is back under 3/4 of its budget, and
+	/// ages the hit counts. Must be called with x_codeMap held; the unloaded
+	/// codes are returned, to be released after the lock.
+	std::vector<std::shared_ptr<CompiledCode>> evictCode();
+
+	void compileWorker();
 
 public:
 	static JITImpl& instance()
@@ -148,24 +233,61 @@ public:
 	}
 
 	JITImpl();
+	~JITImpl();
 
-	void checkMemorySize();
+	CodeMapEntry getExecFunc(std::string const& _codeIdentifier);
 
-	llvm::ExecutionEngine& engine() { return *m_engine; }
+	/// Returns whether the code is compiled and loaded. Doesn't count as a hit.
+	bool isCompiled(std::string const& _codeIdentifier) const;
 
-	CodeMapEntry getExecFunc(std::string const& _codeIdentifier);
-	void mapExecFunc(std::string const& _codeIdentifier, ExecFunc _funcAddr);
+	/// Compiles the code on the calling thread, or waits for a compilation
+	/// of it already in progress.
+	std::shared_ptr<CompiledCode> compileOrWait(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize, std::string const& _codeIdentifier);
+
+	/// Queues the code for the compile workers, unless it's already queued
+	/// or being compiled. When the queue is full, the coldest code is dropped;
+	/// dropped codes are queued again on their next execution.
+	void requestCompile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize, std::string const& _codeIdentifier);
+
+	/// Starts the given number of compile workers. Can only be done once.
+	bool startCompileWorkers(size_t _count);
+
+	bool hasCompileWorkers() const { return m_hasCompileWorkers; }
+
+	void setCompileQueueCapacity(size_t _capacity);
+
+	void setCodeCacheCapacity(size_t _capacity);
+
+	/// Hands over the engine of an unloaded code, to be destroyed later.
+	void retireEngine(std::unique_ptr<llvm::ExecutionEngine> _engine);
+
+	/// Switches the on-disk object cache to the given mode.
+	void setCacheMode(CacheMode _mode);
+
+	/// Loads the objects of the on-disk cache into the code cache, until the
+	/// code cache is 3/4 full. Returns the number of codes loaded.
+	size_t preloadCache();
 
-	ExecFunc compile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize, std::string const& _codeIdentifier);
+	/// Preloads the cache now, or at the first execution if the host
+	/// functions are not known yet.
+	void requestPreload();
+
+	/// Set when a preload waits for the first execution.
+	std::atomic<bool> m_preloadPending{false};
 
 	evm_context_fn_table const* host = nullptr;
 
-	evm_message const* currentMsg = nullptr;
-	std::vector<uint8_t> returnBuffer;
+	/// The message being executed and the RETURNDATA buffer are per thread,
+	/// as different threads run independent executions.
+	static thread_local evm_message const* currentMsg;
+	static thread_local std::vector<uint8_t> returnBuffer;
 
 	size_t hitThreshold = 0;
 };
 
+thread_local evm_message const* JITImpl::currentMsg = nullptr;
+thread_local std::vector<uint8_t> JITImpl::returnBuffer;
+
 int64_t call_v2(
 	evm_context* _ctx,
 	int _kind,
@@ -191,7 +313,7 @@ int64_t call_v2(
 	msg.input_size = _inputSize;
 	msg.gas = _gas;
 	msg.depth = jit.currentMsg->depth + 1;
-	msg.flags = jit.currentMsg->flags;
+	msg.flags = jit.currentMsg->flags & ~EVM_ASYNC_COMPILE;
 	if (_kind == EVM_STATICCALL)
 	{
 		msg.kind = EVM_CALL;
@@ -237,7 +359,7 @@ class SymbolResolver : public llvm::SectionMemoryManager
 		// Handle symbols' global prefix.
 		// If in current DataLayout global symbols are prefixed, drop the
 		// prefix from the name for local search.
-		char prefix = jit.engine().getDataLayout().getGlobalPrefix();
+		char prefix = m_globalPrefix;
 		llvm::StringRef unprefixedName = (prefix != '\0' && _name[0] == prefix)
 			? llvm::StringRef{_name}.drop_front() : llvm::StringRef{_name};
 
@@ -267,17 +389,6 @@ class SymbolResolver : public llvm::SectionMemoryManager
 	void reportMemorySize(size_t _addedSize)
 	{
 		m_totalMemorySize += _addedSize;
-
-		if (!g_stats)
-			return;
-
-		if (m_totalMemorySize >= m_printMemoryLimit)
-		{
-			constexpr size_t printMemoryStep = 10 * 1024 * 1024;
-			auto value = double(m_totalMemorySize) / printMemoryStep;
-			std::cerr << "EVMJIT total memory size: " << (10 * value) << " MB\n";
-			m_printMemoryLimit += printMemoryStep;
-		}
 	}
 
 	uint8_t* allocateCodeSection(uintptr_t _size, unsigned _a, unsigned _id,
@@ -295,74 +406,417 @@ class SymbolResolver : public llvm::SectionMemoryManager
 	}
 
 	size_t m_totalMemorySize = 0;
-	size_t m_printMemoryLimit = 1024 * 1024;
+	char m_globalPrefix = '\0';
 
 public:
 	size_t totalMemorySize() const { return m_totalMemorySize; }
+
+	void setGlobalPrefix(char _prefix) { m_globalPrefix = _prefix; }
 };
 
+CompiledCode::~CompiledCode()
+{
+	if (engine)
+		jit->retireEngine(std::move(engine));
+}
+
 
 CodeMapEntry JITImpl::getExecFunc(std::string const& _codeIdentifier)
 {
     std::lock_guard<std::mutex> lock{x_codeMap};
     auto& entry = m_codeMap[_codeIdentifier];
     ++entry.hits;
+    entry.lastUsed = ++m_codeMapClock;
     return entry;
 }
 
-void JITImpl::mapExecFunc(std::string const& _codeIdentifier, ExecFunc _funcAddr)
+bool JITImpl::isCompiled(std::string const& _codeIdentifier) const
 {
-    std::lock_guard<std::mutex> lock{x_codeMap};
-    m_codeMap[_codeIdentifier].func = _funcAddr;
+	std::lock_guard<std::mutex> lock{x_codeMap};
+	auto it = m_codeMap.find(_codeIdentifier);
+	return it != m_codeMap.end() && it->second.compiled;
 }
 
-ExecFunc JITImpl::compile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize,
+std::shared_ptr<CompiledCode> JITImpl::compileOrWait(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize,
 	std::string const& _codeIdentifier)
 {
-	// reset engine.
-	static std::atomic<long> cnt(0);
-	if (++cnt % 20000L == 0) {
-		resetEngine();
+	std::shared_ptr<CompileTask> task;
+	{
+		std::unique_lock<std::mutex> lock{x_codeMap};
+		auto& entry = m_codeMap[_codeIdentifier];
+		if (entry.compiled)
+			return entry.compiled;
+
+		if (entry.task && entry.task->started)
+		{
+			task = entry.task;
+			m_compiledCond.wait(lock, [&task]{ return task->done; });
+			return task->compiled;
+		}
+
+		if (entry.task)
+		{
+			// Queued, but not picked up by a worker yet. Take it over.
+			task = entry.task;
+			m_compileQueue.erase(task->queuePos);
+			task->queued = false;
+		}
+		else
+		{
+			task = std::make_shared<CompileTask>();
+			task->codeId = _codeIdentifier;
+			entry.task = task;
+		}
+		task->started = true;
 	}
 
-	clock_t t1 = clock();
-	auto module = Cache::getObject(_codeIdentifier, getLLVMContext());
-	if (!module)
+	auto compiled = compile(_rev, _staticCall, _code, _codeSize, _codeIdentifier);
+	finishCompile(task, compiled);
+	return compiled;
+}
+
+void JITImpl::requestCompile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize,
+	std::string const& _codeIdentifier)
+{
+	std::lock_guard<std::mutex> lock{x_codeMap};
+	auto& entry = m_codeMap[_codeIdentifier];
+	if (entry.compiled)
+		return;
+
+	if (entry.task)
 	{
-		// TODO: Listener support must be redesigned. These should be a feature of JITImpl
-		//listener->stateChanged(ExecState::Compilation);
-		assert(_code || !_codeSize);
-		//TODO: Can the Compiler be stateless?
-		module = Compiler({}, _rev, _staticCall, getLLVMContext()).compile(_code, _code + _codeSize, _codeIdentifier);
+		// Coalesce with the pending task, bumping its priority.
+		auto& task = entry.task;
+		if (task->queued)
+		{
+			m_compileQueue.erase(task->queuePos);
+			task->queuePos = m_compileQueue.emplace(entry.hits, task);
+		}
+		return;
+	}
+
+	if (m_compileQueue.size() >= m_compileQueueCapacity)
+	{
+		auto coldest = m_compileQueue.begin();
+		if (coldest == m_compileQueue.end() || coldest->first >= entry.hits)
+			return;
+
+		auto dropped = coldest->second;
+		dropped->queued = false;
+		m_compileQueue.erase(coldest);
+		auto it = m_codeMap.find(dropped->codeId);
+		if (it != m_codeMap.end() && it->second.task == dropped)
+			it->second.task.reset();
+	}
 
-		if (g_optimize)
+	auto task = std::make_shared<CompileTask>();
+	task->codeId = _codeIdentifier;
+	task->rev = _rev;
+	task->staticCall = _staticCall;
+	task->code.assign(_code, _code + _codeSize);
+	task->queued = true;
+	task->queuePos = m_compileQueue.emplace(entry.hits, task);
+	entry.task = task;
+	m_queueCond.notify_one();
+}
+
+void JITImpl::finishCompile(std::shared_ptr<CompileTask> const& _task, std::shared_ptr<CompiledCode> const& _compiled)
+{
+	std::vector<std::shared_ptr<CompiledCode>> evicted;
+	{
+		std::lock_guard<std::mutex> lock{x_codeMap};
+		_task->compiled = _compiled;
+		_task->done = true;
+
+		auto it = m_codeMap.find(_task->codeId);
+		if (it != m_codeMap.end() && it->second.task == _task)
 		{
-			//listener->stateChanged(ExecState::Optimization);
-			optimize(*module);
+			it->second.compiled = _compiled;
+			it->second.task.reset();
+			if (_compiled)
+			{
+				m_codeCacheSize += _compiled->memorySize;
+				evicted = evictCode();
+				JITMetrics::instance().set(JITMetric::CodeMemory, m_codeCacheSize);
+			}
 		}
+		m_compiledCond.notify_all();
+	}
+	// The evicted codes are released here, out of the lock.
+}
 
-		prepare(*module);
+std::vector<std::shared_ptr<CompiledCode>> JITImpl::evictCode()
+{
+	std::vector<std::shared_ptr<CompiledCode>> evicted;
+	if (m_codeCacheSize <= m_codeCacheCapacity)
+		return evicted;
+
+	using Iterator = decltype(m_codeMap)::iterator;
+	std::vector<Iterator> candidates;
+	for (auto it = m_codeMap.begin(); it != m_codeMap.end(); ++it)
+		if (it->second.compiled)
+			candidates.push_back(it);
+
+	std::sort(candidates.begin(), candidates.end(), [](Iterator const& _a, Iterator const& _b)
+	{
+		if (_a->second.hits != _b->second.hits)
+			return _a->second.hits < _b->second.hits;
+		return _a->second.lastUsed < _b->second.lastUsed;
+	});
+
+	auto target = m_codeCacheCapacity / 4 * 3;
+	for (auto& it: candidates)
+	{
+		if (m_codeCacheSize <= target)
+			break;
+		m_codeCacheSize -= it->second.compiled->memorySize;
+		evicted.push_back(std::move(it->second.compiled));
+		m_codeMap.erase(it);
 	}
 
-	if (g_dump)
+	// Age the hit counts, so that codes which used to be hot don't stay
+	// forever, and forget codes which were never compiled.
+	for (auto it = m_codeMap.begin(); it != m_codeMap.end();)
 	{
-		llvm::raw_os_ostream cerr{std::cerr};
-		module->print(cerr, nullptr);
+		it->second.hits /= 2;
+		if (!it->second.compiled && !it->second.task && it->second.hits == 0)
+			it = m_codeMap.erase(it);
+		else
+			++it;
 	}
-	clock_t t2 = clock();
 
-	llvm::Module *m = module.get();
+	JITMetrics::instance().add(JITMetric::CodesUnloaded, evicted.size());
+	JITMetrics::instance().set(JITMetric::CodeMemory, m_codeCacheSize);
+
+	if (g_stats)
+		std::cerr << "EVMJIT Unloaded " << evicted.size() << " codes, "
+				  << m_codeCacheSize / (1024 * 1024) << " MB left\n";
+	return evicted;
+}
 
-	m_engine->addModule(std::move(module));
-	//listener->stateChanged(ExecState::CodeGen);
-	ExecFunc func = (ExecFunc)m_engine->getFunctionAddress(_codeIdentifier);
-	m_engine->removeModule(m);
+void JITImpl::compileWorker()
+{
+	while (true)
+	{
+		std::shared_ptr<CompileTask> task;
+		{
+			std::unique_lock<std::mutex> lock{x_codeMap};
+			m_queueCond.wait(lock, [this]{ return m_stopWorkers || !m_compileQueue.empty(); });
+			if (m_stopWorkers)
+				return;
+
+			auto hottest = std::prev(m_compileQueue.end());
+			task = hottest->second;
+			m_compileQueue.erase(hottest);
+			task->queued = false;
+			task->started = true;
+		}
 
-	clock_t t3 = clock();
-	DLOG(jit) << "compile: " << t2 - t1 << " " << t3 - t2 << std::endl;
+		if (g_stats)
+			std::cerr << "EVMJIT Background compile " << task->codeId << "\n";
+
+		auto compiled = compile(task->rev, task->staticCall, task->code.data(), task->code.size(), task->codeId);
+		finishCompile(task, compiled);
+	}
+}
+
+bool JITImpl::startCompileWorkers(size_t _count)
+{
+	std::lock_guard<std::mutex> lock{x_codeMap};
+	if (!m_compileWorkers.empty() || _count == 0)
+		return false;
+
+	for (size_t i = 0; i < _count; ++i)
+		m_compileWorkers.emplace_back(&JITImpl::compileWorker, this);
+	m_hasCompileWorkers = true;
+	return true;
+}
+
+void JITImpl::setCompileQueueCapacity(size_t _capacity)
+{
+	std::lock_guard<std::mutex> lock{x_codeMap};
+	m_compileQueueCapacity = _capacity;
+}
+
+void JITImpl::setCodeCacheCapacity(size_t _capacity)
+{
+	std::vector<std::shared_ptr<CompiledCode>> evicted;
+	std::lock_guard<std::mutex> lock{x_codeMap};
+	m_codeCacheCapacity = _capacity;
+	evicted = evictCode();
+}
+
+void JITImpl::retireEngine(std::unique_ptr<llvm::ExecutionEngine> _engine)
+{
+	std::lock_guard<std::mutex> lock{x_retired};
+	m_retiredEngines.push_back(std::move(_engine));
+}
+
+std::unique_ptr<llvm::ExecutionEngine> JITImpl::createEngine(std::unique_ptr<llvm::Module> _module,
+	SymbolResolver*& o_memoryMgr)
+{
+	// FIXME: LLVM 3.7: test on Windows
+	auto triple = llvm::Triple(llvm::sys::getProcessTriple());
+	if (triple.getOS() == llvm::Triple::OSType::Win32)
+		triple.setObjectFormat(llvm::Triple::ObjectFormatType::ELF);  // MCJIT does not support COFF format
+	_module->setTargetTriple(triple.str());
+
+	llvm::EngineBuilder builder(std::move(_module));
+	builder.setEngineKind(llvm::EngineKind::JIT);
+	auto memoryMgr = llvm::make_unique<SymbolResolver>();
+	o_memoryMgr = memoryMgr.get();
+	builder.setMCJITMemoryManager(std::move(memoryMgr));
+	builder.setOptLevel(g_optimize ? llvm::CodeGenOpt::Default : llvm::CodeGenOpt::None);
+#ifndef NDEBUG
+	builder.setVerifyModules(true);
+#endif
+
+	std::unique_ptr<llvm::ExecutionEngine> engine{builder.create()};
+	if (!engine)
+		return nullptr;
+
+	o_memoryMgr->setGlobalPrefix(engine->getDataLayout().getGlobalPrefix());
+	engine->setObjectCache(m_objectCache);
+	return engine;
+}
+
+std::shared_ptr<CompiledCode> JITImpl::load(std::unique_ptr<llvm::Module> _module, std::string const& _codeIdentifier)
+{
+	// Destroy the engines of the codes unloaded since the last compilation.
+	std::vector<std::unique_ptr<llvm::ExecutionEngine>> retired;
+	{
+		std::lock_guard<std::mutex> retiredLock{x_retired};
+		retired.swap(m_retiredEngines);
+	}
+	JITMetrics::instance().add(JITMetric::EnginesReleased, retired.size());
+	retired.clear();
+
+	auto compiled = std::make_shared<CompiledCode>();
+	compiled->jit = this;
+
+	llvm::Module *m = _module.get();
+
+	SymbolResolver* memoryMgr = nullptr;
+	compiled->engine = createEngine(std::move(_module), memoryMgr);
+	if (!compiled->engine)
+		return compiled;
+
+	compiled->func = (ExecFunc)compiled->engine->getFunctionAddress(_codeIdentifier);
+	compiled->engine->removeModule(m);
+	compiled->memorySize = memoryMgr->totalMemorySize();
+	JITMetrics::instance().add(JITMetric::CodeMemoryTotal, compiled->memorySize);
 
 	delete m;
-	return func;
+	return compiled;
+}
+
+std::shared_ptr<CompiledCode> JITImpl::compile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize,
+	std::string const& _codeIdentifier)
+{
+	std::shared_ptr<CompiledCode> compiled;
+	{
+		std::lock_guard<std::mutex> lock{x_engine};
+
+		// Compilations are serialized, so the phases are timed here rather
+		// than by a listener shared between threads.
+		ExecStats stats;
+		stats.stateChanged(ExecState::CacheLoad);
+		auto module = Cache::getObject(_codeIdentifier, getLLVMContext());
+		if (!module)
+		{
+			stats.stateChanged(ExecState::Compilation);
+			assert(_code || !_codeSize);
+			//TODO: Can the Compiler be stateless?
+			module = Compiler({}, _rev, _staticCall, getLLVMContext()).compile(_code, _code + _codeSize, _codeIdentifier);
+
+			if (g_optimize)
+			{
+				stats.stateChanged(ExecState::Optimization);
+				optimize(*module);
+			}
+
+			prepare(*module);
+		}
+
+		if (g_dump)
+		{
+			llvm::raw_os_ostream cerr{std::cerr};
+			module->print(cerr, nullptr);
+		}
+
+		stats.stateChanged(ExecState::CodeGen);
+		compiled = load(std::move(module), _codeIdentifier);
+		stats.stateChanged(ExecState::Finished);
+
+		JITMetrics::instance().addCompilation(stats, !compiled->func);
+		DLOG(jit) << "compile: " << std::chrono::duration_cast<std::chrono::microseconds>(
+			stats.time[(int)ExecState::Compilation] + stats.time[(int)ExecState::Optimization]).count()
+			<< " " << std::chrono::duration_cast<std::chrono::microseconds>(
+			stats.time[(int)ExecState::CodeGen]).count() << std::endl;
+	}
+
+	// A failed compilation is released out of the lock.
+	if (!compiled->func)
+		return nullptr;
+	return compiled;
+}
+
+size_t JITImpl::preloadCache()
+{
+	size_t count = 0;
+	for (auto const& id: Cache::ids())
+	{
+		{
+			std::lock_guard<std::mutex> lock{x_codeMap};
+			if (m_codeCacheSize >= m_codeCacheCapacity / 4 * 3)
+				break;
+			auto it = m_codeMap.find(id);
+			if (it != m_codeMap.end() && (it->second.compiled || it->second.task))
+				continue;
+		}
+
+		std::shared_ptr<CompiledCode> compiled;
+		{
+			std::lock_guard<std::mutex> lock{x_engine};
+			if (auto module = Cache::getObject(id, getLLVMContext()))
+				compiled = load(std::move(module), id);
+		}
+		if (!compiled || !compiled->func)
+			continue;
+
+		std::lock_guard<std::mutex> lock{x_codeMap};
+		auto& entry = m_codeMap[id];
+		if (entry.compiled || entry.task)
+			continue; // compiled in the meantime
+		entry.compiled = compiled;
+		m_codeCacheSize += compiled->memorySize;
+		JITMetrics::instance().set(JITMetric::CodeMemory, m_codeCacheSize);
+		++count;
+	}
+
+	if (g_stats)
+		std::cerr << "EVMJIT Preloaded " << count << " codes\n";
+	return count;
+}
+
+void JITImpl::setCacheMode(CacheMode _mode)
+{
+	{
+		std::lock_guard<std::mutex> lock{x_engine};
+		m_objectCache = Cache::init(_mode, nullptr);
+	}
+	if (_mode == CacheMode::preload)
+		requestPreload();
+}
+
+void JITImpl::requestPreload()
+{
+	// Symbols of the loaded code are resolved against the host functions,
+	// so the preload waits for the first execution if they are not known yet.
+	if (host)
+		preloadCache();
+	else
+		m_preloadPending = true;
 }
 
 } // anonymous namespace
@@ -399,6 +853,16 @@ EXPORT evm_instance* evmjit_create()
 	return &JITImpl::instance();
 }
 
+EXPORT int evmjit_is_compiled(evm_hash const* code_hash, evm_revision rev, uint32_t flags)
+{
+	return JITImpl::instance().isCompiled(makeCodeId(*code_hash, rev, flags));
+}
+
+EXPORT size_t evmjit_get_metrics(uint64_t* out, size_t count)
+{
+	return JITMetrics::instance().get(out, count);
+}
+
 static void destroy(evm_instance* instance)
 {
 	(void)instance;
@@ -410,16 +874,12 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 {
 	auto& jit = *reinterpret_cast<JITImpl*>(instance);
 
-	if (msg->depth == 0)
-		jit.checkMemorySize();
-
 	if (!jit.host)
 		jit.host = context->fn_table;
 	assert(jit.host == context->fn_table);  // Require the fn_table not to change.
 
-	// TODO: Temporary keep track of the current message.
-	evm_message const* prevMsg = jit.currentMsg;
-	jit.currentMsg = msg;
+	if (jit.m_preloadPending.exchange(false))
+		jit.preloadCache();
 
 	RuntimeData rt;
 	rt.code = code;
@@ -443,31 +903,53 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 
     auto codeIdentifier = makeCodeId(msg->code_hash, rev, msg->flags);
     auto codeEntry = jit.getExecFunc(codeIdentifier);
-    auto func = codeEntry.func;
-    if (!func)
+    auto compiled = codeEntry.compiled;
+    JITMetrics::instance().add(compiled ? JITMetric::CodeMapHits : JITMetric::CodeMapMisses, 1);
+    if (!compiled)
     {
-        //FIXME: We have a race condition here!
-
         if (codeEntry.hits <= jit.hitThreshold)
         {
             result.status_code = EVM_REJECTED;
             return result;
         }
 
+        const bool staticCall = (msg->flags & EVM_STATIC) != 0;
+        if ((msg->flags & EVM_ASYNC_COMPILE) && jit.hasCompileWorkers())
+        {
+            jit.requestCompile(rev, staticCall, ctx.code(), ctx.codeSize(), codeIdentifier);
+            result.status_code = EVM_REJECTED;
+            return result;
+        }
+
         if (g_stats)
             std::cerr << "EVMJIT Compile " << codeIdentifier << " (" << codeEntry.hits << ")\n";
 
-        const bool staticCall = (msg->flags & EVM_STATIC) != 0;
-        func = jit.compile(rev, staticCall, ctx.code(), ctx.codeSize(), codeIdentifier);
-        if (!func)
+        // Concurrent executions of the same code share a single compilation.
+        compiled = jit.compileOrWait(rev, staticCall, ctx.code(), ctx.codeSize(), codeIdentifier);
+        if (!compiled)
         {
             result.status_code = EVM_INTERNAL_ERROR;
             return result;
         }
-        jit.mapExecFunc(codeIdentifier, func);
     }
 
-    auto returnCode = func(&ctx);
+	// TODO: Temporary keep track of the current message.
+	evm_message const* prevMsg = jit.currentMsg;
+	jit.currentMsg = msg;
+
+	// Nested executions are part of the outermost one.
+	const bool outermost = msg->depth == 0;
+	ExecStats::time_point start = outermost ? ExecStats::clock::now() : ExecStats::time_point{};
+
+    auto returnCode = compiled->func(&ctx);
+
+	if (outermost)
+	{
+		auto& metrics = JITMetrics::instance();
+		metrics.add(JITMetric::Executions, 1);
+		metrics.add(JITMetric::ExecutionTime,
+			std::chrono::duration_cast<std::chrono::nanoseconds>(ExecStats::clock::now() - start).count());
+	}
 
 	if (returnCode == ReturnCode::Revert)
 	{
@@ -514,12 +996,40 @@ static int set_option(evm_instance* instance, const char* name, const char* valu
 {
     try
     {
+        auto& jit = static_cast<JITImpl&>(*instance);
         if (name == std::string{"hits-threshold"})
         {
-            auto& jit = static_cast<JITImpl&>(*instance);
             jit.hitThreshold = std::stoul(value);
             return 1;
         }
+        if (name == std::string{"compile-threads"})
+            return jit.startCompileWorkers(std::stoul(value)) ? 1 : 0;
+        if (name == std::string{"compile-queue-size"})
+        {
+            jit.setCompileQueueCapacity(std::stoul(value));
+            return 1;
+        }
+        if (name == std::string{"cache-dir"})
+        {
+            Cache::setDirectory(value);
+            return 1;
+        }
+        if (name == std::string{"cache"})
+        {
+            static const std::unordered_map<std::string, CacheMode> modes = {
+                {"0", CacheMode::off}, {"1", CacheMode::on}, {"r", CacheMode::read},
+                {"w", CacheMode::write}, {"c", CacheMode::clear}, {"p", CacheMode::preload}};
+            auto it = modes.find(value);
+            if (it == modes.end())
+                return 0;
+            jit.setCacheMode(it->second);
+            return 1;
+        }
+        if (name == std::string{"code-cache-size"})
+        {
+            jit.setCodeCacheCapacity(std::stoull(value));
+            return 1;
+        }
         return 0;
     }
     catch (...)
@@ -530,66 +1040,30 @@ static int set_option(evm_instance* instance, const char* name, const char* valu
 
 }  // extern "C"
 
-void JITImpl::resetEngine()
-{
-	std::lock_guard<std::mutex> lock{x_codeMap};
-	m_codeMap.clear();
-	m_engine.reset();
-
-	auto module = llvm::make_unique<llvm::Module>("", getLLVMContext());
-
-	// FIXME: LLVM 3.7: test on Windows
-	auto triple = llvm::Triple(llvm::sys::getProcessTriple());
-	if (triple.getOS() == llvm::Triple::OSType::Win32)
-		triple.setObjectFormat(llvm::Triple::ObjectFormatType::ELF);  // MCJIT does not support COFF format
-	module->setTargetTriple(triple.str());
-
-	llvm::EngineBuilder builder(std::move(module));
-	builder.setEngineKind(llvm::EngineKind::JIT);
-	auto memoryMgr = llvm::make_unique<SymbolResolver>();
-	m_memoryMgr = memoryMgr.get();
-	builder.setMCJITMemoryManager(std::move(memoryMgr));
-	builder.setOptLevel(g_optimize ? llvm::CodeGenOpt::Default : llvm::CodeGenOpt::None);
-#ifndef NDEBUG
-	builder.setVerifyModules(true);
-#endif
-
-	m_engine.reset(builder.create());
-
-	// TODO: Update cache listener
-	m_engine->setObjectCache(Cache::init(g_cache, nullptr));
-
-	// FIXME: Disabled during API changes
-	//if (preloadCache)
-	//	Cache::preload(*m_engine, funcCache);
-}
-
 JITImpl::JITImpl()
   : evm_instance({EVM_ABI_VERSION, evmjit::destroy, evmjit::execute, evmjit::set_option})
 {
 	parseOptions();
 
-	bool preloadCache = g_cache == CacheMode::preload;
-	if (preloadCache)
-		g_cache = CacheMode::on;
-
 	llvm::InitializeNativeTarget();
 	llvm::InitializeNativeTargetAsmPrinter();
 
-	resetEngine();
+	// TODO: Update cache listener
+	m_objectCache = Cache::init(g_cache, nullptr);
+
+	if (g_cache == CacheMode::preload)
+		m_preloadPending = true;
 }
 
-void JITImpl::checkMemorySize()
+JITImpl::~JITImpl()
 {
-	constexpr size_t memoryLimit = 1000 * 1024 * 1024;
-
-	if (m_memoryMgr->totalMemorySize() > memoryLimit)
 	{
-		if (g_stats)
-			std::cerr << "EVMJIT reset!\n";
-
-		resetEngine();
+		std::lock_guard<std::mutex> lock{x_codeMap};
+		m_stopWorkers = true;
 	}
+	m_queueCond.notify_all();
+	for (auto& worker: m_compileWorkers)
+		worker.join();
 }
 
 }